@@ -0,0 +1,101 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.metrics.CompositeMetricType;
+import de.unipassau.fim.fsinfo.prost.data.metrics.ItemMetricType;
+import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
+import de.unipassau.fim.fsinfo.prost.data.metrics.UserMetricType;
+import de.unipassau.fim.fsinfo.prost.service.statistics.composite.AbstractCompositeMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.composite.HourlyActivityMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.composite.ItemPurchaseMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.item.AbstractItemMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.user.AbstractUserMetricCollector;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A leaderboard page of every metric the StatisticsController serves. The type is the name of a
+ * {@link UserMetricType}, {@link ItemMetricType} or {@link CompositeMetricType}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MetricReadBenchmark {
+
+  @Param({"LOYAL_CUSTOMER", "LUXURY_CUSTOMER", "KIOSK_CUSTOMER", "TOP_SELLING_ITEMS",
+      "ITEM_REVENUE", "ITEM_USER", "HOURLY_ACTIVITY"})
+  private String type;
+
+  @Param({"WEEK", "MONTH", "YEAR", "ALL_TIME"})
+  private TimeSpan timeSpan;
+
+  @Param({"0"})
+  private int offset;
+
+  @Param({"10"})
+  private int limit;
+
+  @Param({"100000"})
+  private int historySize;
+
+  private MetricRebuildEngine engine;
+  private Supplier<Optional<?>> read;
+
+  @Setup
+  public void setUp() {
+    SyntheticShop shop = new SyntheticShop(500, 100, historySize, 42);
+    engine = shop.createCollectors(0);
+    engine.rebuild(shop.getVisibleUsers(), shop.getItems());
+    read = createRead();
+  }
+
+  @TearDown
+  public void tearDown() {
+    engine.shutdown();
+  }
+
+  @Benchmark
+  public Optional<?> read() {
+    return read.get();
+  }
+
+  private Supplier<Optional<?>> createRead() {
+    for (UserMetricType userType : UserMetricType.values()) {
+      if (userType.name().equals(type)) {
+        return () -> AbstractUserMetricCollector.getMetricEntries(userType, timeSpan, offset,
+            limit);
+      }
+    }
+    for (ItemMetricType itemType : ItemMetricType.values()) {
+      if (itemType.name().equals(type)) {
+        return () -> AbstractItemMetricCollector.getMetricEntries(itemType, timeSpan, offset,
+            limit);
+      }
+    }
+    AbstractCompositeMetricCollector<?> collector = switch (CompositeMetricType.valueOf(type)) {
+      case ITEM_USER -> findCollector(ItemPurchaseMetricCollector.class);
+      case HOURLY_ACTIVITY -> findCollector(HourlyActivityMetricCollector.class);
+    };
+    return () -> collector.getCompositeMetricEntries(timeSpan, offset, limit);
+  }
+
+  private static <C> C findCollector(Class<C> type) {
+    return AbstractMetricCollector.getAllCollectors().stream().filter(type::isInstance)
+        .map(type::cast).findFirst().orElseThrow();
+  }
+}
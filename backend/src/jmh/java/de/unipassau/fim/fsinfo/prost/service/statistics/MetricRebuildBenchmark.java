@@ -0,0 +1,53 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRebuildEngine.RebuildResult;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full rebuild of all collectors, as it happens on startup without a snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MetricRebuildBenchmark {
+
+  @Param({"10000", "100000", "1000000"})
+  private int historySize;
+
+  @Param({"0"})
+  private int threads;
+
+  private SyntheticShop shop;
+  private MetricRebuildEngine engine;
+
+  @Setup
+  public void setUp() {
+    shop = new SyntheticShop(500, 100, historySize, 42);
+    engine = shop.createCollectors(threads);
+  }
+
+  @TearDown
+  public void tearDown() {
+    engine.shutdown();
+  }
+
+  @Benchmark
+  public RebuildResult rebuild() {
+    return engine.rebuild(shop.getVisibleUsers(), shop.getItems());
+  }
+}
@@ -0,0 +1,62 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A single purchase applied to all collectors, as done by the {@link MetricUpdateQueue}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MetricUpdateBenchmark {
+
+  // the purchases are created up front, so creating them is not measured
+  private static final int PURCHASES = 10000;
+
+  @Param({"100000"})
+  private int historySize;
+
+  private MetricRebuildEngine engine;
+  private ShopItemHistoryEntry[] purchases;
+  private final AtomicInteger next = new AtomicInteger();
+
+  @Setup
+  public void setUp() {
+    SyntheticShop shop = new SyntheticShop(500, 100, historySize, 42);
+    engine = shop.createCollectors(0);
+    engine.rebuild(shop.getVisibleUsers(), shop.getItems());
+
+    purchases = new ShopItemHistoryEntry[PURCHASES];
+    for (int i = 0; i < PURCHASES; i++) {
+      purchases[i] = shop.nextPurchase();
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    engine.shutdown();
+  }
+
+  @Benchmark
+  public void addPurchase() {
+    AbstractMetricCollector.addToAllCollectors(
+        purchases[Math.floorMod(next.getAndIncrement(), PURCHASES)]);
+  }
+}
@@ -0,0 +1,378 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.TransactionType;
+import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
+import de.unipassau.fim.fsinfo.prost.data.dao.TransactionEntry;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.ItemAggregate;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.ItemUserAggregate;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.UserAggregate;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.UserHourAggregate;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import de.unipassau.fim.fsinfo.prost.service.statistics.composite.HourlyActivityMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.composite.ItemPurchaseMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.item.ItemRevenueMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.item.TopSellingItemsMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.user.KioskBuyersMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.user.LoyalCustomerMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.user.LuxuryCustomerMetricCollector;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * A shop with a generated history that lives in memory. The repositories are stand-ins that answer
+ * the queries the statistics engine uses, including the grouped aggregates, so the benchmarks run
+ * without a database. Calling any other repository method fails.
+ * <p>
+ * Aggregates are grouped once and then returned from memory, the same way the database would
+ * answer them, so a benchmarked rebuild measures the collectors and not the grouping.
+ * <p>
+ * The history is spread over the last year with more purchases in the evening, a few users buy
+ * most of it and some purchases are paid by another user (the kiosk).
+ */
+public class SyntheticShop {
+
+  private static final long DAY = MetricWindow.BUCKET_MILLIS;
+  private static final long HISTORY_DAYS = 365;
+
+  private final Random random;
+  private final long now;
+
+  private final List<ProstUser> users = new ArrayList<>();
+  private final List<ShopItem> items = new ArrayList<>();
+  private final List<ShopItemHistoryEntry> history = new ArrayList<>();
+  private long nextId = 1;
+
+  private final Map<List<Object>, Object> aggregates = new ConcurrentHashMap<>();
+
+  private final ShopItemHistoryRepository historyRepository;
+  private final UserRepository userRepository;
+  private final ShopItemRepository itemRepository;
+
+  public SyntheticShop(int userCount, int itemCount, int historySize, long seed) {
+    this.random = new Random(seed);
+    this.now = Instant.now().toEpochMilli();
+
+    for (int i = 0; i < userCount; i++) {
+      // every 20th user is hidden, every 50th disabled
+      users.add(new ProstUser("user" + i, "User " + i, null, i % 50 != 0, i % 20 == 0,
+          i % 10 == 0));
+    }
+    for (int i = 0; i < itemCount; i++) {
+      ShopItem item = new ShopItem("item" + i, "category" + (i % 5), "Item " + i,
+          BigDecimal.valueOf(50 + random.nextInt(450), 2));
+      item.setEnabled(true);
+      items.add(item);
+    }
+
+    long first = now - HISTORY_DAYS * DAY;
+    for (int i = 0; i < historySize; i++) {
+      // ordered by timestamp, like ids handed out by the database
+      long timestamp = first + (long) ((double) i / historySize * HISTORY_DAYS * DAY);
+      history.add(createEntry(timestamp));
+    }
+
+    this.historyRepository = proxy(ShopItemHistoryRepository.class, (proxy, method, args) ->
+        switch (method.getName()) {
+          case "findByUserId" -> filter(entry -> entry.getUserId().equals(args[0]));
+          case "findByItemId" -> filter(entry -> entry.getItemId().equals(args[0]));
+          case "streamByTimestampGreaterThanEqual" -> history.stream()
+              .filter(entry -> entry.getTimestamp() >= (Long) args[0]);
+          case "aggregateByUser", "aggregateByItem", "aggregateByItemAndUser",
+              "aggregateByUserAndHour" -> {
+            int settled = settledCount((Long) args[0]);
+            yield aggregates.computeIfAbsent(List.of(method.getName(), settled),
+                key -> aggregate(method.getName(), history.subList(0, settled)));
+          }
+          default -> throw new UnsupportedOperationException(method.getName());
+        });
+    this.userRepository = proxy(UserRepository.class, (proxy, method, args) ->
+        switch (method.getName()) {
+          case "findAll" -> users;
+          case "findAllById" -> findAllById(users, ProstUser::getId, (Iterable<?>) args[0]);
+          case "findById" -> users.stream().filter(user -> user.getId().equals(args[0]))
+              .findFirst();
+          case "findByHidden" -> users.stream()
+              .filter(user -> user.getHidden().equals(args[0])).toList();
+          default -> throw new UnsupportedOperationException(method.getName());
+        });
+    this.itemRepository = proxy(ShopItemRepository.class, (proxy, method, args) ->
+        switch (method.getName()) {
+          case "findAll" -> items;
+          case "findAllById" -> findAllById(items, ShopItem::getId, (Iterable<?>) args[0]);
+          case "findById" -> items.stream().filter(item -> item.getId().equals(args[0]))
+              .findFirst();
+          default -> throw new UnsupportedOperationException(method.getName());
+        });
+  }
+
+  /**
+   * Creates all collectors of the application on top of this shop. The collectors register
+   * themselves globally, so this may only be called once per JVM.
+   */
+  public MetricRebuildEngine createCollectors(int rebuildThreads) {
+    MetricEntityResolver entityResolver = new MetricEntityResolver(userRepository, itemRepository);
+    entityResolver.loadHiddenUsers();
+    new LoyalCustomerMetricCollector(historyRepository, entityResolver);
+    new LuxuryCustomerMetricCollector(historyRepository, entityResolver);
+    new KioskBuyersMetricCollector(historyRepository, entityResolver);
+    new TopSellingItemsMetricCollector(historyRepository, entityResolver);
+    new ItemRevenueMetricCollector(historyRepository, entityResolver);
+    new ItemPurchaseMetricCollector(historyRepository, entityResolver);
+    new HourlyActivityMetricCollector(historyRepository, entityResolver).init();
+    return new MetricRebuildEngine(historyRepository, rebuildThreads);
+  }
+
+  /**
+   * @return a new purchase happening right now, it is not added to the history
+   */
+  public ShopItemHistoryEntry nextPurchase() {
+    return createEntry(Instant.now().toEpochMilli());
+  }
+
+  public List<ProstUser> getUsers() {
+    return users;
+  }
+
+  public List<ProstUser> getVisibleUsers() {
+    return users.stream().filter(user -> !user.getHidden()).toList();
+  }
+
+  public List<ShopItem> getItems() {
+    return items;
+  }
+
+  private ShopItemHistoryEntry createEntry(long timestamp) {
+    // squared, so the first users and items make up most of the history
+    ProstUser user = users.get(skewed(users.size()));
+    ShopItem item = items.get(skewed(items.size()));
+    String bearer = random.nextInt(10) == 0 ? users.get(random.nextInt(users.size())).getId()
+        : user.getId();
+    int amount = 1 + (random.nextInt(5) == 0 ? random.nextInt(4) : 0);
+    BigDecimal total = item.getPrice().multiply(BigDecimal.valueOf(amount));
+
+    TransactionEntry transaction = new TransactionEntry(null, user.getId(), bearer,
+        TransactionType.BUY, BigDecimal.ZERO, total);
+    transaction.setTimestamp(timestamp);
+    ShopItemHistoryEntry entry = new ShopItemHistoryEntry(transaction, item.getId(),
+        item.getPrice(), amount);
+    entry.setId(nextId++);
+    entry.setTimestamp(eveningBias(timestamp));
+    return entry;
+  }
+
+  private int skewed(int size) {
+    double r = random.nextDouble();
+    return (int) (r * r * size);
+  }
+
+  // moves half of the purchases into the evening hours of their day
+  private long eveningBias(long timestamp) {
+    if (random.nextBoolean()) {
+      return timestamp;
+    }
+    long day = Math.floorDiv(timestamp, DAY) * DAY;
+    long evening = day + (17 + random.nextInt(6)) * 3600000L + random.nextInt(3600000);
+    return Math.min(evening, now);
+  }
+
+  private List<ShopItemHistoryEntry> filter(Predicate<ShopItemHistoryEntry> predicate) {
+    return history.stream().filter(predicate).toList();
+  }
+
+  // the history is ordered by timestamp, only the newest entries are not settled yet
+  private int settledCount(long before) {
+    int count = history.size();
+    while (count > 0 && history.get(count - 1).getTimestamp() >= before) {
+      count--;
+    }
+    return count;
+  }
+
+  // same grouping as the AGGREGATE_DAY expression of the repository
+  private static long day(ShopItemHistoryEntry entry) {
+    return Math.floorDiv(entry.getTimestamp(), DAY);
+  }
+
+  private static BigDecimal revenue(ShopItemHistoryEntry entry) {
+    return entry.getItemPrice().multiply(BigDecimal.valueOf(entry.getAmount()));
+  }
+
+  private Object aggregate(String query, List<ShopItemHistoryEntry> settled) {
+    return switch (query) {
+      case "aggregateByUser" -> aggregateByUser(settled);
+      case "aggregateByItem" -> aggregateByItem(settled);
+      case "aggregateByItemAndUser" -> aggregateByItemAndUser(settled);
+      default -> aggregateByUserAndHour(settled);
+    };
+  }
+
+  private List<UserAggregate> aggregateByUser(List<ShopItemHistoryEntry> settled) {
+    Map<List<Object>, List<ShopItemHistoryEntry>> groups = settled.stream()
+        .collect(Collectors.groupingBy(entry -> List.of(entry.getUserId(), day(entry))));
+    List<UserAggregate> rows = new ArrayList<>();
+    groups.forEach((key, entries) -> rows.add(new UserRow((String) key.get(0), (Long) key.get(1),
+        (long) entries.size(),
+        entries.stream().filter(e -> !e.getTransaction().getBearerId().equals(e.getUserId()))
+            .count(),
+        entries.stream().mapToLong(ShopItemHistoryEntry::getAmount).sum(),
+        entries.stream().map(SyntheticShop::revenue).reduce(BigDecimal.ZERO, BigDecimal::add))));
+    return rows;
+  }
+
+  private List<ItemAggregate> aggregateByItem(List<ShopItemHistoryEntry> settled) {
+    Map<List<Object>, List<ShopItemHistoryEntry>> groups = settled.stream()
+        .collect(Collectors.groupingBy(entry -> List.of(entry.getItemId(), day(entry))));
+    List<ItemAggregate> rows = new ArrayList<>();
+    groups.forEach((key, entries) -> rows.add(new ItemRow((String) key.get(0), (Long) key.get(1),
+        entries.stream().mapToLong(ShopItemHistoryEntry::getAmount).sum(),
+        entries.stream().map(SyntheticShop::revenue).reduce(BigDecimal.ZERO, BigDecimal::add))));
+    return rows;
+  }
+
+  private List<ItemUserAggregate> aggregateByItemAndUser(List<ShopItemHistoryEntry> settled) {
+    Map<List<Object>, Long> groups = settled.stream()
+        .collect(Collectors.groupingBy(
+            entry -> List.of(entry.getItemId(), entry.getUserId(), day(entry)),
+            Collectors.summingLong(ShopItemHistoryEntry::getAmount)));
+    List<ItemUserAggregate> rows = new ArrayList<>();
+    groups.forEach((key, amount) -> rows.add(new ItemUserRow((String) key.get(0),
+        (String) key.get(1), (Long) key.get(2), amount)));
+    return rows;
+  }
+
+  private List<UserHourAggregate> aggregateByUserAndHour(List<ShopItemHistoryEntry> settled) {
+    Map<List<Object>, Long> groups = settled.stream()
+        .collect(Collectors.groupingBy(entry -> List.of(entry.getUserId(),
+                Math.floorDiv(entry.getTimestamp(), 3600000L)),
+            Collectors.counting()));
+    List<UserHourAggregate> rows = new ArrayList<>();
+    groups.forEach((key, purchases) -> rows.add(new UserHourRow((String) key.get(0),
+        (Long) key.get(1), purchases)));
+    return rows;
+  }
+
+  private static <T> List<T> findAllById(Collection<T> entities, Function<T, String> idOf,
+      Iterable<?> ids) {
+    Map<String, T> byId = new HashMap<>();
+    entities.forEach(entity -> byId.put(idOf.apply(entity), entity));
+    List<T> found = new ArrayList<>();
+    for (Object id : ids) {
+      T entity = byId.get(id);
+      if (entity != null) {
+        found.add(entity);
+      }
+    }
+    return found;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <R> R proxy(Class<R> repository, InvocationHandler handler) {
+    return (R) Proxy.newProxyInstance(repository.getClassLoader(), new Class<?>[]{repository},
+        (proxy, method, args) -> switch (method.getName()) {
+          case "toString" -> "In-memory " + repository.getSimpleName();
+          case "hashCode" -> System.identityHashCode(proxy);
+          case "equals" -> proxy == args[0];
+          default -> handler.invoke(proxy, method, args);
+        });
+  }
+
+  private record UserRow(String userId, Long day, Long purchases, Long purchasesByOthers,
+                         Long amount, BigDecimal revenue) implements UserAggregate {
+
+    public String getUserId() {
+      return userId;
+    }
+
+    public Long getDay() {
+      return day;
+    }
+
+    public Long getPurchases() {
+      return purchases;
+    }
+
+    public Long getPurchasesByOthers() {
+      return purchasesByOthers;
+    }
+
+    public Long getAmount() {
+      return amount;
+    }
+
+    public BigDecimal getRevenue() {
+      return revenue;
+    }
+  }
+
+  private record ItemRow(String itemId, Long day, Long amount, BigDecimal revenue) implements
+      ItemAggregate {
+
+    public String getItemId() {
+      return itemId;
+    }
+
+    public Long getDay() {
+      return day;
+    }
+
+    public Long getAmount() {
+      return amount;
+    }
+
+    public BigDecimal getRevenue() {
+      return revenue;
+    }
+  }
+
+  private record ItemUserRow(String itemId, String userId, Long day, Long amount) implements
+      ItemUserAggregate {
+
+    public String getItemId() {
+      return itemId;
+    }
+
+    public String getUserId() {
+      return userId;
+    }
+
+    public Long getDay() {
+      return day;
+    }
+
+    public Long getAmount() {
+      return amount;
+    }
+  }
+
+  private record UserHourRow(String userId, Long hour, Long purchases) implements
+      UserHourAggregate {
+
+    public String getUserId() {
+      return userId;
+    }
+
+    public Long getHour() {
+      return hour;
+    }
+
+    public Long getPurchases() {
+      return purchases;
+    }
+  }
+}
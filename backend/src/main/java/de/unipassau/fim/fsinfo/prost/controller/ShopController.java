@@ -2,10 +2,13 @@ package de.unipassau.fim.fsinfo.prost.controller;
 
 import de.unipassau.fim.fsinfo.prost.data.UserAccessRole;
 import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.dto.CheckoutLineDTO;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
 import de.unipassau.fim.fsinfo.prost.security.CustomUserDetailsContextMapper.CustomUserDetails;
 import de.unipassau.fim.fsinfo.prost.service.AuthenticationService;
 import de.unipassau.fim.fsinfo.prost.service.FileStorageService;
+import de.unipassau.fim.fsinfo.prost.service.IdempotencyService;
+import de.unipassau.fim.fsinfo.prost.service.IdempotencyService.Check;
 import de.unipassau.fim.fsinfo.prost.service.ShopService;
 import de.unipassau.fim.fsinfo.prost.service.UserService;
 import java.io.File;
@@ -13,6 +16,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.BiPredicate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.http.HttpHeaders;
@@ -37,6 +41,7 @@ public class ShopController {
   private final FileStorageService fileStorageService;
   private final ShopService shopService;
   private final AuthenticationService authService;
+  private final IdempotencyService idempotencyService;
 
   private final ShopItemRepository itemRepository;
   private final UserService userService;
@@ -44,12 +49,13 @@ public class ShopController {
   @Autowired
   public ShopController(FileStorageService fileStorageService, ShopService shopService,
       ShopItemRepository itemRepository, AuthenticationService authService,
-      UserService userService) {
+      UserService userService, IdempotencyService idempotencyService) {
     this.fileStorageService = fileStorageService;
     this.shopService = shopService;
     this.itemRepository = itemRepository;
     this.authService = authService;
     this.userService = userService;
+    this.idempotencyService = idempotencyService;
   }
 
   @GetMapping("/item/list")
@@ -101,11 +107,35 @@ public class ShopController {
 
   @PostMapping("/item/consume")
   public ResponseEntity<String> consume(@RequestParam String id, @RequestParam String userId,
-      @RequestParam(required = false) Integer n, Authentication authentication) {
+      @RequestParam(required = false) Integer n,
+      @RequestHeader(value = IdempotencyService.HEADER, required = false) String idempotencyKey,
+      Authentication authentication) {
+    int amount = (n == null ? 1 : n);
+    return purchase(userId, idempotencyKey,
+        IdempotencyService.fingerprint("consume", userId, id, amount), authentication,
+        (bearerId, role) -> shopService.consume(id, userId, amount, bearerId, role,
+            idempotencyKey));
+  }
+
+  /**
+   * Buys several items for the user at once, with a single cooldown and transaction.
+   */
+  @PostMapping("/item/checkout")
+  public ResponseEntity<String> checkout(@RequestParam String userId,
+      @RequestBody List<CheckoutLineDTO> lines,
+      @RequestHeader(value = IdempotencyService.HEADER, required = false) String idempotencyKey,
+      Authentication authentication) {
+    return purchase(userId, idempotencyKey,
+        IdempotencyService.fingerprint("checkout", userId, lines), authentication,
+        (bearerId, role) -> shopService.checkout(lines, userId, bearerId, role, idempotencyKey));
+  }
+
+  private ResponseEntity<String> purchase(String userId, String idempotencyKey,
+      String fingerprint, Authentication authentication,
+      BiPredicate<String, UserAccessRole> buy) {
     if (authentication == null) {
       return ResponseEntity.badRequest().build();
     }
-    n = (n == null ? 1 : n);
 
     CustomUserDetails userDetails = (CustomUserDetails) authentication.getPrincipal();
     String bearerId = userDetails.getUsername();
@@ -114,15 +144,11 @@ public class ShopController {
 
     Optional<UserAccessRole> highestPermission = authService.getHighestRole(roles);
 
-    if (shopService.hasBearerCooldown(bearerId)) {
-      return ResponseEntity.badRequest().body("on cooldown");
-    }
-
     if (highestPermission.isEmpty()) {
       return ResponseEntity.badRequest().body("No highest permission found!");
     }
 
-    if (!shopService.hasBearerPermissions(id, userId, n, bearerId, highestPermission.get())) {
+    if (!shopService.hasBearerPermissions(userId, bearerId, highestPermission.get())) {
       if (highestPermission.get() == UserAccessRole.FSINFO) {
         // 🙃🫖
         return ResponseEntity.status(418)
@@ -132,10 +158,44 @@ public class ShopController {
       }
     }
 
-    if (shopService.consume(id, userId,
-        n, bearerId, highestPermission.get())) {
+    if (idempotencyKey != null) {
+      Check check = idempotencyService.begin(idempotencyKey, bearerId, fingerprint);
+      switch (check.status()) {
+        case REPLAYED -> {
+          // bought with the first request already
+          return ResponseEntity.ok()
+              .header(IdempotencyService.REPLAYED_HEADER, String.valueOf(check.transactionId()))
+              .build();
+        }
+        case RUNNING -> {
+          return ResponseEntity.status(HttpStatus.CONFLICT).body("Request is still running");
+        }
+        case REJECTED -> {
+          return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY)
+              .body("Invalid " + IdempotencyService.HEADER);
+        }
+        case MISMATCH -> {
+          return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY)
+              .body(IdempotencyService.HEADER + " was used for another request");
+        }
+      }
+    }
+
+    boolean bought;
+    try {
+      bought = buy.test(bearerId, highestPermission.get());
+    } finally {
+      if (idempotencyKey != null) {
+        idempotencyService.release(idempotencyKey);
+      }
+    }
+    if (bought) {
       return ResponseEntity.ok().build();
     }
+    // the cooldown is checked together with the purchase, so two parallel ones can't both pass
+    if (shopService.hasBearerCooldown(bearerId, highestPermission.get())) {
+      return ResponseEntity.badRequest().body("on cooldown");
+    }
     return ResponseEntity.badRequest().body("Could not consume!");
 
   }
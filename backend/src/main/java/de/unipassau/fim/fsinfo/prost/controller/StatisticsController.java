@@ -1,25 +1,45 @@
 package de.unipassau.fim.fsinfo.prost.controller;
 
-import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
-import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
-import de.unipassau.fim.fsinfo.prost.data.dto.CompositeMetricDTO;
+import de.unipassau.fim.fsinfo.prost.data.UserAccessRole;
+import de.unipassau.fim.fsinfo.prost.data.dto.MetricPositionDTO;
+import de.unipassau.fim.fsinfo.prost.data.dto.MetricQueueStatusDTO;
 import de.unipassau.fim.fsinfo.prost.data.metrics.CompositeMetricType;
 import de.unipassau.fim.fsinfo.prost.data.metrics.ItemMetricType;
 import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
 import de.unipassau.fim.fsinfo.prost.data.metrics.UserMetricType;
-import de.unipassau.fim.fsinfo.prost.service.statistics.AbstractMetricCollector.MetricEntry;
+import de.unipassau.fim.fsinfo.prost.security.CustomUserDetailsContextMapper.CustomUserDetails;
+import de.unipassau.fim.fsinfo.prost.service.AuthenticationService;
+import de.unipassau.fim.fsinfo.prost.service.statistics.AbstractMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricResponseCache;
 import de.unipassau.fim.fsinfo.prost.service.statistics.MetricService;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricStreamService;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricUpdateQueue;
 import de.unipassau.fim.fsinfo.prost.service.statistics.composite.HourlyActivityMetricCollector;
 import de.unipassau.fim.fsinfo.prost.service.statistics.composite.ItemPurchaseMetricCollector;
 import de.unipassau.fim.fsinfo.prost.service.statistics.item.AbstractItemMetricCollector;
 import de.unipassau.fim.fsinfo.prost.service.statistics.user.AbstractUserMetricCollector;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.format.annotation.DateTimeFormat.ISO;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 @RestController
 @RequestMapping("/api/statistics")
@@ -28,43 +48,166 @@ public class StatisticsController {
   private final ItemPurchaseMetricCollector itemPurchaseMetricCollector;
   private final HourlyActivityMetricCollector hourlyActivityMetricCollector;
   private final MetricService metricService;
+  private final MetricUpdateQueue metricUpdateQueue;
+  private final MetricStreamService metricStreamService;
+  private final AuthenticationService authService;
+  private final MetricResponseCache responseCache;
 
   @Autowired
   public StatisticsController(ItemPurchaseMetricCollector metricCollector,
       HourlyActivityMetricCollector hourlyActivityMetricCollector,
-      MetricService metricService) {
+      MetricService metricService, MetricUpdateQueue metricUpdateQueue,
+      MetricStreamService metricStreamService, AuthenticationService authService,
+      MetricResponseCache responseCache) {
     this.hourlyActivityMetricCollector = hourlyActivityMetricCollector;
     this.itemPurchaseMetricCollector = metricCollector;
     this.metricService = metricService;
+    this.metricUpdateQueue = metricUpdateQueue;
+    this.metricStreamService = metricStreamService;
+    this.authService = authService;
+    this.responseCache = responseCache;
   }
 
+  /**
+   * @param from first UTC day of a range of purchases, e.g. "2024-04-01". If from or to is given,
+   *             the range is used instead of the time span. Defaults to the first purchase.
+   * @param to   last UTC day of the range, included. Defaults to today.
+   * @return the entries as JSON, with an ETag. Requests with a matching If-None-Match header get
+   * 304 without a body.
+   */
   @GetMapping("/metric/item")
-  public ResponseEntity<List<MetricEntry<ShopItem>>> getItemMetric(
-      ItemMetricType type, TimeSpan timespan) {
-    return AbstractItemMetricCollector.getMetricEntries(type, timespan).map(ResponseEntity::ok)
-        .orElseGet(() -> ResponseEntity.badRequest().build());
+  public ResponseEntity<byte[]> getItemMetric(
+      ItemMetricType type, TimeSpan timespan,
+      @RequestParam(defaultValue = "0") int offset,
+      @RequestParam(required = false) Integer limit,
+      @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE) LocalDate from,
+      @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE) LocalDate to,
+      WebRequest request) {
+    if (!isValidPage(offset, limit) || !AbstractItemMetricCollector.COLLECTORS.containsKey(type)) {
+      return ResponseEntity.badRequest().build();
+    }
+    return cached(request, AbstractItemMetricCollector.COLLECTORS.get(type),
+        cacheKey("item", type, timespan, offset, limit, from, to),
+        () -> isRange(from, to)
+            ? AbstractItemMetricCollector.getMetricEntries(type, firstDay(from), lastDay(to),
+            offset, toLimit(limit))
+            : AbstractItemMetricCollector.getMetricEntries(type, timespan, offset,
+                toLimit(limit)));
   }
 
+  /**
+   * @param from see {@link #getItemMetric}
+   * @param to   see {@link #getItemMetric}
+   * @return see {@link #getItemMetric}
+   */
   @GetMapping("/metric/user")
-  public ResponseEntity<List<MetricEntry<ProstUser>>> getUserMetric(
-      UserMetricType type, TimeSpan timespan) {
-    return AbstractUserMetricCollector.getMetricEntries(type, timespan).map(ResponseEntity::ok)
-        .orElseGet(() -> ResponseEntity.badRequest().build());
+  public ResponseEntity<byte[]> getUserMetric(
+      UserMetricType type, TimeSpan timespan,
+      @RequestParam(defaultValue = "0") int offset,
+      @RequestParam(required = false) Integer limit,
+      @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE) LocalDate from,
+      @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE) LocalDate to,
+      WebRequest request) {
+    if (!isValidPage(offset, limit) || !AbstractUserMetricCollector.COLLECTORS.containsKey(type)) {
+      return ResponseEntity.badRequest().build();
+    }
+    return cached(request, AbstractUserMetricCollector.COLLECTORS.get(type),
+        cacheKey("user", type, timespan, offset, limit, from, to),
+        () -> isRange(from, to)
+            ? AbstractUserMetricCollector.getMetricEntries(type, firstDay(from), lastDay(to),
+            offset, toLimit(limit))
+            : AbstractUserMetricCollector.getMetricEntries(type, timespan, offset,
+                toLimit(limit)));
+  }
+
+  @GetMapping("/metric/user/me")
+  public ResponseEntity<MetricPositionDTO> getPersonalUserMetric(
+      UserMetricType type, TimeSpan timespan, Authentication authentication) {
+    if (authentication == null || type == null || timespan == null) {
+      return ResponseEntity.badRequest().build();
+    }
+    CustomUserDetails userDetails = (CustomUserDetails) authentication.getPrincipal();
+
+    return AbstractUserMetricCollector.getPosition(type, timespan, userDetails.getUsername())
+        .map(ResponseEntity::ok)
+        .orElseGet(() -> ResponseEntity.notFound().build());
   }
 
+  /**
+   * @param zone time zone of the hours of {@link CompositeMetricType#HOURLY_ACTIVITY}, e.g.
+   *             "Europe/Berlin". Defaults to the configured ZONE_ID. The days of a range are in
+   *             this zone as well.
+   * @param from see {@link #getItemMetric}
+   * @param to   see {@link #getItemMetric}
+   * @return see {@link #getItemMetric}
+   */
   @GetMapping("/metric/composite")
-  public ResponseEntity<List<CompositeMetricDTO>> getCompositeMetric(
-      CompositeMetricType type, TimeSpan timespan) {
+  public ResponseEntity<byte[]> getCompositeMetric(
+      CompositeMetricType type, TimeSpan timespan,
+      @RequestParam(defaultValue = "0") int offset,
+      @RequestParam(required = false) Integer limit,
+      @RequestParam(required = false) String zone,
+      @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE) LocalDate from,
+      @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE) LocalDate to,
+      WebRequest request) {
+    if (!isValidPage(offset, limit)) {
+      return ResponseEntity.badRequest().build();
+    }
+    String key = cacheKey("composite", type, timespan, offset, limit, from, to, zone);
     if (type == CompositeMetricType.ITEM_USER) {
-      return itemPurchaseMetricCollector.getCompositeMetricEntries(timespan).map(ResponseEntity::ok)
-          .orElseGet(() -> ResponseEntity.badRequest().build());
+      return cached(request, itemPurchaseMetricCollector, key, () -> isRange(from, to)
+          ? itemPurchaseMetricCollector.getCompositeMetricEntries(firstDay(from), lastDay(to),
+          offset, toLimit(limit))
+          : itemPurchaseMetricCollector.getCompositeMetricEntries(timespan, offset,
+              toLimit(limit)));
     } else if (type == CompositeMetricType.HOURLY_ACTIVITY) {
-      return hourlyActivityMetricCollector.getCompositeMetricEntries(timespan)
-          .map(ResponseEntity::ok)
-          .orElseGet(() -> ResponseEntity.badRequest().build());
-    } else {
+      if (zone == null) {
+        return cached(request, hourlyActivityMetricCollector, key, () -> isRange(from, to)
+            ? hourlyActivityMetricCollector.getCompositeMetricEntries(firstDay(from), lastDay(to),
+            offset, toLimit(limit))
+            : hourlyActivityMetricCollector.getCompositeMetricEntries(timespan, offset,
+                toLimit(limit)));
+      }
+      ZoneId zoneId;
+      try {
+        zoneId = ZoneId.of(zone);
+      } catch (DateTimeException e) {
+        return ResponseEntity.badRequest().build();
+      }
+      return cached(request, hourlyActivityMetricCollector, key, () -> isRange(from, to)
+          ? hourlyActivityMetricCollector.getCompositeMetricEntries(firstDay(from), lastDay(to),
+          offset, toLimit(limit), zoneId)
+          : hourlyActivityMetricCollector.getCompositeMetricEntries(timespan, offset,
+              toLimit(limit), zoneId));
+    }
+    return ResponseEntity.badRequest().build();
+  }
+
+  /**
+   * Pushes changes of the given leaderboards as "metric" events and new purchases as "purchase"
+   * events (for users that may read the shop history), instead of polling the endpoints above.
+   * Updates are sent at most once per METRIC_STREAM_INTERVAL.
+   *
+   * @param user  the user leaderboards to follow
+   * @param item  the item leaderboards to follow
+   * @param limit number of places per leaderboard (1-100)
+   */
+  @GetMapping(value = "/metric/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public ResponseEntity<SseEmitter> streamMetrics(
+      @RequestParam(required = false) List<UserMetricType> user,
+      @RequestParam(required = false) List<ItemMetricType> item,
+      TimeSpan timespan,
+      @RequestParam(defaultValue = "10") int limit,
+      Authentication authentication) {
+    if (authentication == null || timespan == null || limit < 1 || limit > 100) {
       return ResponseEntity.badRequest().build();
     }
+    Collection<UserAccessRole> roles = authService.getRoles(authentication);
+    boolean withPurchases = roles.contains(UserAccessRole.KAFFEEKASSE) || roles.contains(
+        UserAccessRole.KIOSK);
+
+    return ResponseEntity.ok(metricStreamService.subscribe(user == null ? List.of() : user,
+        item == null ? List.of() : item, timespan, limit, withPurchases));
   }
 
   @PostMapping("/reset")
@@ -72,4 +215,54 @@ public class StatisticsController {
     return ResponseEntity.ok(metricService.resetMetric() + "");
   }
 
+  @GetMapping("/queue")
+  public ResponseEntity<MetricQueueStatusDTO> getQueueStatus() {
+    return ResponseEntity.ok(metricUpdateQueue.getStatus());
+  }
+
+  /**
+   * Answers the request from the cached JSON of the collector's current version. The ETag is taken
+   * before the entries are read, so a purchase in between only leads to another read later.
+   */
+  private ResponseEntity<byte[]> cached(WebRequest request, AbstractMetricCollector<?, ?> collector,
+      String key, Supplier<? extends Optional<?>> loader) {
+    String eTag = MetricResponseCache.getETag(collector);
+    if (request.checkNotModified(eTag)) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+    }
+    return responseCache.get(key, eTag, loader)
+        .map(json -> ResponseEntity.ok().eTag(eTag).contentType(MediaType.APPLICATION_JSON)
+            .body(json))
+        .orElseGet(() -> ResponseEntity.badRequest().build());
+  }
+
+  private static String cacheKey(Object... parameters) {
+    StringBuilder key = new StringBuilder();
+    for (Object parameter : parameters) {
+      key.append(parameter).append('|');
+    }
+    return key.toString();
+  }
+
+  private static boolean isValidPage(int offset, Integer limit) {
+    return offset >= 0 && (limit == null || limit >= 0);
+  }
+
+  private static boolean isRange(LocalDate from, LocalDate to) {
+    return from != null || to != null;
+  }
+
+  private static LocalDate firstDay(LocalDate from) {
+    return from != null ? from : LocalDate.EPOCH;
+  }
+
+  private static LocalDate lastDay(LocalDate to) {
+    return to != null ? to : LocalDate.now(ZoneOffset.UTC);
+  }
+
+  // without a limit the whole metric is returned
+  private static int toLimit(Integer limit) {
+    return limit == null ? Integer.MAX_VALUE : limit;
+  }
+
 }
\ No newline at end of file
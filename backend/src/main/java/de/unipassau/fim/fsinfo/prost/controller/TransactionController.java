@@ -3,15 +3,19 @@ package de.unipassau.fim.fsinfo.prost.controller;
 import de.unipassau.fim.fsinfo.prost.data.TransactionType;
 import de.unipassau.fim.fsinfo.prost.data.dao.TransactionEntry;
 import de.unipassau.fim.fsinfo.prost.security.CustomUserDetailsContextMapper.CustomUserDetails;
+import de.unipassau.fim.fsinfo.prost.service.IdempotencyService;
+import de.unipassau.fim.fsinfo.prost.service.IdempotencyService.Check;
 import de.unipassau.fim.fsinfo.prost.service.TransactionService;
 import java.math.BigDecimal;
 import java.util.Optional;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -21,10 +25,13 @@ import org.springframework.web.bind.annotation.RestController;
 public class TransactionController {
 
   private final TransactionService transactionService;
+  private final IdempotencyService idempotencyService;
 
   @Autowired
-  public TransactionController(TransactionService transactionService) {
+  public TransactionController(TransactionService transactionService,
+      IdempotencyService idempotencyService) {
     this.transactionService = transactionService;
+    this.idempotencyService = idempotencyService;
   }
 
   @PostMapping("/change")
@@ -53,24 +60,56 @@ public class TransactionController {
 
   @PostMapping("/deposit")
   public ResponseEntity<BigDecimal> deposit(@RequestParam String id,
-      @RequestParam String value, Authentication authentication) {
+      @RequestParam String value,
+      @RequestHeader(value = IdempotencyService.HEADER, required = false) String idempotencyKey,
+      Authentication authentication) {
     if (authentication == null || value == null || id == null) {
       return ResponseEntity.badRequest().build();
     }
 
     CustomUserDetails userDetails = (CustomUserDetails) authentication.getPrincipal();
 
+    BigDecimal money;
     try {
-      BigDecimal money = new BigDecimal(value);
+      money = new BigDecimal(value);
+    } catch (NumberFormatException e) {
+      return ResponseEntity.badRequest().build();
+    }
 
+    if (idempotencyKey != null) {
+      // 10 and 10.00 are the same deposit
+      String fingerprint = IdempotencyService.fingerprint("deposit", id,
+          money.stripTrailingZeros().toPlainString());
+      Check check = idempotencyService.begin(idempotencyKey, userDetails.getUsername(),
+          fingerprint);
+      switch (check.status()) {
+        case REPLAYED -> {
+          // deposited with the first request already
+          return ResponseEntity.ok()
+              .header(IdempotencyService.REPLAYED_HEADER, String.valueOf(check.transactionId()))
+              .build();
+        }
+        case RUNNING -> {
+          return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        case REJECTED, MISMATCH -> {
+          return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).build();
+        }
+      }
+    }
+
+    try {
       Optional<TransactionEntry> transaction = transactionService.moneyTransfer(
-          Optional.empty(), id, userDetails.getUsername(), money, TransactionType.DEPOSIT);
+          Optional.empty(), id, userDetails.getUsername(), money, TransactionType.DEPOSIT,
+          idempotencyKey);
 
       if (transaction.isPresent()) {
         return ResponseEntity.ok().build();
       }
-    } catch (NumberFormatException e) {
-      return ResponseEntity.badRequest().build();
+    } finally {
+      if (idempotencyKey != null) {
+        idempotencyService.release(idempotencyKey);
+      }
     }
     return ResponseEntity.badRequest().build();
   }
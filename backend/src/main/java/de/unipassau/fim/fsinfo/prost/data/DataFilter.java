@@ -1,6 +1,7 @@
 package de.unipassau.fim.fsinfo.prost.data;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.Locale;
@@ -61,6 +62,17 @@ public class DataFilter {
     return df.format(amount);
   }
 
+  /**
+   * Converts an amount of money to whole cents. Valid amounts have at most two decimal places (see
+   * {@link #isValidMoney(BigDecimal)}), anything smaller is rounded.
+   */
+  public static long toCents(BigDecimal amount) {
+    if (amount == null) {
+      return 0;
+    }
+    return amount.movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+  }
+
   public static boolean isValidMoney(BigDecimal amount) {
     if (amount == null) {
       return false;
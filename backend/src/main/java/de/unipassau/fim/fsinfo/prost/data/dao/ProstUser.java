@@ -6,10 +6,13 @@ import jakarta.persistence.Id;
 import java.math.BigDecimal;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.DynamicUpdate;
 
 @Data
 @NoArgsConstructor
 @Entity(name = "PRoST_User")
+// only changed columns are written, so saving a user never overwrites the balance of a purchase
+@DynamicUpdate
 public class ProstUser {
 
   @Id
@@ -25,6 +28,9 @@ public class ProstUser {
   private Boolean enabled;
   private Boolean hidden;
   private Boolean kiosk = true;
+  // increased by every balance update of the UserRepository
+  @Column(nullable = false)
+  private Long version = 0L;
 
   public ProstUser(String id, String displayName, String email, Boolean enabled) {
     this.id = id;
@@ -41,6 +41,13 @@ public class TransactionEntry {
   @Column(nullable = false)
   private Long timestamp;
 
+  // sent by the client with the request that created the transaction, see IdempotencyService
+  @Column(unique = true)
+  private String idempotencyKey;
+
+  // identifies the request that sent the key, so the key can not be reused for another one
+  private String idempotencyFingerprint;
+
   public TransactionEntry(String senderId, String receiverId, String bearerId,
       TransactionType type,
       BigDecimal previous, BigDecimal amount) {
@@ -0,0 +1,7 @@
+package de.unipassau.fim.fsinfo.prost.data.dto;
+
+import java.math.BigDecimal;
+
+public record BalanceDTO(String id, BigDecimal balance) {
+
+}
@@ -0,0 +1,8 @@
+package de.unipassau.fim.fsinfo.prost.data.dto;
+
+/**
+ * One line of a checkout: an item and how often it is bought.
+ */
+public record CheckoutLineDTO(String itemId, int amount) {
+
+}
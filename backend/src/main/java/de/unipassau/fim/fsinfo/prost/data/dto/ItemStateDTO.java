@@ -0,0 +1,14 @@
+package de.unipassau.fim.fsinfo.prost.data.dto;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import java.math.BigDecimal;
+
+/**
+ * The fields of an item that are needed for a purchase. Read without loading the whole item.
+ */
+public record ItemStateDTO(String id, BigDecimal price, Boolean enabled) {
+
+  public static ItemStateDTO of(ShopItem item) {
+    return new ItemStateDTO(item.getId(), item.getPrice(), item.getEnabled());
+  }
+}
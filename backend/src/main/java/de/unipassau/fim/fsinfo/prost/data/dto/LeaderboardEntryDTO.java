@@ -0,0 +1,11 @@
+package de.unipassau.fim.fsinfo.prost.data.dto;
+
+import java.math.BigDecimal;
+
+/**
+ * @param position 1-based place in the leaderboard
+ */
+public record LeaderboardEntryDTO(int position, String key, String displayName,
+                                  BigDecimal value) {
+
+}
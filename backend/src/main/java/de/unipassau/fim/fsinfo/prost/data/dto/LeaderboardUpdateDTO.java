@@ -0,0 +1,16 @@
+package de.unipassau.fim.fsinfo.prost.data.dto;
+
+import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
+import java.util.List;
+
+/**
+ * A change of a leaderboard, relative to the last update of the same leaderboard.
+ *
+ * @param type    the UserMetricType or ItemMetricType of the leaderboard
+ * @param size    number of places the leaderboard has now, places beyond it were removed
+ * @param changed the places that are new or changed, all places in the first update
+ */
+public record LeaderboardUpdateDTO(String type, TimeSpan timeSpan, int size,
+                                   List<LeaderboardEntryDTO> changed) {
+
+}
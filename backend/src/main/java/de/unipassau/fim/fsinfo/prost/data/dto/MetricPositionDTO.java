@@ -0,0 +1,11 @@
+package de.unipassau.fim.fsinfo.prost.data.dto;
+
+import java.math.BigDecimal;
+
+/**
+ * @param position 1-based place in the metric
+ * @param total    number of ranked entries
+ */
+public record MetricPositionDTO(String key, int position, int total, BigDecimal value) {
+
+}
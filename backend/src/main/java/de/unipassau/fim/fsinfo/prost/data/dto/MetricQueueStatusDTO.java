@@ -0,0 +1,12 @@
+package de.unipassau.fim.fsinfo.prost.data.dto;
+
+/**
+ * @param depth           number of purchases waiting to be applied to the metrics
+ * @param lagMillis       time the oldest waiting purchase is queued already
+ * @param lastLagMillis   time between commit and update of the last applied purchase
+ * @param appliedByCaller purchases applied without the queue, because it was full
+ */
+public record MetricQueueStatusDTO(int depth, int capacity, long lagMillis, long lastLagMillis,
+                                   long processed, long appliedByCaller) {
+
+}
@@ -0,0 +1,9 @@
+package de.unipassau.fim.fsinfo.prost.data.dto;
+
+/**
+ * A purchase as pushed to dashboards. Only holds what is shown, no balance or transaction.
+ */
+public record PurchaseEventDTO(String itemId, String itemDisplayName, String userDisplayName,
+                               int amount, Long timestamp) {
+
+}
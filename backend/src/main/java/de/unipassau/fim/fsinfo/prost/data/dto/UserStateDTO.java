@@ -0,0 +1,13 @@
+package de.unipassau.fim.fsinfo.prost.data.dto;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+
+/**
+ * The flags of a user that are checked before a purchase. Read without loading the whole user.
+ */
+public record UserStateDTO(String id, Boolean enabled, Boolean hidden, Boolean kiosk) {
+
+  public static UserStateDTO of(ProstUser user) {
+    return new UserStateDTO(user.getId(), user.getEnabled(), user.getHidden(), user.getKiosk());
+  }
+}
@@ -1,18 +1,25 @@
 package de.unipassau.fim.fsinfo.prost.data.repositories;
 
 import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
+import jakarta.persistence.QueryHint;
+import java.math.BigDecimal;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
+import org.hibernate.jpa.HibernateHints;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 
 public interface ShopItemHistoryRepository extends JpaRepository<ShopItemHistoryEntry, Long> {
 
   List<ShopItemHistoryEntry> findByUserId(String userId);
 
+  List<ShopItemHistoryEntry> findByItemId(String itemId);
+
   Page<ShopItemHistoryEntry> findByUserIdEquals(String username, Pageable pageable);
 
   List<ShopItemHistoryEntry> findByUserIdAndTimestampBetween(String userId, Long startTimestamp,
@@ -29,4 +36,114 @@ public interface ShopItemHistoryRepository extends JpaRepository<ShopItemHistory
       @Param("startTimestamp") Long startTimestamp,
       @Param("endTimestamp") Long endTimestamp
   );
+
+  /**
+   * Streams the entries with a timestamp from the given one on, in the order they were added. Has
+   * to be consumed inside a transaction and closed afterwards.
+   */
+  @Query("SELECT entry FROM PRoST_ShopItemHistoryEntry entry " +
+      "JOIN FETCH entry.transaction " +
+      "LEFT JOIN FETCH entry.refundTransaction " +
+      "WHERE entry.timestamp >= :since " +
+      "ORDER BY entry.id ASC")
+  @QueryHints({
+      @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"),
+      @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+  })
+  Stream<ShopItemHistoryEntry> streamByTimestampGreaterThanEqual(@Param("since") Long since);
+
+  /*
+   * Aggregates for rebuilding the metrics. The rows are grouped by their key and by the UTC day of
+   * the purchase (milliseconds / 86400000), every day is kept by the metric windows. Only settled
+   * entries older than :before are included, so queries running in different transactions see the
+   * same history. The newer ones are read one by one with streamByTimestampGreaterThanEqual.
+   */
+
+  String AGGREGATE_DAY = "FLOOR(entry.timestamp / 86400000)";
+
+  @Query("SELECT entry.userId AS userId, " + AGGREGATE_DAY + " AS day, "
+      + "COUNT(entry) AS purchases, "
+      + "SUM(CASE WHEN entry.transaction.bearerId <> entry.userId THEN 1 ELSE 0 END) "
+      + "AS purchasesByOthers, "
+      + "SUM(entry.amount) AS amount, "
+      + "SUM(entry.itemPrice * entry.amount) AS revenue "
+      + "FROM PRoST_ShopItemHistoryEntry entry "
+      + "WHERE entry.timestamp < :before "
+      + "GROUP BY entry.userId, " + AGGREGATE_DAY)
+  List<UserAggregate> aggregateByUser(@Param("before") Long before);
+
+  @Query("SELECT entry.itemId AS itemId, " + AGGREGATE_DAY + " AS day, "
+      + "SUM(entry.amount) AS amount, "
+      + "SUM(entry.itemPrice * entry.amount) AS revenue "
+      + "FROM PRoST_ShopItemHistoryEntry entry "
+      + "WHERE entry.timestamp < :before "
+      + "GROUP BY entry.itemId, " + AGGREGATE_DAY)
+  List<ItemAggregate> aggregateByItem(@Param("before") Long before);
+
+  @Query("SELECT entry.itemId AS itemId, entry.userId AS userId, " + AGGREGATE_DAY + " AS day, "
+      + "SUM(entry.amount) AS amount "
+      + "FROM PRoST_ShopItemHistoryEntry entry "
+      + "WHERE entry.timestamp < :before "
+      + "GROUP BY entry.itemId, entry.userId, " + AGGREGATE_DAY)
+  List<ItemUserAggregate> aggregateByItemAndUser(@Param("before") Long before);
+
+  /**
+   * Number of purchases per user and UTC hour, counted in hours since the epoch. The hour of day is
+   * derived later for the requested time zone.
+   */
+  @Query("SELECT entry.userId AS userId, FLOOR(entry.timestamp / 3600000) AS hour, "
+      + "COUNT(entry) AS purchases "
+      + "FROM PRoST_ShopItemHistoryEntry entry "
+      + "WHERE entry.timestamp < :before "
+      + "GROUP BY entry.userId, FLOOR(entry.timestamp / 3600000)")
+  List<UserHourAggregate> aggregateByUserAndHour(@Param("before") Long before);
+
+  interface UserAggregate {
+
+    String getUserId();
+
+    Long getDay();
+
+    Long getPurchases();
+
+    /**
+     * Purchases where the bearer was not the user (e.g. the kiosk).
+     */
+    Long getPurchasesByOthers();
+
+    Long getAmount();
+
+    BigDecimal getRevenue();
+  }
+
+  interface ItemAggregate {
+
+    String getItemId();
+
+    Long getDay();
+
+    Long getAmount();
+
+    BigDecimal getRevenue();
+  }
+
+  interface ItemUserAggregate {
+
+    String getItemId();
+
+    String getUserId();
+
+    Long getDay();
+
+    Long getAmount();
+  }
+
+  interface UserHourAggregate {
+
+    String getUserId();
+
+    Long getHour();
+
+    Long getPurchases();
+  }
 }
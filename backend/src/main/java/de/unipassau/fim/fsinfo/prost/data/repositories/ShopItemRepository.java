@@ -1,8 +1,12 @@
 package de.unipassau.fim.fsinfo.prost.data.repositories;
 
 import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.dto.ItemStateDTO;
+import java.util.Optional;
 import org.springframework.data.jpa.repository.JpaRepository;
 
 public interface ShopItemRepository extends JpaRepository<ShopItem, String> {
 
+  Optional<ItemStateDTO> findStateById(String id);
+
 }
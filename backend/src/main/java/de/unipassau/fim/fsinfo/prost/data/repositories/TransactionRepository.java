@@ -1,6 +1,7 @@
 package de.unipassau.fim.fsinfo.prost.data.repositories;
 
 import de.unipassau.fim.fsinfo.prost.data.dao.TransactionEntry;
+import java.util.Optional;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
@@ -8,4 +9,6 @@ import org.springframework.data.jpa.repository.JpaRepository;
 public interface TransactionRepository extends JpaRepository<TransactionEntry, Long> {
 
   Page<TransactionEntry> findByReceiverId(String receiverId, Pageable pageable);
+
+  Optional<TransactionEntry> findByIdempotencyKey(String idempotencyKey);
 }
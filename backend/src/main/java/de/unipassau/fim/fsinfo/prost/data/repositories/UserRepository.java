@@ -1,8 +1,15 @@
 package de.unipassau.fim.fsinfo.prost.data.repositories;
 
 import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.dto.BalanceDTO;
+import de.unipassau.fim.fsinfo.prost.data.dto.UserStateDTO;
+import java.math.BigDecimal;
 import java.util.List;
+import java.util.Optional;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 @Repository
@@ -10,4 +17,33 @@ public interface UserRepository extends JpaRepository<ProstUser, String> {
 
   List<ProstUser> findByHidden(Boolean hidden);
 
+  /**
+   * Reads only the flags, the user is not loaded into the persistence context.
+   */
+  Optional<UserStateDTO> findStateById(String id);
+
+  /**
+   * Reads only the balance, after {@link #addToBalance} it is the one written by the update.
+   */
+  Optional<BalanceDTO> findBalanceById(String id);
+
+  /**
+   * Adds to the balance and the total spent in the database. The row stays locked until the
+   * transaction ends, and as the version always changes, the transaction reads its own balance
+   * afterwards whatever its isolation level. Users loaded before still have the old balance.
+   *
+   * @return 1 if the balance was updated, 0 if the user does not exist
+   */
+  @Modifying(flushAutomatically = true)
+  @Query("UPDATE PRoST_User prostUser " +
+      "SET prostUser.balance = prostUser.balance + :delta, " +
+      "prostUser.totalSpent = prostUser.totalSpent + :spent, " +
+      "prostUser.version = prostUser.version + 1 " +
+      "WHERE prostUser.id = :id")
+  int addToBalance(
+      @Param("id") String id,
+      @Param("delta") BigDecimal delta,
+      @Param("spent") BigDecimal spent
+  );
+
 }
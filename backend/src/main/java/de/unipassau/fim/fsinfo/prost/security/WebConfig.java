@@ -2,6 +2,7 @@ package de.unipassau.fim.fsinfo.prost.security;
 
 import de.unipassau.fim.fsinfo.prost.data.UserAccessRole;
 import de.unipassau.fim.fsinfo.prost.security.CustomUserDetailsContextMapper.CustomUserDetails;
+import jakarta.servlet.DispatcherType;
 import java.util.Arrays;
 import java.util.List;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -56,7 +57,8 @@ public class WebConfig implements WebMvcConfigurer {
       "/api/shop/**",
       "/api/invoice/**",
       "/api/transaction/**",
-      "/api/statistics/**"
+      "/api/statistics/**",
+      "/actuator/**"
   };
 
   @Autowired
@@ -81,6 +83,8 @@ public class WebConfig implements WebMvcConfigurer {
     return http.cors(cors -> cors.configurationSource(corsConfigurationSource()))
         .csrf(AbstractHttpConfigurer::disable)
         .authorizeHttpRequests(auth -> auth
+            // streamed responses were authorized when the stream was opened
+            .dispatcherTypeMatchers(DispatcherType.ASYNC).permitAll()
             .requestMatchers(AUTH_WHITELIST).permitAll()
             .requestMatchers(USER_SPACE)
             .access((authentication, object) ->
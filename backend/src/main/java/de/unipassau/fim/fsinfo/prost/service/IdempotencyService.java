@@ -0,0 +1,211 @@
+package de.unipassau.fim.fsinfo.prost.service;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.TransactionEntry;
+import de.unipassau.fim.fsinfo.prost.data.repositories.TransactionRepository;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Lets clients repeat a purchase or deposit (e.g. after the response got lost) without paying
+ * twice. A request may send an Idempotency-Key, which is stored with the TransactionEntry it
+ * created. The column is unique, so a key can only ever create one transaction. Keys used within
+ * the last IDEMPOTENCY_TTL are also kept in memory, so retries are answered without a query.
+ * <p>
+ * A fingerprint of the request (endpoint, user, items and amounts) is stored next to the key. A
+ * key sent again with another request is rejected instead of answered like the first one.
+ * <p>
+ * Only successful requests are recorded. A request that failed did not change any balance and is
+ * simply executed again.
+ */
+@Service
+public class IdempotencyService {
+
+  public static final String HEADER = "Idempotency-Key";
+  // set on replayed responses, the id of the transaction the first request created
+  public static final String REPLAYED_HEADER = "Idempotency-Replayed";
+  // the length of the database column
+  public static final int MAX_KEY_LENGTH = 255;
+
+  /**
+   * What to do with a request that sent a key.
+   */
+  public enum Status {
+    // not used yet, the key is reserved until release is called
+    NEW,
+    // already created a transaction, the request must not be executed again
+    REPLAYED,
+    // a request with the same key is executed right now
+    RUNNING,
+    // used by another bearer, or not a valid key
+    REJECTED,
+    // already used for a request with another fingerprint
+    MISMATCH
+  }
+
+  /**
+   * @param transactionId the transaction created by the first request, only set if REPLAYED
+   */
+  public record Check(Status status, Long transactionId) {
+
+  }
+
+  private final TransactionRepository history;
+  private final long ttl;
+  private final int maxSize;
+
+  private final Map<String, UsedKey> usedKeys = new ConcurrentHashMap<>();
+  // the fingerprints of the requests that are executed right now
+  private final Map<String, String> runningKeys = new ConcurrentHashMap<>();
+
+  @Autowired
+  public IdempotencyService(TransactionRepository history,
+      @Value("${IDEMPOTENCY_TTL:86400000}") long ttl,
+      @Value("${IDEMPOTENCY_CACHE_SIZE:10000}") int maxSize) {
+    this.history = history;
+    this.ttl = Math.max(0, ttl);
+    this.maxSize = Math.max(1, maxSize);
+  }
+
+  /**
+   * @return a fingerprint of the request, to be passed to {@link #begin}
+   */
+  public static String fingerprint(Object... parts) {
+    StringBuilder request = new StringBuilder();
+    for (Object part : parts) {
+      request.append(part).append('\n');
+    }
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256")
+          .digest(request.toString().getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Checks the key before a request is executed. If it returns {@link Status#NEW},
+   * {@link #release(String)} has to be called once the request is done.
+   *
+   * @param fingerprint see {@link #fingerprint(Object...)}
+   */
+  public Check begin(String key, String bearerId, String fingerprint) {
+    if (key.isBlank() || key.length() > MAX_KEY_LENGTH) {
+      return new Check(Status.REJECTED, null);
+    }
+
+    Optional<UsedKey> used = find(key);
+    if (used.isPresent()) {
+      return checkOf(used.get(), bearerId, fingerprint);
+    }
+    String running = runningKeys.putIfAbsent(key, fingerprint);
+    if (running != null) {
+      return new Check(running.equals(fingerprint) ? Status.RUNNING : Status.MISMATCH, null);
+    }
+
+    // a request with the key may have been completed since the lookup above
+    UsedKey completed = usedKeys.get(key);
+    if (completed != null) {
+      runningKeys.remove(key);
+      return checkOf(completed, bearerId, fingerprint);
+    }
+    return new Check(Status.NEW, null);
+  }
+
+  /**
+   * @return the fingerprint the key was reserved with by {@link #begin}, null if it is not
+   */
+  public String getFingerprint(String key) {
+    return runningKeys.get(key);
+  }
+
+  public void release(String key) {
+    runningKeys.remove(key);
+  }
+
+  /**
+   * Remembers the key of the transaction once it is committed, before the request releases it.
+   */
+  public void record(TransactionEntry entry) {
+    if (entry.getIdempotencyKey() == null) {
+      return;
+    }
+    UsedKey used = new UsedKey(entry.getId(), entry.getBearerId(),
+        entry.getIdempotencyFingerprint(), Instant.now().toEpochMilli() + ttl);
+
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          put(entry.getIdempotencyKey(), used);
+        }
+      });
+    } else {
+      put(entry.getIdempotencyKey(), used);
+    }
+  }
+
+  int size() {
+    return usedKeys.size();
+  }
+
+  private Optional<UsedKey> find(String key) {
+    UsedKey used = usedKeys.get(key);
+    if (used != null) {
+      if (used.expiresAt() > Instant.now().toEpochMilli()) {
+        return Optional.of(used);
+      }
+      usedKeys.remove(key, used);
+    }
+
+    Optional<UsedKey> stored = history.findByIdempotencyKey(key)
+        .map(entry -> new UsedKey(entry.getId(), entry.getBearerId(),
+            entry.getIdempotencyFingerprint(), Instant.now().toEpochMilli() + ttl));
+    stored.ifPresent(value -> put(key, value));
+    return stored;
+  }
+
+  private void put(String key, UsedKey used) {
+    if (usedKeys.size() >= maxSize) {
+      long now = Instant.now().toEpochMilli();
+      usedKeys.values().removeIf(value -> value.expiresAt() <= now);
+      // the cache is cleared once it is full of keys that are still valid, the database has them
+      if (usedKeys.size() >= maxSize) {
+        usedKeys.clear();
+      }
+    }
+    usedKeys.put(key, used);
+  }
+
+  private static Check checkOf(UsedKey used, String bearerId, String fingerprint) {
+    if (!used.bearerId().equals(bearerId)) {
+      System.out.println("[IS] :: key of transaction " + used.transactionId()
+          + " was sent by another bearer " + bearerId);
+      return new Check(Status.REJECTED, null);
+    }
+    // transactions stored before fingerprints were recorded have none
+    if (used.fingerprint() != null && !Objects.equals(used.fingerprint(), fingerprint)) {
+      System.out.println("[IS] :: key of transaction " + used.transactionId()
+          + " was sent with another request");
+      return new Check(Status.MISMATCH, null);
+    }
+    System.out.println("[IS] :: replayed transaction " + used.transactionId());
+    return new Check(Status.REPLAYED, used.transactionId());
+  }
+
+  private record UsedKey(Long transactionId, String bearerId, String fingerprint,
+      long expiresAt) {
+
+  }
+}
@@ -8,6 +8,8 @@ import de.unipassau.fim.fsinfo.prost.data.dto.InvoiceDTO;
 import de.unipassau.fim.fsinfo.prost.data.repositories.InvoiceRepository;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
 import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import java.math.BigDecimal;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -120,7 +122,10 @@ public class InvoiceService {
       List<ShopItemHistoryEntry> shopEntries = shopHistory.findByUserIdAndTimestampBetween(
           invoice.getUserId(), invoice.getPreviousInvoiceTimestamp(), invoice.getTimestamp());
 
-      if (mail.sendInvoice(invoice, getItemAmounts(shopEntries))) {
+      Timer.Sample sample = Timer.start();
+      boolean sent = mail.sendInvoice(invoice, getItemAmounts(shopEntries));
+      sample.stop(Metrics.timer("prost.invoice.mail", "outcome", sent ? "sent" : "failed"));
+      if (sent) {
         successfulSends.add(id);
         invoice.setMailed(true);
         invoiceRepository.save(invoice);
@@ -145,7 +150,7 @@ public class InvoiceService {
       }
 
       ProstUser user = user0.get();
-      if (createInvoice(user).isPresent()) {
+      if (Metrics.timer("prost.invoice.create").record(() -> createInvoice(user)).isPresent()) {
         successful.add(id);
       }
     }
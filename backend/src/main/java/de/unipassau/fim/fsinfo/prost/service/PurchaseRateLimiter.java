@@ -0,0 +1,181 @@
+package de.unipassau.fim.fsinfo.prost.service;
+
+import de.unipassau.fim.fsinfo.prost.data.UserAccessRole;
+import io.micrometer.core.instrument.Metrics;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Limits how often a bearer may buy, as a token bucket per bearer: a bucket holds up to "burst"
+ * purchases and refills one purchase per cooldown. Each bucket is a single long, the time at which
+ * it is full again, so a purchase is checked and recorded with one compare-and-set. Two parallel
+ * purchases of a bearer can not both take the last token.
+ * <p>
+ * A full bucket is the same as no bucket, so buckets are removed once they are full again. The
+ * table only holds the bearers that bought within the last cooldowns.
+ * <p>
+ * The limits default to one purchase per BUY_COOLDOWN. BUY_LIMITS overrides them per role, e.g.
+ * "KIOSK:2000:5,KAFFEEKASSE:1000:10" (role:cooldown in milliseconds:burst), since a kiosk buys
+ * for many users.
+ */
+@Component
+public class PurchaseRateLimiter {
+
+  // marks a bucket that was removed from the table, it must not be used any more
+  private static final long REMOVED = Long.MIN_VALUE;
+
+  private final Map<UserAccessRole, Limit> limits = new EnumMap<>(UserAccessRole.class);
+  private final boolean metricsEnabled;
+  // the longest time a bucket needs to fill up, buckets are swept at most once per this time
+  private final long sweepInterval;
+
+  private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+  private final AtomicLong lastSweep = new AtomicLong();
+
+  @Autowired
+  public PurchaseRateLimiter(@Value("${BUY_COOLDOWN:10000}") long cooldown,
+      @Value("${BUY_LIMITS:}") String[] roleLimits,
+      @Value("${BUY_LIMITER_METRICS:true}") boolean metricsEnabled) {
+    for (UserAccessRole role : UserAccessRole.values()) {
+      limits.put(role, new Limit(Math.max(0, cooldown), 1));
+    }
+    for (String roleLimit : roleLimits) {
+      if (!roleLimit.isBlank()) {
+        parse(roleLimit.trim());
+      }
+    }
+    this.metricsEnabled = metricsEnabled;
+    this.sweepInterval = limits.values().stream().mapToLong(Limit::fillTime).max().orElse(0);
+    if (metricsEnabled) {
+      Metrics.gauge("prost.shop.ratelimit.bearers", buckets, Map::size);
+    }
+  }
+
+  /**
+   * Takes a purchase from the bucket of the bearer, if there is one left.
+   *
+   * @return true if the bearer may buy
+   */
+  public boolean tryAcquire(String bearerId, UserAccessRole role) {
+    return tryAcquire(bearerId, role, System.currentTimeMillis());
+  }
+
+  /**
+   * Gives back a purchase that was taken by {@link #tryAcquire(String, UserAccessRole)} but did not
+   * happen, e.g. because the transfer failed.
+   */
+  public void release(String bearerId, UserAccessRole role) {
+    Limit limit = limitOf(role);
+    AtomicLong bucket = buckets.get(bearerId);
+    if (bucket == null) {
+      return;
+    }
+    long fullAt;
+    do {
+      fullAt = bucket.get();
+      if (fullAt == REMOVED) {
+        return;
+      }
+    } while (!bucket.compareAndSet(fullAt, fullAt - limit.cooldown()));
+  }
+
+  /**
+   * @return true if the bearer has no purchase left right now. Only a hint, e.g. for error
+   * messages: {@link #tryAcquire(String, UserAccessRole)} decides.
+   */
+  public boolean isLimited(String bearerId, UserAccessRole role) {
+    AtomicLong bucket = buckets.get(bearerId);
+    return bucket != null && isEmpty(bucket.get(), limitOf(role), System.currentTimeMillis());
+  }
+
+  boolean tryAcquire(String bearerId, UserAccessRole role, long now) {
+    Limit limit = limitOf(role);
+    sweepIfDue(now);
+
+    while (true) {
+      AtomicLong bucket = buckets.get(bearerId);
+      if (bucket == null) {
+        AtomicLong created = new AtomicLong(now + limit.cooldown());
+        if (buckets.putIfAbsent(bearerId, created) == null) {
+          return record(role, true);
+        }
+        continue;
+      }
+
+      long fullAt = bucket.get();
+      if (fullAt == REMOVED) {
+        // swept in the meantime, the next round creates a new one
+        buckets.remove(bearerId, bucket);
+        continue;
+      }
+      if (isEmpty(fullAt, limit, now)) {
+        return record(role, false);
+      }
+      if (bucket.compareAndSet(fullAt, Math.max(fullAt, now) + limit.cooldown())) {
+        return record(role, true);
+      }
+    }
+  }
+
+  int size() {
+    return buckets.size();
+  }
+
+  void sweep(long now) {
+    buckets.forEach((bearerId, bucket) -> {
+      long fullAt = bucket.get();
+      if (fullAt <= now && bucket.compareAndSet(fullAt, REMOVED)) {
+        buckets.remove(bearerId, bucket);
+      }
+    });
+  }
+
+  // the bucket is empty if it needs more than (burst - 1) cooldowns to fill up
+  private static boolean isEmpty(long fullAt, Limit limit, long now) {
+    return fullAt != REMOVED && fullAt - now > limit.fillTime() - limit.cooldown();
+  }
+
+  private void sweepIfDue(long now) {
+    long last = lastSweep.get();
+    if (now - last >= sweepInterval && lastSweep.compareAndSet(last, now)) {
+      sweep(now);
+    }
+  }
+
+  private boolean record(UserAccessRole role, boolean allowed) {
+    if (metricsEnabled) {
+      Metrics.counter("prost.shop.ratelimit", "role", String.valueOf(role), "outcome",
+          allowed ? "allowed" : "limited").increment();
+    }
+    return allowed;
+  }
+
+  private Limit limitOf(UserAccessRole role) {
+    return limits.get(role == null ? UserAccessRole.UNASSIGNED : role);
+  }
+
+  private void parse(String roleLimit) {
+    String[] parts = roleLimit.split(":");
+    try {
+      UserAccessRole role = UserAccessRole.valueOf(parts[0]);
+      long cooldown = Long.parseLong(parts[1]);
+      int burst = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
+      limits.put(role, new Limit(Math.max(0, cooldown), Math.max(1, burst)));
+    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+      System.err.println(
+          "[PRL] :: invalid limit \"" + roleLimit + "\", expected role:cooldown:burst");
+    }
+  }
+
+  private record Limit(long cooldown, int burst) {
+
+    private long fillTime() {
+      return cooldown * burst;
+    }
+  }
+}
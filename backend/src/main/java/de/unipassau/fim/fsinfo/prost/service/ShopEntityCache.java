@@ -0,0 +1,145 @@
+package de.unipassau.fim.fsinfo.prost.service;
+
+import de.unipassau.fim.fsinfo.prost.data.dto.ItemStateDTO;
+import de.unipassau.fim.fsinfo.prost.data.dto.UserStateDTO;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Caches the fields of users and items that are checked before a purchase, so a purchase only has
+ * to read the balance of the user from the database. The UserService and ShopService evict an
+ * entry whenever they change one of these fields, once right away and once more when their
+ * transaction is completed.
+ * <p>
+ * Every eviction increases a version. A state that was read while the version changed is returned
+ * but not cached, it may be older than the change. Within a transaction the version is taken on
+ * the first access and every id is only resolved once, so all checks of a purchase see the same
+ * state.
+ */
+@Service
+public class ShopEntityCache {
+
+  // the cache is cleared once it grows beyond this, like the entity cache of the metrics
+  private static final int MAX_CACHE_SIZE = 10000;
+
+  private static final Map<String, UserStateDTO> USER_CACHE = new ConcurrentHashMap<>();
+  private static final Map<String, ItemStateDTO> ITEM_CACHE = new ConcurrentHashMap<>();
+  private static final AtomicLong VERSION = new AtomicLong();
+
+  public static void evictUser(String id) {
+    evict(USER_CACHE, id);
+  }
+
+  public static void evictItem(String id) {
+    evict(ITEM_CACHE, id);
+  }
+
+  static void clear() {
+    USER_CACHE.clear();
+    ITEM_CACHE.clear();
+    VERSION.incrementAndGet();
+  }
+
+  private static void evict(Map<String, ?> cache, String id) {
+    cache.remove(id);
+    VERSION.incrementAndGet();
+
+    // until the change is committed, other transactions still read and cache the old state
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          cache.remove(id);
+          VERSION.incrementAndGet();
+        }
+      });
+    }
+  }
+
+  private final UserRepository userRepository;
+  private final ShopItemRepository itemRepository;
+
+  @Autowired
+  public ShopEntityCache(UserRepository userRepository, ShopItemRepository itemRepository) {
+    this.userRepository = userRepository;
+    this.itemRepository = itemRepository;
+  }
+
+  public Optional<UserStateDTO> findUser(String id) {
+    Scope scope = scope();
+    return find(id, scope.users(), USER_CACHE, scope.version(), userRepository::findStateById);
+  }
+
+  public Optional<ItemStateDTO> findItem(String id) {
+    Scope scope = scope();
+    return find(id, scope.items(), ITEM_CACHE, scope.version(), itemRepository::findStateById);
+  }
+
+  private static <T> Optional<T> find(String id, Map<String, T> resolved, Map<String, T> cache,
+      long version, Function<String, Optional<T>> loader) {
+    if (id == null) {
+      return Optional.empty();
+    }
+
+    T state = resolved.get(id);
+    if (state == null) {
+      state = cache.get(id);
+    }
+    if (state == null) {
+      Optional<T> loaded = loader.apply(id);
+      if (loaded.isEmpty()) {
+        return Optional.empty();
+      }
+      state = loaded.get();
+
+      if (cache.size() >= MAX_CACHE_SIZE) {
+        cache.clear();
+      }
+      cache.put(id, state);
+      // evicted since the version was taken, the loaded state may already be outdated
+      if (VERSION.get() != version) {
+        cache.remove(id, state);
+      }
+    }
+    resolved.put(id, state);
+    return Optional.of(state);
+  }
+
+  // the states resolved within the current transaction, a new one outside of transactions
+  private static Scope scope() {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      return new Scope(VERSION.get());
+    }
+
+    Scope scope = (Scope) TransactionSynchronizationManager.getResource(Scope.class);
+    if (scope == null) {
+      scope = new Scope(VERSION.get());
+      TransactionSynchronizationManager.bindResource(Scope.class, scope);
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          TransactionSynchronizationManager.unbindResourceIfPossible(Scope.class);
+        }
+      });
+    }
+    return scope;
+  }
+
+  private record Scope(long version, Map<String, UserStateDTO> users,
+                       Map<String, ItemStateDTO> items) {
+
+    private Scope(long version) {
+      this(version, new HashMap<>(), new HashMap<>());
+    }
+  }
+}
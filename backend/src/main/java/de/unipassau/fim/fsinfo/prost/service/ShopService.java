@@ -3,71 +3,83 @@ package de.unipassau.fim.fsinfo.prost.service;
 import de.unipassau.fim.fsinfo.prost.data.DataFilter;
 import de.unipassau.fim.fsinfo.prost.data.TransactionType;
 import de.unipassau.fim.fsinfo.prost.data.UserAccessRole;
-import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
 import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
 import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
 import de.unipassau.fim.fsinfo.prost.data.dao.TransactionEntry;
+import de.unipassau.fim.fsinfo.prost.data.dto.CheckoutLineDTO;
+import de.unipassau.fim.fsinfo.prost.data.dto.ItemStateDTO;
+import de.unipassau.fim.fsinfo.prost.data.dto.UserStateDTO;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
-import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
 import de.unipassau.fim.fsinfo.prost.service.statistics.AbstractMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricEntityResolver;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricUpdateEvent;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import java.math.BigDecimal;
-import java.time.Instant;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 @Service
 public class ShopService {
 
   final private ShopItemRepository itemRepository;
   final private ShopItemHistoryRepository historyRepository;
-  final private UserRepository userRepository;
+  final private ShopEntityCache entityCache;
 
   final private TransactionService transactionService;
+  final private ApplicationEventPublisher eventPublisher;
+  final private PurchaseRateLimiter rateLimiter;
 
   final static BigDecimal MAX_PRICE = new BigDecimal(100);
   final static BigDecimal MIN_PRICE = BigDecimal.ZERO;
-
-  @Value("${BUY_COOLDOWN:10000}")
-  Long buyCooldownTime;
-
-  /**
-   * Authorized User-ID, Unix-Timestamp
-   */
-  final private HashMap<String, Long> bearerLastBuy = new HashMap<>();
+  final static int MAX_CHECKOUT_LINES = 20;
 
   @Autowired
   public ShopService(ShopItemRepository itemRepository, ShopItemHistoryRepository historyRepository,
-      UserRepository userRepository, TransactionService transactionService) {
+      ShopEntityCache entityCache, TransactionService transactionService,
+      ApplicationEventPublisher eventPublisher, PurchaseRateLimiter rateLimiter) {
     this.itemRepository = itemRepository;
     this.historyRepository = historyRepository;
-    this.userRepository = userRepository;
+    this.entityCache = entityCache;
     this.transactionService = transactionService;
+    this.eventPublisher = eventPublisher;
+    this.rateLimiter = rateLimiter;
   }
 
-  public boolean hasBearerCooldown(String userId) {
-    if (bearerLastBuy.containsKey(userId)) {
-      Long lastTime = bearerLastBuy.get(userId);
-      return lastTime + buyCooldownTime > Instant.now().toEpochMilli();
-    }
-    return false;
+  /**
+   * @return true if the bearer can not buy right now. Whether the bearer may buy is only decided
+   * by {@link #consume}, together with recording the purchase.
+   */
+  public boolean hasBearerCooldown(String userId, UserAccessRole bearerRole) {
+    return rateLimiter.isLimited(userId, bearerRole);
   }
 
   // Because checking access-rights before trying to buy determines the error-messages to the client.
   public boolean hasBearerPermissions(String itemId, String userId, int amount, String bearerId,
       UserAccessRole bearerRole) {
-    Optional<ProstUser> userO = userRepository.findById(userId);
+    return hasBearerPermissions(userId, bearerId, bearerRole);
+  }
 
+  /**
+   * Same as {@link #hasBearerPermissions(String, String, int, String, UserAccessRole)}, the
+   * permissions do not depend on the items.
+   */
+  public boolean hasBearerPermissions(String userId, String bearerId,
+      UserAccessRole bearerRole) {
     switch (bearerRole) {
       case KAFFEEKASSE -> {
         return true;
       }
       case KIOSK -> {
-        return userO.isPresent() && userO.get().getKiosk();
+        return entityCache.findUser(userId).map(UserStateDTO::kiosk).orElse(false);
       }
       case FSINFO -> {
         return bearerId != null && bearerId.equals(userId);
@@ -79,64 +91,147 @@ public class ShopService {
   @Transactional
   public boolean consume(String itemId, String userId, int amount, String bearerId,
       UserAccessRole bearerRole) {
-    Optional<ShopItem> itemO = itemRepository.findById(itemId);
-    Optional<ProstUser> userO = userRepository.findById(userId);
-    Optional<ProstUser> bearerUser = userRepository.findById(bearerId);
+    return consume(itemId, userId, amount, bearerId, bearerRole, null);
+  }
+
+  /**
+   * @param idempotencyKey stored with the transaction, null if the request did not send one
+   */
+  @Transactional
+  public boolean consume(String itemId, String userId, int amount, String bearerId,
+      UserAccessRole bearerRole, String idempotencyKey) {
+    return purchase("prost.shop.consume", List.of(new CheckoutLineDTO(itemId, amount)), userId,
+        bearerId, bearerRole, idempotencyKey);
+  }
 
-    if (amount < 1 || amount > 10) {
-      System.out.println("[SS] :: invalid amount=" + amount);
-      return false;
+  /**
+   * Buys all lines together, like one purchase: the permissions and the cooldown are checked once
+   * and the total price is paid with a single transaction. Every line gets its own history entry.
+   */
+  @Transactional
+  public boolean checkout(List<CheckoutLineDTO> lines, String userId, String bearerId,
+      UserAccessRole bearerRole) {
+    return checkout(lines, userId, bearerId, bearerRole, null);
+  }
+
+  @Transactional
+  public boolean checkout(List<CheckoutLineDTO> lines, String userId, String bearerId,
+      UserAccessRole bearerRole, String idempotencyKey) {
+    return purchase("prost.shop.checkout", lines, userId, bearerId, bearerRole, idempotencyKey);
+  }
+
+  private boolean purchase(String timerName, List<CheckoutLineDTO> lines, String userId,
+      String bearerId, UserAccessRole bearerRole, String idempotencyKey) {
+    Timer.Sample sample = Timer.start();
+    ConsumeOutcome outcome = ConsumeOutcome.ERROR;
+    try {
+      outcome = tryPurchase(lines, userId, bearerId, bearerRole, idempotencyKey);
+      return outcome == ConsumeOutcome.SUCCESS;
+    } finally {
+      sample.stop(Metrics.timer(timerName, "outcome", outcome.name().toLowerCase()));
+    }
+  }
+
+  private ConsumeOutcome tryPurchase(List<CheckoutLineDTO> lines, String userId, String bearerId,
+      UserAccessRole bearerRole, String idempotencyKey) {
+    if (lines == null || lines.isEmpty() || lines.size() > MAX_CHECKOUT_LINES) {
+      System.out.println("[SS] :: invalid number of lines=" + (lines == null ? 0 : lines.size()));
+      return ConsumeOutcome.INVALID_AMOUNT;
+    }
+    for (CheckoutLineDTO line : lines) {
+      if (line == null || line.amount() < 1 || line.amount() > 10) {
+        System.out.println("[SS] :: invalid amount=" + (line == null ? 0 : line.amount()));
+        return ConsumeOutcome.INVALID_AMOUNT;
+      }
     }
 
-    if (!hasBearerPermissions(itemId, userId, amount, bearerId, bearerRole)) {
+    // from the cache, only the balance of the user is read from the database
+    List<Optional<ItemStateDTO>> items = lines.stream()
+        .map(line -> entityCache.findItem(line.itemId()))
+        .toList();
+    Optional<UserStateDTO> userO = entityCache.findUser(userId);
+    Optional<UserStateDTO> bearerUser = entityCache.findUser(bearerId);
+
+    if (!hasBearerPermissions(userId, bearerId, bearerRole)) {
       System.out.println(
           "[SS] :: " + bearerId + " does not have permissions for buyprocess for " + userId);
-      return false;
+      return ConsumeOutcome.NO_PERMISSION;
     }
 
-    if (hasBearerCooldown(bearerId)) {
+    // checks and takes the purchase at once, it is given back if the purchase fails below
+    if (!rateLimiter.tryAcquire(bearerId, bearerRole)) {
       System.out.println("[SS] :: " + userO + " on Cooldown!");
-      return false;
+      return ConsumeOutcome.COOLDOWN;
     }
 
-    if (userO.isEmpty() || itemO.isEmpty() || bearerUser.isEmpty()) {
-      System.out.println("[SS] :: empty :: " + userO + " " + itemO + " " + bearerUser);
-      return false;
+    ConsumeOutcome outcome;
+    try {
+      outcome = transfer(lines, items, userO, bearerUser, idempotencyKey);
+    } catch (RuntimeException e) {
+      rateLimiter.release(bearerId, bearerRole);
+      throw e;
     }
+    if (outcome != ConsumeOutcome.SUCCESS) {
+      rateLimiter.release(bearerId, bearerRole);
+    } else if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      // the purchase did not happen if the commit fails
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          if (status != STATUS_COMMITTED) {
+            rateLimiter.release(bearerId, bearerRole);
+          }
+        }
+      });
+    }
+    return outcome;
+  }
 
-    ProstUser user = userO.get();
-    ProstUser bearer = bearerUser.get();
-    ShopItem item = itemO.get();
+  private ConsumeOutcome transfer(List<CheckoutLineDTO> lines, List<Optional<ItemStateDTO>> items,
+      Optional<UserStateDTO> userO, Optional<UserStateDTO> bearerUser, String idempotencyKey) {
+    if (userO.isEmpty() || items.stream().anyMatch(Optional::isEmpty) || bearerUser.isEmpty()) {
+      System.out.println("[SS] :: empty :: " + userO + " " + items + " " + bearerUser);
+      return ConsumeOutcome.NOT_FOUND;
+    }
+
+    UserStateDTO user = userO.get();
+    UserStateDTO bearer = bearerUser.get();
+    boolean itemsEnabled = items.stream().allMatch(item -> item.get().enabled());
 
     // Every Component needs to be allowed to be part of the Transaction
-    if (!(item.getEnabled() && user.getEnabled() && bearer.getEnabled())) {
+    if (!(itemsEnabled && user.enabled() && bearer.enabled())) {
       System.out.println(
-          "[SS] :: Not Enabled :: item=" + item.getEnabled() + " user=" + user.getEnabled()
+          "[SS] :: Not Enabled :: items=" + itemsEnabled + " user=" + user.enabled()
               + " bearer="
-              + bearer.getEnabled());
-      return false;
+              + bearer.enabled());
+      return ConsumeOutcome.NOT_ENABLED;
+    }
+
+    BigDecimal total = BigDecimal.ZERO;
+    for (int i = 0; i < lines.size(); i++) {
+      total = total.add(items.get(i).get().price().abs()
+          .multiply(BigDecimal.valueOf(lines.get(i).amount()).abs()));
     }
 
     Optional<TransactionEntry> transaction = transactionService.moneyTransfer(
-        Optional.empty(), user.getId(), bearer.getId(),
-        item.getPrice().abs().multiply(BigDecimal.valueOf(amount).abs()), TransactionType.BUY);
+        Optional.empty(), user.id(), bearer.id(), total, TransactionType.BUY, idempotencyKey);
 
     if (transaction.isPresent()) {
-      ShopItemHistoryEntry historyEntry = new ShopItemHistoryEntry(transaction.get(), item.getId(),
-          item.getPrice(),
-          amount);
-      historyRepository.save(historyEntry);
-      bearerLastBuy.put(bearerId, Instant.now().toEpochMilli());
-
-      if (!user.getHidden()) {
-        AbstractMetricCollector.updateAllEntriesFor(ProstUser.class, user);
-        AbstractMetricCollector.updateAllEntriesFor(ShopItem.class, item);
-        AbstractMetricCollector.updateAllEntriesFor(ShopItemHistoryEntry.class, historyEntry);
+      List<ShopItemHistoryEntry> historyEntries = new ArrayList<>(lines.size());
+      for (int i = 0; i < lines.size(); i++) {
+        ItemStateDTO item = items.get(i).get();
+        historyEntries.add(new ShopItemHistoryEntry(transaction.get(), item.id(), item.price(),
+            lines.get(i).amount()));
       }
-      return true;
+      // inserted as one JDBC batch, see hibernate.jdbc.batch_size
+      historyRepository.saveAll(historyEntries);
+
+      // hidden users still count for the item metrics, each collector filters them itself
+      eventPublisher.publishEvent(new MetricUpdateEvent(historyEntries));
+      return ConsumeOutcome.SUCCESS;
     } else {
       System.out.println("[SS] :: No Transaction found!");
-      return false;
+      return ConsumeOutcome.TRANSFER_FAILED;
     }
   }
 
@@ -163,6 +258,8 @@ public class ShopService {
     ShopItem item = new ShopItem(DataFilter.filterNameId(identifier), category, displayName,
         price.abs());
     itemRepository.save(item);
+    MetricEntityResolver.evictItem(item.getId());
+    ShopEntityCache.evictItem(item.getId());
     AbstractMetricCollector.updateAllEntriesFor(ShopItem.class, item);
     return Optional.of(item);
   }
@@ -172,6 +269,8 @@ public class ShopService {
     Optional<ShopItem> item = itemRepository.findById(identifier);
     if (item.isPresent()) {
       itemRepository.delete(item.get());
+      MetricEntityResolver.evictItem(identifier);
+      ShopEntityCache.evictItem(identifier);
       AbstractMetricCollector.removeAllEntriesFor(ShopItem.class, item.get());
       return item;
     }
@@ -189,6 +288,7 @@ public class ShopService {
     if (item.isPresent()) {
       item.get().setDisplayName(newDisplayName);
       itemRepository.save(item.get());
+      MetricEntityResolver.evictItem(item.get().getId());
       return item;
     }
     return Optional.empty();
@@ -205,6 +305,7 @@ public class ShopService {
     if (item.isPresent()) {
       item.get().setCategory(category);
       itemRepository.save(item.get());
+      MetricEntityResolver.evictItem(item.get().getId());
       return item;
     }
     return Optional.empty();
@@ -233,6 +334,8 @@ public class ShopService {
 
         item.get().setPrice(price);
         itemRepository.save(item.get());
+        MetricEntityResolver.evictItem(item.get().getId());
+        ShopEntityCache.evictItem(item.get().getId());
         return item;
       }
     } catch (NumberFormatException e) {
@@ -262,8 +365,18 @@ public class ShopService {
     if (item.isPresent()) {
       item.get().setEnabled(value);
       itemRepository.save(item.get());
+      MetricEntityResolver.evictItem(item.get().getId());
+      ShopEntityCache.evictItem(item.get().getId());
     }
     return item;
   }
 
+  /**
+   * Result of a purchase, used as tag of the consume- and checkout-timer. ERROR if the purchase
+   * threw an exception.
+   */
+  private enum ConsumeOutcome {
+    SUCCESS, INVALID_AMOUNT, NO_PERMISSION, COOLDOWN, NOT_FOUND, NOT_ENABLED, TRANSFER_FAILED,
+    ERROR
+  }
 }
@@ -6,6 +6,8 @@ import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
 import de.unipassau.fim.fsinfo.prost.data.dao.TransactionEntry;
 import de.unipassau.fim.fsinfo.prost.data.repositories.TransactionRepository;
 import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 import java.math.BigDecimal;
 import java.util.Optional;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -21,29 +23,64 @@ public class TransactionService {
 
   private final TransactionRepository history;
   private final UserRepository users;
+  private final ShopEntityCache entityCache;
+  private final IdempotencyService idempotencyService;
 
   public static final BigDecimal MAX_DEPOSIT_VALUE = new BigDecimal("50.0");
 
   @Autowired
-  public TransactionService(UserRepository users, TransactionRepository history) {
+  public TransactionService(UserRepository users, TransactionRepository history,
+      ShopEntityCache entityCache, IdempotencyService idempotencyService) {
     this.history = history;
     this.users = users;
+    this.entityCache = entityCache;
+    this.idempotencyService = idempotencyService;
   }
 
   @Transactional
   public Optional<TransactionEntry> moneyTransfer(Optional<String> senderId, String receiverId,
       String bearerId, BigDecimal amount, TransactionType type) {
-    Optional<ProstUser> receiver = users.findById(receiverId);
-    Optional<ProstUser> bearer = users.findById(bearerId);
-    Optional<ProstUser> sender = senderId.flatMap(users::findById);
+    return moneyTransfer(senderId, receiverId, bearerId, amount, type, null);
+  }
+
+  /**
+   * @param idempotencyKey stored with the transaction, null if the request did not send one
+   */
+  @Transactional
+  public Optional<TransactionEntry> moneyTransfer(Optional<String> senderId, String receiverId,
+      String bearerId, BigDecimal amount, TransactionType type, String idempotencyKey) {
+    // only the balance of the receiver is read from the database, by the update itself
+    Optional<ProstUser> receiver = reference(receiverId);
+    Optional<ProstUser> bearer = reference(bearerId);
 
-    return moneyTransfer(sender, receiver, bearer, amount, type);
+    return timedTransfer(receiver, bearer, amount, type, idempotencyKey);
+  }
+
+  // the users are only used by id, so it is enough to know that they exist
+  private Optional<ProstUser> reference(String id) {
+    return entityCache.findUser(id).map(state -> users.getReferenceById(id));
   }
 
   @Transactional
   public Optional<TransactionEntry> moneyTransfer(Optional<ProstUser> sender,
       Optional<ProstUser> receiver,
       Optional<ProstUser> bearer, BigDecimal amount, TransactionType type) {
+    return timedTransfer(receiver, bearer, amount, type, null);
+  }
+
+  private Optional<TransactionEntry> timedTransfer(Optional<ProstUser> receiver,
+      Optional<ProstUser> bearer, BigDecimal amount, TransactionType type,
+      String idempotencyKey) {
+    Timer.Sample sample = Timer.start();
+    Optional<TransactionEntry> entry = transfer(receiver, bearer, amount, type, idempotencyKey);
+    sample.stop(Metrics.timer("prost.transaction.transfer", "type", String.valueOf(type),
+        "outcome", entry.isPresent() ? "success" : "failed"));
+    return entry;
+  }
+
+  private Optional<TransactionEntry> transfer(Optional<ProstUser> receiver,
+      Optional<ProstUser> bearer, BigDecimal amount, TransactionType type,
+      String idempotencyKey) {
 
     if (!DataFilter.isValidMoney(amount)) {
       System.err.println("[TS] :: " + amount + " has not the right money-precision!");
@@ -58,13 +95,13 @@ public class TransactionService {
 
     switch (type) {
       case DEPOSIT -> {
-        return deposit(receiver.get(), bearer.get(), amount);
+        return deposit(receiver.get(), bearer.get(), amount, idempotencyKey);
       }
       case BUY -> {
-        return buy(receiver.get(), bearer.get(), amount);
+        return buy(receiver.get(), bearer.get(), amount, idempotencyKey);
       }
       case CHANGE -> {
-        return change(receiver.get(), bearer.get(), amount);
+        return change(receiver.get(), bearer.get(), amount, idempotencyKey);
       }
       default -> {
         System.out.println("[TS] :: Transaction-type \"" + type + "\" is not defined");
@@ -75,7 +112,7 @@ public class TransactionService {
 
 
   private Optional<TransactionEntry> deposit(ProstUser receiver, ProstUser bearer,
-      BigDecimal amount) {
+      BigDecimal amount, String idempotencyKey) {
     if (amount.compareTo(BigDecimal.ZERO) <= 0) {
       System.out.println("[TS] :: Only deposit positive values!");
       return Optional.empty();
@@ -85,49 +122,65 @@ public class TransactionService {
       return Optional.empty();
     }
 
-    BigDecimal previous = receiver.getBalance();
-
-    receiver.setBalance(previous.add(amount.abs()));
-    users.save(receiver);
-
-    TransactionEntry entry = new TransactionEntry(null,
-        receiver.getId(),
-        bearer.getId(), TransactionType.DEPOSIT, previous, amount.abs());
-    history.save(entry);
-    return Optional.of(entry);
+    return updateBalance(receiver, bearer, TransactionType.DEPOSIT, amount.abs(), amount.abs(),
+        BigDecimal.ZERO, idempotencyKey);
   }
 
   private Optional<TransactionEntry> buy(ProstUser receiver, ProstUser bearer,
-      BigDecimal amount) {
+      BigDecimal amount, String idempotencyKey) {
 
     if (amount.compareTo(BigDecimal.ZERO) < 0) { // Only Positive Values
       System.out.println("[TS] :: Buy is with " + amount + " too low");
       return Optional.empty();
     }
 
-    BigDecimal previous = receiver.getBalance();
-
-    receiver.setBalance(previous.subtract(amount.abs()));
-    receiver.setTotalSpent(receiver.getTotalSpent().abs().add(amount.abs()));
-    users.save(receiver);
-
-    TransactionEntry entry = new TransactionEntry(null,
-        receiver.getId(),
-        bearer.getId(), TransactionType.BUY, previous, amount.abs());
-    history.save(entry);
-    return Optional.of(entry);
+    return updateBalance(receiver, bearer, TransactionType.BUY, amount.abs(),
+        amount.abs().negate(), amount.abs(), idempotencyKey);
   }
 
   private Optional<TransactionEntry> change(ProstUser receiver, ProstUser bearer,
-      BigDecimal amount) {
-    BigDecimal previous = receiver.getBalance();
-    receiver.setBalance(amount);
-    users.save(receiver);
+      BigDecimal amount, String idempotencyKey) {
+    // adding nothing locks the row, so the balance can not change before it is set
+    if (users.addToBalance(receiver.getId(), BigDecimal.ZERO, BigDecimal.ZERO) == 0) {
+      System.err.println("[TS] :: receiver " + receiver.getId() + " not found");
+      return Optional.empty();
+    }
+    BigDecimal previous = users.findBalanceById(receiver.getId()).orElseThrow().balance();
+    return updateBalance(receiver, bearer, TransactionType.CHANGE, amount,
+        amount.subtract(previous), BigDecimal.ZERO, idempotencyKey);
+  }
 
+  /**
+   * Adds to the balance in the database and records the balance it had before. The update locks
+   * the row of the receiver until the transaction ends, so only purchases of the same user wait
+   * for each other.
+   *
+   * @param delta the amount added to the balance
+   * @param spent the amount added to the total spent
+   */
+  private Optional<TransactionEntry> updateBalance(ProstUser receiver, ProstUser bearer,
+      TransactionType type, BigDecimal amount, BigDecimal delta, BigDecimal spent,
+      String idempotencyKey) {
+    if (users.addToBalance(receiver.getId(), delta, spent) == 0) {
+      System.err.println("[TS] :: receiver " + receiver.getId() + " not found");
+      return Optional.empty();
+    }
+
+    // no other transaction can change the balance between the update and this read
+    BigDecimal previous = users.findBalanceById(receiver.getId()).orElseThrow().balance()
+        .subtract(delta);
     TransactionEntry entry = new TransactionEntry(null,
         receiver.getId(),
-        bearer.getId(), TransactionType.CHANGE, previous, amount);
+        bearer.getId(), type, previous, amount);
+    // unique, so a second transaction with the same key can not be committed
+    entry.setIdempotencyKey(idempotencyKey);
+    if (idempotencyKey != null) {
+      entry.setIdempotencyFingerprint(idempotencyService.getFingerprint(idempotencyKey));
+    }
     history.save(entry);
+    if (idempotencyKey != null) {
+      idempotencyService.record(entry);
+    }
     return Optional.of(entry);
   }
 
@@ -4,6 +4,7 @@ import de.unipassau.fim.fsinfo.prost.data.DataFilter;
 import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
 import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
 import de.unipassau.fim.fsinfo.prost.service.statistics.AbstractMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricEntityResolver;
 import de.unipassau.fim.fsinfo.prost.service.statistics.MetricService;
 import java.math.BigDecimal;
 import java.util.List;
@@ -63,6 +64,9 @@ public class UserService {
 
     ProstUser user = new ProstUser(userName, displayName, email, true, false);
     users.save(user);
+    MetricEntityResolver.evictUser(user.getId());
+    MetricEntityResolver.updateHidden(user);
+    ShopEntityCache.evictUser(user.getId());
     AbstractMetricCollector.updateAllEntriesFor(ProstUser.class, user);
     System.out.println("[US] :: " + userName + " :: user-creation succeeded");
     return Optional.of(user);
@@ -88,6 +92,9 @@ public class UserService {
 
     if (user.isPresent()) {
       users.delete(user.get());
+      MetricEntityResolver.evictUser(id);
+      MetricEntityResolver.removeHidden(id);
+      ShopEntityCache.evictUser(id);
       return true;
     }
     return false;
@@ -101,6 +108,7 @@ public class UserService {
       ProstUser u = user.get();
       u.setDisplayName(name);
       users.save(u);
+      MetricEntityResolver.evictUser(u.getId());
       AbstractMetricCollector.updateAllEntriesFor(ProstUser.class, user.get());
       return true;
     }
@@ -116,6 +124,7 @@ public class UserService {
       ProstUser u = user.get();
       u.setEmail(email);
       users.save(u);
+      MetricEntityResolver.evictUser(u.getId());
       return true;
     }
     return false;
@@ -129,6 +138,15 @@ public class UserService {
       ProstUser u = user.get();
       u.setEnabled(value);
       users.save(u);
+      MetricEntityResolver.evictUser(u.getId());
+      ShopEntityCache.evictUser(u.getId());
+
+      // disabled users are not ranked, so they do not take a place in front of others
+      if (value) {
+        AbstractMetricCollector.updateAllEntriesFor(ProstUser.class, u);
+      } else {
+        AbstractMetricCollector.removeAllEntriesFor(ProstUser.class, u);
+      }
       return true;
     }
     return false;
@@ -140,8 +158,16 @@ public class UserService {
 
     if (user.isPresent()) {
       ProstUser u = user.get();
+      // adding the history of a user that is already shown would count it twice
+      if (Boolean.valueOf(value).equals(u.getHidden())) {
+        return true;
+      }
       u.setHidden(value);
       users.save(u);
+      MetricEntityResolver.evictUser(u.getId());
+      // before the metrics are updated, the composite metrics check it for every entry
+      MetricEntityResolver.updateHidden(u);
+      ShopEntityCache.evictUser(u.getId());
 
       if (value) {
         metricService.removeFromMetrics(u);
@@ -161,6 +187,8 @@ public class UserService {
       ProstUser u = user.get();
       u.setKiosk(value);
       users.save(u);
+      MetricEntityResolver.evictUser(u.getId());
+      ShopEntityCache.evictUser(u.getId());
       return true;
     }
     return false;
@@ -186,6 +214,7 @@ public class UserService {
         ProstUser u = user.get();
         u.setTotalSpent(amount.abs());
         users.save(u);
+        MetricEntityResolver.evictUser(u.getId());
         AbstractMetricCollector.updateAllEntriesFor(ProstUser.class, user.get());
         return true;
       } else {
@@ -1,94 +1,293 @@
 package de.unipassau.fim.fsinfo.prost.service.statistics;
 
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
+import de.unipassau.fim.fsinfo.prost.data.dto.MetricPositionDTO;
 import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking.RankedValue;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.time.Instant;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.springframework.stereotype.Service;
 
+/**
+ * @param <T> the entity type the collector is updated for
+ * @param <K> the type of the keys the values are kept under
+ */
 @Service
-public abstract class AbstractMetricCollector<T> {
+public abstract class AbstractMetricCollector<T, K extends Comparable<K>> {
 
-  public static final long MONTH_MILLIS = 1000L * 60 * 60 * 24 * 30;
-  public static final long WEEK_MILLIS = 1000L * 60 * 60 * 24 * 7;
+  // the maximum number of entities that are loaded with a single query
+  protected static final int RESOLVE_BATCH_SIZE = 500;
 
-  protected static final Map<Class<?>, List<AbstractMetricCollector<?>>> REGISTRY = new ConcurrentHashMap<>();
+  protected static final Map<Class<?>, List<AbstractMetricCollector<?, ?>>> REGISTRY =
+      new ConcurrentHashMap<>();
 
-  public static <T> void initAllCollectors(Class<T> entityType, Collection<T> initialEntries) {
-    List<AbstractMetricCollector<?>> metrics = REGISTRY.getOrDefault(entityType, List.of());
+  private static final ReadWriteLock SNAPSHOT_LOCK = new ReentrantReadWriteLock();
 
-    for (AbstractMetricCollector<?> metric : metrics) {
+  /**
+   * A purchase is expected to reach the collectors within this time after its timestamp, i.e. it
+   * is committed and taken from the update queue by then. Older purchases are settled: rebuilds
+   * read them grouped, and they are no longer tracked as applied.
+   */
+  public static final long SETTLE_MILLIS = 10 * 60 * 1000;
+
+  // id and timestamp of the recent entries that are part of the current values. The update queue
+  // delivers entries out of id order and may deliver one that a rebuild already read.
+  private static final Map<Long, Long> APPLIED = new ConcurrentHashMap<>();
+  private static final AtomicLong LAST_PRUNE = new AtomicLong();
+
+  public static List<AbstractMetricCollector<?, ?>> getAllCollectors() {
+    return REGISTRY.values().stream().flatMap(List::stream).collect(Collectors.toList());
+  }
+
+  public static <T> void updateAllEntriesFor(Class<T> entityType, T entity) {
+    List<AbstractMetricCollector<?, ?>> metrics = REGISTRY.getOrDefault(entityType, List.of());
+
+    for (AbstractMetricCollector<?, ?> metric : metrics) {
       if (metric.supportsEntityType(entityType)) {
         @SuppressWarnings("unchecked")
-        AbstractMetricCollector<T> typedMetric = (AbstractMetricCollector<T>) metric;
-        typedMetric.initMetrics(initialEntries);
+        AbstractMetricCollector<T, ?> typedMetric = (AbstractMetricCollector<T, ?>) metric;
+        typedMetric.timer("prost.metrics.update").record(() -> typedMetric.updateEntry(entity));
+        typedMetric.changed();
       }
     }
   }
 
-  public static <T> void updateAllEntriesFor(Class<T> entityType, T entity) {
-    List<AbstractMetricCollector<?>> metrics = REGISTRY.getOrDefault(entityType, List.of());
+  /**
+   * Adds a new purchase to the current values of all collectors. Only the keys touched by the entry
+   * change, no history is loaded.
+   */
+  public static void addToAllCollectors(ShopItemHistoryEntry entry) {
+    addToAllCollectors(List.of(entry));
+  }
+
+  /**
+   * Same as {@link #addToAllCollectors(ShopItemHistoryEntry)} for all entries of one checkout, in
+   * a single pass over the collectors. Entries that are already part of the current values are
+   * skipped.
+   */
+  public static void addToAllCollectors(List<ShopItemHistoryEntry> entries) {
+    Timer.Sample sample = Timer.start();
+    SNAPSHOT_LOCK.readLock().lock();
+    try {
+      List<ShopItemHistoryEntry> added = new ArrayList<>(entries.size());
+      for (ShopItemHistoryEntry entry : entries) {
+        if (entry.getId() == null
+            || APPLIED.putIfAbsent(entry.getId(), entry.getTimestamp()) == null) {
+          added.add(entry);
+        }
+      }
+      for (AbstractMetricCollector<?, ?> collector : getAllCollectors()) {
+        for (ShopItemHistoryEntry entry : added) {
+          collector.add(entry);
+        }
+      }
+      pruneApplied(Instant.now().toEpochMilli());
+    } finally {
+      SNAPSHOT_LOCK.readLock().unlock();
+      sample.stop(Metrics.timer("prost.metrics.add"));
+    }
+  }
+
+  /**
+   * Runs the action while no purchase is added, so it sees the values of all collectors at the
+   * same point of the history (see {@link #getApplied()}).
+   */
+  public static <R> R lockedForSnapshot(Supplier<R> action) {
+    SNAPSHOT_LOCK.writeLock().lock();
+    try {
+      return action.get();
+    } finally {
+      SNAPSHOT_LOCK.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the timestamp by id of the recent entries that are part of the current values. Settled
+   * entries (see {@link #SETTLE_MILLIS}) are part of them in any case.
+   */
+  static Map<Long, Long> getApplied() {
+    return new HashMap<>(APPLIED);
+  }
+
+  /**
+   * Replaces the recent entries that are part of the current values, e.g. with those a rebuild
+   * read. Has to be called while holding {@link #lockedForSnapshot(Supplier)}, together with
+   * swapping in the values.
+   *
+   * @param applied the timestamp of each entry by its id
+   */
+  static void setApplied(Map<Long, Long> applied) {
+    APPLIED.clear();
+    APPLIED.putAll(applied);
+  }
+
+  // settled entries are not delivered again, at most once per settle time
+  private static void pruneApplied(long now) {
+    long last = LAST_PRUNE.get();
+    if (now - last >= SETTLE_MILLIS && LAST_PRUNE.compareAndSet(last, now)) {
+      APPLIED.values().removeIf(timestamp -> timestamp < now - SETTLE_MILLIS);
+    }
+  }
+
+  // collectors register themselves globally, tests start over with new ones
+  static void clear() {
+    REGISTRY.clear();
+    APPLIED.clear();
+  }
 
-    for (AbstractMetricCollector<?> metric : metrics) {
+  /**
+   * Brings the keys of all collectors in line with the given entities after the values were
+   * restored from a snapshot: missing entities are calculated from their history, keys of entities
+   * that are gone or filtered out are removed.
+   */
+  public static <T> void reconcileAllEntriesFor(Class<T> entityType, Collection<T> entities) {
+    List<AbstractMetricCollector<?, ?>> metrics = REGISTRY.getOrDefault(entityType, List.of());
+    for (AbstractMetricCollector<?, ?> metric : metrics) {
       if (metric.supportsEntityType(entityType)) {
         @SuppressWarnings("unchecked")
-        AbstractMetricCollector<T> typedMetric = (AbstractMetricCollector<T>) metric;
-        typedMetric.updateEntry(entity);
+        AbstractMetricCollector<T, ?> typedMetric = (AbstractMetricCollector<T, ?>) metric;
+        typedMetric.reconcile(entities);
       }
     }
   }
 
   // Static method to remove all entries for a specific entity type
   public static <T> void removeAllEntriesFor(Class<T> entityType, T entity) {
-    List<AbstractMetricCollector<?>> metrics = REGISTRY.getOrDefault(entityType, List.of());
-    for (AbstractMetricCollector<?> metric : metrics) {
+    List<AbstractMetricCollector<?, ?>> metrics = REGISTRY.getOrDefault(entityType, List.of());
+    for (AbstractMetricCollector<?, ?> metric : metrics) {
       if (metric.supportsEntityType(entityType)) {
         @SuppressWarnings("unchecked")
-        AbstractMetricCollector<T> typedmetric = (AbstractMetricCollector<T>) metric;
+        AbstractMetricCollector<T, ?> typedmetric = (AbstractMetricCollector<T, ?>) metric;
         typedmetric.removeEntry(entity);
+        typedmetric.changed();
       }
     }
   }
 
   // hardcoded to the last 30days is easier to calculate and more consistent over time.
-  protected ConcurrentHashMap<String, BigDecimal> metricEntries_Weekly = new ConcurrentHashMap<>();
-  protected ConcurrentHashMap<String, BigDecimal> metricEntries_Monthly = new ConcurrentHashMap<>();
-  protected ConcurrentHashMap<String, BigDecimal> metricEntries_AllTime = new ConcurrentHashMap<>();
+  // Rebuilds fill a new accumulator off to the side and replace this one with a single write.
+  protected volatile MetricAccumulator<K> metrics;
 
   protected final Class<T> entityType;
 
+  // increased after every change of the values, see getVersion()
+  private final AtomicLong version = new AtomicLong();
+
   public AbstractMetricCollector(Class<T> entityType) {
     this.entityType = entityType;
+    this.metrics = createAccumulator(Instant.now().toEpochMilli());
+    this.metrics.index();
     REGISTRY.computeIfAbsent(entityType, k -> new ArrayList<>()).add(this);
   }
 
-  protected void initMetrics(Collection<T> initialEntries) {
-    metricEntries_Weekly = new ConcurrentHashMap<>();
-    metricEntries_Monthly = new ConcurrentHashMap<>();
-    metricEntries_AllTime = new ConcurrentHashMap<>();
-    initialEntries.forEach(this::updateEntry);
-  }
-
   protected boolean supportsEntityType(Class<?> type) {
     return this.entityType.equals(type);
   }
 
   /**
-   * Calculate only new entry and add value to previous, because it minimizes db-access (when
-   * possible)
+   * Number of values that are summed up separately per key. Metrics that are not a plain sum (e.g.
+   * averages) track their parts in different slots and combine them in {@link #evaluate(long[])}.
+   */
+  protected int getSlotCount() {
+    return 1;
+  }
+
+  /**
+   * Decimal places of the values, e.g. 2 for metrics that sum up money in cents and 0 for plain
+   * counts.
+   */
+  protected int getScale() {
+    return 0;
+  }
+
+  /**
+   * Combines the raw slots of a key to the value the key is ranked by, with {@link #getScale()}
+   * decimal places.
+   */
+  protected long evaluate(long[] slots) {
+    return slots[0];
+  }
+
+  /**
+   * Converts a value to the one shown in the metric. This is the only place where a
+   * {@link BigDecimal} is created.
    */
-  protected abstract BigDecimal calculateValue(T entity, TimeSpan timeSpan, Long startTimestamp,
-      Long endTimestamp);
+  protected BigDecimal toValue(long value) {
+    return BigDecimal.valueOf(value, getScale());
+  }
+
+  /**
+   * Adds the share of a single history entry to the accumulator. Used for new purchases by
+   * {@link #addToAllCollectors(ShopItemHistoryEntry)}, for replayed history and when the history
+   * of a single key is calculated again.
+   */
+  protected abstract void accumulate(ShopItemHistoryEntry entry, MetricAccumulator<K> accumulator);
+
+  /**
+   * Fills the accumulator from the grouped history of a rebuild. Has to give the same windows as
+   * passing every single entry to {@link #accumulate(ShopItemHistoryEntry, MetricAccumulator)}.
+   */
+  protected abstract void accumulate(MetricAggregates aggregates,
+      MetricAccumulator<K> accumulator);
+
+  private void add(ShopItemHistoryEntry entry) {
+    accumulate(entry, metrics);
+    changed();
+  }
+
+  /**
+   * The version is increased after every change of the values, so two reads with the same version
+   * (on the same UTC day, see {@link MetricWindow}) return the same metric. Changes of the
+   * entities themselves are tracked by {@link MetricEntityResolver#getVersion()}.
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  protected void changed() {
+    version.incrementAndGet();
+  }
 
-  protected abstract String getKey(T entity);
+  protected abstract K getKey(T entity);
 
-  protected abstract T findByKey(String key);
+  protected abstract T findByKey(K key);
+
+  /**
+   * Looks up the entities of many keys at once. Keys without an entity are left out.
+   */
+  protected Map<K, T> findAllByKey(Collection<K> keys) {
+    Map<K, T> entities = new HashMap<>();
+    for (K key : keys) {
+      T entity = findByKey(key);
+      if (entity != null) {
+        entities.put(key, entity);
+      }
+    }
+    return entities;
+  }
 
   /**
    * @param entity
@@ -96,54 +295,181 @@ public abstract class AbstractMetricCollector<T> {
    */
   protected abstract boolean filterOut(T entity);
 
-  protected void updateEntry(T entity) {
-    long now = Instant.now().toEpochMilli();
-    if (filterOut(entity)) {
-      return;
+  protected abstract void updateEntry(T entity);
+
+  /**
+   * Replaces the windows of a single key with the values of the given history.
+   */
+  protected void recalculate(K key, Collection<ShopItemHistoryEntry> history) {
+    MetricAccumulator<K> recalculated = createAccumulator(Instant.now().toEpochMilli());
+    recalculated.seed(key);
+    for (ShopItemHistoryEntry entry : history) {
+      accumulate(entry, recalculated);
     }
-    metricEntries_Weekly.put(getKey(entity),
-        calculateValue(entity, TimeSpan.WEEK, now - WEEK_MILLIS, now));
-    metricEntries_Monthly.put(getKey(entity),
-        calculateValue(entity, TimeSpan.MONTH, now - MONTH_MILLIS, now));
-    metricEntries_AllTime.put(getKey(entity), calculateValue(entity, TimeSpan.ALL_TIME, 0L, now));
+    recalculated.get(key).ifPresent(window -> metrics.put(key, window));
+    changed();
   }
 
-  protected void removeEntry(T entity) {
-    metricEntries_Weekly.remove(getKey(entity));
-    metricEntries_Monthly.remove(getKey(entity));
-    metricEntries_AllTime.remove(getKey(entity));
-  }
-
-  protected Optional<BigDecimal> getValue(TimeSpan timeSpan, String key) {
-    BigDecimal value;
-    switch (timeSpan) {
-      case WEEK -> value = metricEntries_Weekly.get(key);
-      case MONTH -> value = metricEntries_Monthly.get(key);
-      case ALL_TIME -> value = metricEntries_AllTime.get(key);
-      default -> throw new IllegalStateException("Unexpected value: " + timeSpan);
+  protected MetricAccumulator<K> createAccumulator(long now) {
+    return new MetricAccumulator<>(now, getSlotCount(), this::evaluate);
+  }
+
+  /**
+   * Writes a key to a snapshot. Keys are written by value, so they can be read by another run.
+   */
+  protected abstract void writeKey(DataOutput out, K key) throws IOException;
+
+  protected abstract K readKey(DataInput in) throws IOException;
+
+  /**
+   * Writes the windows of all keys to a snapshot, see {@link CollectorAccumulator#readWindows}.
+   */
+  void writeWindows(DataOutput out) throws IOException {
+    Map<K, MetricWindow> windows = metrics.getWindows();
+    out.writeInt(windows.size());
+    for (Map.Entry<K, MetricWindow> entry : windows.entrySet()) {
+      writeKey(out, entry.getKey());
+      entry.getValue().write(out);
     }
-    if (value == null) {
+  }
+
+  /**
+   * Registers all entities that should show up in the metric, even without any history.
+   */
+  protected void seed(Collection<T> entities, MetricAccumulator<K> accumulator) {
+    for (T entity : entities) {
+      if (!filterOut(entity)) {
+        accumulator.seed(getKey(entity));
+      }
+    }
+  }
+
+  /**
+   * Replaces the current values with the result of a rebuild.
+   */
+  protected void publish(MetricAccumulator<K> accumulator) {
+    accumulator.advance(Instant.now().toEpochMilli());
+    accumulator.index();
+    metrics = accumulator;
+    changed();
+  }
+
+  private void reconcile(Collection<T> entities) {
+    Set<K> keys = new HashSet<>();
+    for (T entity : entities) {
+      if (!filterOut(entity)) {
+        keys.add(getKey(entity));
+        updateEntry(entity);
+      }
+    }
+    MetricAccumulator<K> current = metrics;
+    current.getWindows().keySet().stream().filter(key -> !keys.contains(key)).toList()
+        .forEach(current::remove);
+    changed();
+  }
+
+  /**
+   * @return a timer of this collector, e.g. to alert on slow metric requests
+   */
+  protected Timer timer(String name) {
+    return Metrics.timer(name, "collector", getClass().getSimpleName());
+  }
+
+  protected void removeEntry(T entity) {
+    metrics.remove(getKey(entity));
+  }
+
+  protected Optional<BigDecimal> getValue(TimeSpan timeSpan, K key) {
+    return getRanking(timeSpan).flatMap(ranking -> ranking.get(key)).map(this::toValue);
+  }
+
+  /**
+   * Reads never lock: the accumulator of the last rebuild is swapped in as a whole, and the
+   * returned snapshot does not change while the request is served.
+   *
+   * @return the current ranking of the time span, or empty if the span is not supported
+   */
+  protected Optional<MetricRanking.Snapshot<K>> getRanking(TimeSpan timeSpan) {
+    MetricAccumulator<K> current = metrics;
+    current.advance(Instant.now().toEpochMilli());
+    return current.getRanking(timeSpan).map(MetricRanking::snapshot);
+  }
+
+  /**
+   * Returns a page of the metric, highest values first. Only the returned entries are looked up.
+   */
+  public Optional<List<MetricEntry<T>>> getMetricEntries(TimeSpan timeSpan, int offset,
+      int limit) {
+    return timer("prost.metrics.read").record(() -> getRanking(timeSpan).map(
+        ranking -> page(ranking.stream(), offset, limit, this::mapToMetricEntries)));
+  }
+
+  /**
+   * Same as {@link #getMetricEntries(TimeSpan, int, int)}, for the purchases from the first to the
+   * last UTC day (both included) instead of a time span.
+   *
+   * @return the page, empty if the range ends before it begins
+   */
+  public Optional<List<MetricEntry<T>>> getMetricEntries(LocalDate from, LocalDate to,
+      int offset, int limit) {
+    if (from.isAfter(to)) {
       return Optional.empty();
     }
-    return Optional.of(value);
+    return Optional.of(timer("prost.metrics.read").record(
+        () -> page(rank(from, to).stream(), offset, limit, this::mapToMetricEntries)));
   }
 
-  public Optional<List<MetricEntry<T>>> getMetricEntries(TimeSpan timeSpan) {
-    return switch (timeSpan) {
-      case WEEK -> Optional.of(mapToMetricEntries(metricEntries_Weekly));
-      case MONTH -> Optional.of(mapToMetricEntries(metricEntries_Monthly));
-      case ALL_TIME -> Optional.of(mapToMetricEntries(metricEntries_AllTime));
-      default -> throw new IllegalStateException("Unexpected value: " + timeSpan);
-    };
+  /**
+   * Ranks all keys by their values from the first to the last UTC day, both included.
+   */
+  protected List<RankedValue<K>> rank(LocalDate from, LocalDate to) {
+    MetricAccumulator<K> current = metrics;
+    return current.rank(MetricWindow.toBucket(from), MetricWindow.toBucket(to));
   }
 
-  protected List<MetricEntry<T>> mapToMetricEntries(
-      ConcurrentHashMap<String, BigDecimal> metricEntries) {
+  /**
+   * Maps the ranking in batches of up to {@link #RESOLVE_BATCH_SIZE} entries, so the entities of a
+   * batch can be loaded with a single query. The mapper may drop entries; the page is filled up
+   * from the following ones.
+   */
+  protected static <K, R> List<R> page(Stream<RankedValue<K>> ranking, int offset, int limit,
+      Function<List<RankedValue<K>>, List<R>> mapper) {
+    Iterator<RankedValue<K>> iterator = ranking.iterator();
+    List<R> result = new ArrayList<>();
+    long skipped = 0;
+
+    while (result.size() < limit && iterator.hasNext()) {
+      long needed = offset - skipped + limit - result.size();
+      List<RankedValue<K>> batch = new ArrayList<>();
+      while (batch.size() < Math.min(needed, RESOLVE_BATCH_SIZE) && iterator.hasNext()) {
+        batch.add(iterator.next());
+      }
+
+      for (R mapped : mapper.apply(batch)) {
+        if (skipped < offset) {
+          skipped++;
+        } else if (result.size() < limit) {
+          result.add(mapped);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Looks up the place of a single key without reading the rest of the metric.
+   */
+  public Optional<MetricPositionDTO> getPosition(TimeSpan timeSpan, K key) {
+    return getRanking(timeSpan).flatMap(ranking -> ranking.getPosition(key))
+        .map(position -> new MetricPositionDTO(key.toString(), position.position() + 1,
+            position.total(), toValue(position.value())));
+  }
 
-    return metricEntries.entrySet().stream()
-        .sorted(Map.Entry.<String, BigDecimal>comparingByValue().reversed())
-        .map(entry -> new MetricEntry<>(entry.getKey(), findByKey(entry.getKey()),
-            entry.getValue()))
+  protected List<MetricEntry<T>> mapToMetricEntries(List<RankedValue<K>> ranking) {
+    Map<K, T> entities = findAllByKey(ranking.stream().map(RankedValue::key).toList());
+    return ranking.stream()
+        .map(entry -> new MetricEntry<>(entry.key().toString(), entities.get(entry.key()),
+            toValue(entry.value())))
         .collect(Collectors.toList());
   }
 
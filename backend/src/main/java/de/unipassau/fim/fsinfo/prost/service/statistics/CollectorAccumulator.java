@@ -0,0 +1,66 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * A collector together with a new accumulator of the same key type. Rebuilds and snapshots fill
+ * the accumulator off to the side and swap it in with {@link #publish()}.
+ */
+final class CollectorAccumulator<K extends Comparable<K>> {
+
+  private final AbstractMetricCollector<?, K> collector;
+  private final MetricAccumulator<K> accumulator;
+
+  private CollectorAccumulator(AbstractMetricCollector<?, K> collector, long now) {
+    this.collector = collector;
+    this.accumulator = collector.createAccumulator(now);
+  }
+
+  static <K extends Comparable<K>> CollectorAccumulator<K> of(
+      AbstractMetricCollector<?, K> collector, long now) {
+    return new CollectorAccumulator<>(collector, now);
+  }
+
+  AbstractMetricCollector<?, K> getCollector() {
+    return collector;
+  }
+
+  <T> void seed(Class<T> entityType, Collection<T> entities) {
+    if (collector.supportsEntityType(entityType)) {
+      @SuppressWarnings("unchecked")
+      AbstractMetricCollector<T, K> typedCollector = (AbstractMetricCollector<T, K>) collector;
+      typedCollector.seed(entities, accumulator);
+    }
+  }
+
+  void accumulate(MetricAggregates aggregates) {
+    collector.accumulate(aggregates, accumulator);
+  }
+
+  void accumulate(ShopItemHistoryEntry entry) {
+    collector.accumulate(entry, accumulator);
+  }
+
+  /**
+   * Reads what {@link AbstractMetricCollector#writeWindows} wrote.
+   */
+  void readWindows(DataInput in) throws IOException {
+    int slotCount = collector.getSlotCount();
+    int keyCount = in.readInt();
+    for (int i = 0; i < keyCount; i++) {
+      K key = collector.readKey(in);
+      accumulator.put(key, MetricWindow.read(in, slotCount));
+    }
+  }
+
+  void readExtra(DataInput in) throws IOException {
+    accumulator.readExtra(in);
+  }
+
+  void publish() {
+    collector.publish(accumulator);
+  }
+}
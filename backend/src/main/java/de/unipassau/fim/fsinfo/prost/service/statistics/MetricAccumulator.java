@@ -0,0 +1,197 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking.RankedValue;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Holds the {@link MetricWindow}s of all keys of a single collector. A collector keeps one
+ * accumulator for its current values; the {@link MetricRebuildEngine} fills a new one off to the
+ * side and the collector swaps it in afterwards.
+ * <p>
+ * Once {@link #index()} was called, every change of a window is also applied to the
+ * {@link MetricRanking} of each time span. Rebuilds only index the finished accumulator, so the
+ * ranking is not updated for every single history entry.
+ */
+public class MetricAccumulator<K extends Comparable<K>> {
+
+  private final int slotCount;
+  private final ToLongFunction<long[]> evaluator;
+  private final ConcurrentHashMap<K, MetricWindow> windows = new ConcurrentHashMap<>();
+
+  private volatile long currentBucket;
+  private volatile Map<TimeSpan, MetricRanking<K>> rankings;
+
+  /**
+   * @param evaluator turns the slots of a window into the value the keys are ranked by
+   */
+  public MetricAccumulator(long now, int slotCount, ToLongFunction<long[]> evaluator) {
+    this.currentBucket = MetricWindow.toBucket(now);
+    this.slotCount = slotCount;
+    this.evaluator = evaluator;
+  }
+
+  /**
+   * Registers a key with zero-values, so it is part of the result even without any history.
+   */
+  public MetricWindow seed(K key) {
+    MetricWindow window = windows.get(key);
+    if (window == null) {
+      window = windows.computeIfAbsent(key, k -> new MetricWindow(slotCount, currentBucket));
+      synchronized (window) {
+        reindex(key, window);
+      }
+    }
+    return window;
+  }
+
+  public boolean isSeeded(K key) {
+    return windows.containsKey(key);
+  }
+
+  /**
+   * Adds the value to every time span the timestamp falls into.
+   */
+  public void add(K key, long timestamp, int slot, long value) {
+    add(key, seed(key), timestamp, slot, value);
+  }
+
+  /**
+   * Same as {@link #add(Comparable, long, int, long)}, but ignores keys that were not seeded before
+   * (e.g. hidden users or deleted items).
+   */
+  public void addIfSeeded(K key, long timestamp, int slot, long value) {
+    MetricWindow window = windows.get(key);
+    if (window != null) {
+      add(key, window, timestamp, slot, value);
+    }
+  }
+
+  private void add(K key, MetricWindow window, long timestamp, int slot, long value) {
+    // holding the window lock keeps concurrent updates of a key in order within the rankings
+    synchronized (window) {
+      window.add(timestamp, slot, value);
+      reindex(key, window);
+    }
+  }
+
+  public Optional<MetricWindow> get(K key) {
+    return Optional.ofNullable(windows.get(key));
+  }
+
+  public void put(K key, MetricWindow window) {
+    synchronized (window) {
+      window.advance(currentBucket);
+      windows.put(key, window);
+      reindex(key, window);
+    }
+  }
+
+  public void remove(K key) {
+    MetricWindow window = windows.remove(key);
+    Map<TimeSpan, MetricRanking<K>> current = rankings;
+    if (window != null && current != null) {
+      synchronized (window) {
+        current.values().forEach(ranking -> ranking.remove(key));
+      }
+    }
+  }
+
+  /**
+   * Expires old values of all keys. Only iterates the keys if a new bucket has begun since the last
+   * call.
+   */
+  public void advance(long now) {
+    long bucket = MetricWindow.toBucket(now);
+    if (bucket <= currentBucket) {
+      return;
+    }
+    synchronized (this) {
+      if (bucket > currentBucket) {
+        currentBucket = bucket;
+        windows.forEach((key, window) -> {
+          synchronized (window) {
+            window.advance(bucket);
+            reindex(key, window);
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Builds the rankings of all time spans from the current windows and keeps them up to date from
+   * then on.
+   */
+  public synchronized void index() {
+    if (rankings != null) {
+      return;
+    }
+    Map<TimeSpan, MetricRanking<K>> created = new EnumMap<>(TimeSpan.class);
+    for (TimeSpan timeSpan : MetricWindow.TIME_SPANS) {
+      created.put(timeSpan, new MetricRanking<>());
+    }
+    rankings = created;
+    windows.forEach((key, window) -> {
+      synchronized (window) {
+        reindex(key, window);
+      }
+    });
+  }
+
+  public Optional<MetricRanking<K>> getRanking(TimeSpan timeSpan) {
+    Map<TimeSpan, MetricRanking<K>> current = rankings;
+    return current == null ? Optional.empty() : Optional.ofNullable(current.get(timeSpan));
+  }
+
+  /**
+   * Ranks all keys by their values from the first to the last bucket, both included. Unlike the
+   * rankings of the time spans this is calculated on every call, in O(log n) per key.
+   */
+  public List<RankedValue<K>> rank(long fromBucket, long toBucket) {
+    List<RankedValue<K>> ranked = new ArrayList<>(windows.size());
+    windows.forEach((key, window) -> ranked.add(
+        new RankedValue<>(evaluator.applyAsLong(window.get(fromBucket, toBucket)), key)));
+    ranked.sort(MetricRanking::byRank);
+    return ranked;
+  }
+
+  public long evaluate(MetricWindow window, TimeSpan timeSpan) {
+    return evaluator.applyAsLong(window.get(timeSpan));
+  }
+
+  private void reindex(K key, MetricWindow window) {
+    Map<TimeSpan, MetricRanking<K>> current = rankings;
+    // a key removed during an update must not show up in the rankings again
+    if (current == null || windows.get(key) != window) {
+      return;
+    }
+    current.forEach((timeSpan, ranking) -> ranking.update(key, evaluate(window, timeSpan)));
+  }
+
+  public Map<K, MetricWindow> getWindows() {
+    return windows;
+  }
+
+  /**
+   * Writes values that are not kept in the windows to a snapshot. Accumulators that only use
+   * windows write nothing.
+   */
+  public void writeExtra(DataOutput out) throws IOException {
+  }
+
+  /**
+   * Reads what {@link #writeExtra(DataOutput)} wrote.
+   */
+  public void readExtra(DataInput in) throws IOException {
+  }
+}
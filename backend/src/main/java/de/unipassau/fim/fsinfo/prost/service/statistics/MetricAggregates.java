@@ -0,0 +1,85 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.ItemAggregate;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.ItemUserAggregate;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.UserAggregate;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.UserHourAggregate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * The grouped shop history of a single rebuild. Every result set is queried at most once and
+ * shared by all collectors that need it; collectors running in parallel wait for the query that is
+ * already in progress. Rows are grouped per key and UTC day, as kept by the {@link MetricWindow}s.
+ */
+public class MetricAggregates {
+
+  private final ShopItemHistoryRepository repository;
+  private final long before;
+
+  private final Map<String, CompletableFuture<List<?>>> results = new ConcurrentHashMap<>();
+  private final AtomicLong rows = new AtomicLong();
+
+  /**
+   * @param before only entries older than this timestamp are included
+   */
+  public MetricAggregates(ShopItemHistoryRepository repository, long before) {
+    this.repository = repository;
+    this.before = before;
+  }
+
+  public List<UserAggregate> byUser() {
+    return load("user", () -> repository.aggregateByUser(before));
+  }
+
+  public List<ItemAggregate> byItem() {
+    return load("item", () -> repository.aggregateByItem(before));
+  }
+
+  public List<ItemUserAggregate> byItemAndUser() {
+    return load("item-user", () -> repository.aggregateByItemAndUser(before));
+  }
+
+  /**
+   * Not grouped by day, the rows are already per UTC hour.
+   */
+  public List<UserHourAggregate> byUserAndHour() {
+    return load("user-hour", () -> repository.aggregateByUserAndHour(before));
+  }
+
+  /**
+   * @return a timestamp within the UTC day of an aggregate row
+   */
+  public static long toTimestamp(long day) {
+    return day * MetricWindow.BUCKET_MILLIS;
+  }
+
+  /**
+   * @return the number of rows that were read
+   */
+  public long getRows() {
+    return rows.get();
+  }
+
+  @SuppressWarnings("unchecked")
+  private <R> List<R> load(String name, Supplier<List<R>> query) {
+    CompletableFuture<List<?>> created = new CompletableFuture<>();
+    CompletableFuture<List<?>> result = results.putIfAbsent(name, created);
+    if (result == null) {
+      result = created;
+      try {
+        List<R> loaded = query.get();
+        rows.addAndGet(loaded.size());
+        created.complete(loaded);
+      } catch (RuntimeException e) {
+        created.completeExceptionally(e);
+      }
+    }
+    return (List<R>) result.join();
+  }
+}
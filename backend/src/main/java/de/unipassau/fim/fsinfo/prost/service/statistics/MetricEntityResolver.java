@@ -0,0 +1,175 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import jakarta.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Resolves the keys of metric responses to users and items. All keys of a response are loaded
+ * with a single query, and the display data is cached until the UserService or ShopService change
+ * the entity. Like the {@link de.unipassau.fim.fsinfo.prost.service.ShopEntityCache}, an entity is
+ * evicted once right away and once more when the transaction that changes it is completed.
+ * <p>
+ * The ids of all hidden users are kept in memory, so collectors can leave them out of a metric
+ * without looking up the user of every history entry.
+ */
+@Service
+public class MetricEntityResolver {
+
+  // the cache is cleared once it grows beyond this, it only has to hold the ranked entities
+  private static final int MAX_CACHE_SIZE = 10000;
+
+  private static final Map<String, ProstUser> USER_CACHE = new ConcurrentHashMap<>();
+  private static final Map<String, ShopItem> ITEM_CACHE = new ConcurrentHashMap<>();
+  private static final Set<String> HIDDEN_USERS = ConcurrentHashMap.newKeySet();
+  private static final AtomicLong VERSION = new AtomicLong();
+
+  public static void evictUser(String id) {
+    evict(USER_CACHE, id);
+  }
+
+  public static void evictItem(String id) {
+    evict(ITEM_CACHE, id);
+  }
+
+  private static void evict(Map<String, ?> cache, String id) {
+    cache.remove(id);
+    VERSION.incrementAndGet();
+
+    // until the change is committed, other transactions still read and cache the old state
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCompletion(int status) {
+          cache.remove(id);
+          VERSION.incrementAndGet();
+        }
+      });
+    }
+  }
+
+  /**
+   * @return a version that is increased whenever the display data or the hidden state of a user
+   * or item changes
+   */
+  public static long getVersion() {
+    return VERSION.get();
+  }
+
+  /**
+   * Has to be called whenever a user is created or hidden/unhidden.
+   */
+  public static void updateHidden(ProstUser user) {
+    if (Boolean.TRUE.equals(user.getHidden())) {
+      HIDDEN_USERS.add(user.getId());
+    } else {
+      HIDDEN_USERS.remove(user.getId());
+    }
+    VERSION.incrementAndGet();
+  }
+
+  public static void removeHidden(String id) {
+    HIDDEN_USERS.remove(id);
+    VERSION.incrementAndGet();
+  }
+
+  private final UserRepository userRepository;
+  private final ShopItemRepository shopItemRepository;
+
+  @Autowired
+  public MetricEntityResolver(UserRepository userRepository,
+      ShopItemRepository shopItemRepository) {
+    this.userRepository = userRepository;
+    this.shopItemRepository = shopItemRepository;
+  }
+
+  // runs before the collectors are filled, they depend on this service
+  @PostConstruct
+  public void loadHiddenUsers() {
+    HIDDEN_USERS.clear();
+    for (ProstUser user : userRepository.findByHidden(true)) {
+      HIDDEN_USERS.add(user.getId());
+    }
+    System.out.println("[MER] :: " + HIDDEN_USERS.size() + " hidden user(s)");
+  }
+
+  /**
+   * @return true if the user is hidden. Unknown users are not.
+   */
+  public boolean isHidden(String userId) {
+    return HIDDEN_USERS.contains(userId);
+  }
+
+  /**
+   * @return the found users by id. Users only contain their display data, no balance or email.
+   */
+  public Map<String, ProstUser> findUsers(Collection<String> ids) {
+    return resolve(ids, USER_CACHE, userRepository::findAllById, ProstUser::getId,
+        MetricEntityResolver::toDisplayUser);
+  }
+
+  public Optional<ProstUser> findUser(String id) {
+    return Optional.ofNullable(findUsers(Set.of(id)).get(id));
+  }
+
+  public Map<String, ShopItem> findItems(Collection<String> ids) {
+    return resolve(ids, ITEM_CACHE, shopItemRepository::findAllById, ShopItem::getId,
+        Function.identity());
+  }
+
+  public Optional<ShopItem> findItem(String id) {
+    return Optional.ofNullable(findItems(Set.of(id)).get(id));
+  }
+
+  private static <T> Map<String, T> resolve(Collection<String> ids, Map<String, T> cache,
+      Function<Set<String>, Iterable<T>> loader, Function<T, String> idOf,
+      Function<T, T> toCached) {
+    Map<String, T> result = new HashMap<>();
+    Set<String> missing = new HashSet<>();
+    for (String id : ids) {
+      T cached = cache.get(id);
+      if (cached != null) {
+        result.put(id, cached);
+      } else {
+        missing.add(id);
+      }
+    }
+
+    if (!missing.isEmpty()) {
+      if (cache.size() + missing.size() > MAX_CACHE_SIZE) {
+        cache.clear();
+      }
+      long version = VERSION.get();
+      for (T loaded : loader.apply(missing)) {
+        T entity = toCached.apply(loaded);
+        cache.put(idOf.apply(entity), entity);
+        // evicted since the version was taken, the loaded entity may already be outdated
+        if (VERSION.get() != version) {
+          cache.remove(idOf.apply(entity), entity);
+        }
+        result.put(idOf.apply(entity), entity);
+      }
+    }
+    return result;
+  }
+
+  private static ProstUser toDisplayUser(ProstUser user) {
+    return new ProstUser(user.getId(), user.getDisplayName(), null, user.getEnabled(),
+        user.getHidden(), user.getKiosk());
+  }
+}
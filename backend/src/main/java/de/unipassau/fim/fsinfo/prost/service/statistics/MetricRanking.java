@@ -0,0 +1,321 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * All keys of a collector in a single time span, ordered by their value (highest first, ties by
+ * key). It is updated together with the values, so reading the top entries does not need to sort.
+ * <p>
+ * The order is kept in a treap whose nodes know the size of their subtree. This answers the
+ * position of a key and the key at a position in O(log n).
+ * <p>
+ * Nodes are never changed: an update copies the O(log n) nodes on its path and publishes the new
+ * trees with a single volatile write. Readers take a {@link Snapshot} without any lock and see a
+ * consistent ranking for as long as they hold it, no matter how many updates happen meanwhile.
+ */
+public class MetricRanking<K extends Comparable<K>> {
+
+  private volatile Snapshot<K> snapshot = new Snapshot<>(null, null);
+
+  public synchronized void update(K key, long value) {
+    Snapshot<K> current = snapshot;
+    RankedValue<K> old = current.find(key);
+    if (old != null) {
+      if (old.value() == value) {
+        return;
+      }
+      current = current.without(old);
+    }
+    snapshot = current.with(new RankedValue<>(value, key));
+  }
+
+  public synchronized void remove(K key) {
+    Snapshot<K> current = snapshot;
+    RankedValue<K> old = current.find(key);
+    if (old != null) {
+      snapshot = current.without(old);
+    }
+  }
+
+  /**
+   * @return the ranking as it is right now, unaffected by later updates
+   */
+  public Snapshot<K> snapshot() {
+    return snapshot;
+  }
+
+  public Optional<Long> get(K key) {
+    return snapshot.get(key);
+  }
+
+  /**
+   * @return the value of the key and its 0-based position in the ranking
+   */
+  public Optional<Position> getPosition(K key) {
+    return snapshot.getPosition(key);
+  }
+
+  /**
+   * @return the entry at the 0-based position, empty if the ranking is shorter
+   */
+  public Optional<RankedValue<K>> getAt(int position) {
+    return snapshot.getAt(position);
+  }
+
+  public Stream<RankedValue<K>> stream() {
+    return snapshot.stream();
+  }
+
+  public int size() {
+    return snapshot.size();
+  }
+
+  /**
+   * An immutable state of the ranking. The same entries are kept twice: ordered by rank, and
+   * ordered by key to look up the current value of a key.
+   */
+  public static final class Snapshot<K extends Comparable<K>> {
+
+    private final Node<K> byRank;
+    private final Node<K> byKey;
+
+    private Snapshot(Node<K> byRank, Node<K> byKey) {
+      this.byRank = byRank;
+      this.byKey = byKey;
+    }
+
+    public Optional<Long> get(K key) {
+      return Optional.ofNullable(find(key)).map(RankedValue::value);
+    }
+
+    public Optional<Position> getPosition(K key) {
+      RankedValue<K> entry = find(key);
+      if (entry == null) {
+        return Optional.empty();
+      }
+      return Optional.of(new Position(rank(byRank, entry), entry.value(), size()));
+    }
+
+    public Optional<RankedValue<K>> getAt(int position) {
+      if (position < 0 || position >= size()) {
+        return Optional.empty();
+      }
+      return Optional.of(select(byRank, position));
+    }
+
+    /**
+     * Walks the ranking in order, highest value first.
+     */
+    public Stream<RankedValue<K>> stream() {
+      Iterator<RankedValue<K>> iterator = new Iterator<>() {
+        private final Deque<Node<K>> path = new ArrayDeque<>();
+
+        {
+          descendLeft(byRank);
+        }
+
+        private void descendLeft(Node<K> node) {
+          for (; node != null; node = node.left) {
+            path.push(node);
+          }
+        }
+
+        @Override
+        public boolean hasNext() {
+          return !path.isEmpty();
+        }
+
+        @Override
+        public RankedValue<K> next() {
+          if (path.isEmpty()) {
+            throw new NoSuchElementException();
+          }
+          Node<K> node = path.pop();
+          descendLeft(node.right);
+          return node.entry;
+        }
+      };
+      return StreamSupport.stream(Spliterators.spliterator(iterator, size(),
+          Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE), false);
+    }
+
+    public int size() {
+      return MetricRanking.size(byRank);
+    }
+
+    private RankedValue<K> find(K key) {
+      Node<K> node = byKey;
+      while (node != null) {
+        int cmp = key.compareTo(node.entry.key());
+        if (cmp == 0) {
+          return node.entry;
+        }
+        node = cmp < 0 ? node.left : node.right;
+      }
+      return null;
+    }
+
+    private Snapshot<K> with(RankedValue<K> entry) {
+      int priority = ThreadLocalRandom.current().nextInt();
+      return new Snapshot<>(insert(byRank, entry, priority, MetricRanking::byRank),
+          insert(byKey, entry, priority, MetricRanking::byKey));
+    }
+
+    private Snapshot<K> without(RankedValue<K> entry) {
+      return new Snapshot<>(delete(byRank, entry, MetricRanking::byRank),
+          delete(byKey, entry, MetricRanking::byKey));
+    }
+  }
+
+  /**
+   * The order of the ranking: highest value first, ties by key.
+   */
+  public static <K extends Comparable<K>> int byRank(RankedValue<K> a, RankedValue<K> b) {
+    int byValue = Long.compare(b.value(), a.value());
+    return byValue != 0 ? byValue : byKey(a, b);
+  }
+
+  private static <K extends Comparable<K>> int byKey(RankedValue<K> a, RankedValue<K> b) {
+    return a.key().compareTo(b.key());
+  }
+
+  private static <K extends Comparable<K>> int rank(Node<K> root, RankedValue<K> entry) {
+    int rank = 0;
+    Node<K> node = root;
+    while (node != null) {
+      int cmp = byRank(entry, node.entry);
+      if (cmp <= 0) {
+        if (cmp == 0) {
+          return rank + size(node.left);
+        }
+        node = node.left;
+      } else {
+        rank += size(node.left) + 1;
+        node = node.right;
+      }
+    }
+    return rank;
+  }
+
+  private static <K> RankedValue<K> select(Node<K> root, int position) {
+    Node<K> node = root;
+    while (true) {
+      int leftSize = size(node.left);
+      if (position < leftSize) {
+        node = node.left;
+      } else if (position == leftSize) {
+        return node.entry;
+      } else {
+        position -= leftSize + 1;
+        node = node.right;
+      }
+    }
+  }
+
+  private static <K> Node<K> insert(Node<K> node, RankedValue<K> entry, int priority,
+      Comparator<RankedValue<K>> order) {
+    if (node == null) {
+      return new Node<>(entry, priority, null, null);
+    }
+    if (priority > node.priority) {
+      Node<K>[] parts = split(node, entry, order);
+      return new Node<>(entry, priority, parts[0], parts[1]);
+    }
+    if (order.compare(entry, node.entry) < 0) {
+      return node.withChildren(insert(node.left, entry, priority, order), node.right);
+    }
+    return node.withChildren(node.left, insert(node.right, entry, priority, order));
+  }
+
+  private static <K> Node<K> delete(Node<K> node, RankedValue<K> entry,
+      Comparator<RankedValue<K>> order) {
+    if (node == null) {
+      return null;
+    }
+    int cmp = order.compare(entry, node.entry);
+    if (cmp == 0) {
+      return merge(node.left, node.right);
+    }
+    if (cmp < 0) {
+      return node.withChildren(delete(node.left, entry, order), node.right);
+    }
+    return node.withChildren(node.left, delete(node.right, entry, order));
+  }
+
+  /**
+   * Splits into the entries before and the entries after the given one.
+   */
+  @SuppressWarnings("unchecked")
+  private static <K> Node<K>[] split(Node<K> node, RankedValue<K> entry,
+      Comparator<RankedValue<K>> order) {
+    if (node == null) {
+      return new Node[]{null, null};
+    }
+    if (order.compare(node.entry, entry) < 0) {
+      Node<K>[] parts = split(node.right, entry, order);
+      return new Node[]{node.withChildren(node.left, parts[0]), parts[1]};
+    }
+    Node<K>[] parts = split(node.left, entry, order);
+    return new Node[]{parts[0], node.withChildren(parts[1], node.right)};
+  }
+
+  private static <K> Node<K> merge(Node<K> left, Node<K> right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      return left.withChildren(left.left, merge(left.right, right));
+    }
+    return right.withChildren(merge(left, right.left), right.right);
+  }
+
+  private static int size(Node<?> node) {
+    return node == null ? 0 : node.size;
+  }
+
+  private static final class Node<K> {
+
+    private final RankedValue<K> entry;
+    private final int priority;
+    private final Node<K> left;
+    private final Node<K> right;
+    private final int size;
+
+    private Node(RankedValue<K> entry, int priority, Node<K> left, Node<K> right) {
+      this.entry = entry;
+      this.priority = priority;
+      this.left = left;
+      this.right = right;
+      this.size = size(left) + size(right) + 1;
+    }
+
+    private Node<K> withChildren(Node<K> left, Node<K> right) {
+      return new Node<>(entry, priority, left, right);
+    }
+  }
+
+  public record RankedValue<K>(long value, K key) {
+
+  }
+
+  /**
+   * @param position 0-based position in the ranking
+   * @param total    number of keys in the ranking
+   */
+  public record Position(int position, long value, int total) {
+
+  }
+}
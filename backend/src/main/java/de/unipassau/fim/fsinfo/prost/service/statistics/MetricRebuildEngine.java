@@ -0,0 +1,140 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
+import jakarta.annotation.PreDestroy;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Rebuilds all registered collectors from the shop history, one task per collector on a bounded
+ * pool. The collectors are filled from grouped queries, see {@link MetricAggregates}, that are
+ * shared by all of them, instead of each collector querying the history per user/item and time
+ * span.
+ */
+@Service
+public class MetricRebuildEngine {
+
+  // detach replayed entries regularly, so the persistence context does not grow with the history
+  private static final int CLEAR_INTERVAL = 1000;
+
+  private final ShopItemHistoryRepository shopItemHistoryRepository;
+  private final ExecutorService executor;
+
+  @PersistenceContext
+  private EntityManager entityManager;
+
+  /**
+   * @param threads number of collectors that are rebuilt at the same time, 0 for one per core
+   */
+  @Autowired
+  public MetricRebuildEngine(ShopItemHistoryRepository shopItemHistoryRepository,
+      @Value("${METRIC_REBUILD_THREADS:0}") int threads) {
+    this.shopItemHistoryRepository = shopItemHistoryRepository;
+    int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    AtomicInteger count = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(poolSize, runnable -> {
+      Thread thread = new Thread(runnable, "metric-rebuild-" + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Fills new accumulators for all collectors and swaps them in once every collector is done, so
+   * readers see the previous values until then. Each collector is filled by its own task from the
+   * settled history (see {@link AbstractMetricCollector#SETTLE_MILLIS}), the duration is about that
+   * of the slowest collector. The recent purchases are added one by one while no purchase can be
+   * added, so each of them is counted exactly once, whether it is still queued or not.
+   */
+  @Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
+  public synchronized RebuildResult rebuild(Collection<ProstUser> users,
+      Collection<ShopItem> items) {
+    long start = System.currentTimeMillis();
+    long now = Instant.now().toEpochMilli();
+    long settledBefore = now - AbstractMetricCollector.SETTLE_MILLIS;
+
+    // the tasks query in their own transactions, all of them see the same settled entries
+    MetricAggregates aggregates = new MetricAggregates(shopItemHistoryRepository, settledBefore);
+
+    Map<CollectorAccumulator<?>, CompletableFuture<Void>> tasks = new LinkedHashMap<>();
+    for (AbstractMetricCollector<?, ?> collector : AbstractMetricCollector.getAllCollectors()) {
+      CollectorAccumulator<?> accumulator = CollectorAccumulator.of(collector, now);
+      tasks.put(accumulator, CompletableFuture.runAsync(
+          () -> collector.timer("prost.metrics.rebuild").record(() -> {
+            accumulator.seed(ProstUser.class, users);
+            accumulator.seed(ShopItem.class, items);
+            accumulator.accumulate(aggregates);
+          }), executor));
+    }
+    tasks.values().forEach(CompletableFuture::join);
+
+    long recentRows = AbstractMetricCollector.lockedForSnapshot(() -> {
+      // every purchase committed by now is read here, the queue skips those it still delivers
+      Map<Long, Long> applied = new HashMap<>();
+      try (Stream<ShopItemHistoryEntry> recent =
+          shopItemHistoryRepository.streamByTimestampGreaterThanEqual(settledBefore)) {
+        recent.forEach(entry -> {
+          applied.put(entry.getId(), entry.getTimestamp());
+          tasks.keySet().forEach(accumulator -> accumulator.accumulate(entry));
+        });
+      }
+      tasks.keySet().forEach(CollectorAccumulator::publish);
+      AbstractMetricCollector.setApplied(applied);
+      return (long) applied.size();
+    });
+    return new RebuildResult(aggregates.getRows() + recentRows,
+        System.currentTimeMillis() - start);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Adds the history entries from the given timestamp on to the current values of the collectors,
+   * e.g. the purchases made around and after a snapshot was saved. Entries that are already part
+   * of the values are skipped.
+   *
+   * @return the number of read entries
+   */
+  @Transactional(readOnly = true, isolation = Isolation.READ_COMMITTED)
+  public long replay(long since) {
+    long rows = 0;
+    try (Stream<ShopItemHistoryEntry> history =
+        shopItemHistoryRepository.streamByTimestampGreaterThanEqual(since)) {
+      Iterator<ShopItemHistoryEntry> iterator = history.iterator();
+      while (iterator.hasNext()) {
+        AbstractMetricCollector.addToAllCollectors(iterator.next());
+
+        if (++rows % CLEAR_INTERVAL == 0) {
+          entityManager.clear();
+        }
+      }
+    }
+    return rows;
+  }
+
+  public record RebuildResult(long rows, long durationMillis) {
+
+  }
+}
@@ -0,0 +1,80 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps the serialized JSON of metric responses for the version of the collector they were read
+ * from. Until the next purchase (or change of a shown user or item) repeated requests are answered
+ * from memory, and clients that send the ETag of {@link #getETag(AbstractMetricCollector)} back
+ * can be answered without a body.
+ */
+@Service
+public class MetricResponseCache {
+
+  // the cache is cleared once it grows beyond this, like the entity cache
+  private static final int MAX_CACHE_SIZE = 1000;
+
+  // the versions start at 0 again after a restart, so an ETag of a previous run could match
+  static final String INSTANCE_ID = Long.toHexString(new SecureRandom().nextLong());
+
+  private final ObjectMapper objectMapper;
+  private final Map<String, CachedResponse> responses = new ConcurrentHashMap<>();
+
+  @Autowired
+  public MetricResponseCache(ObjectMapper objectMapper) {
+    this.objectMapper = objectMapper;
+  }
+
+  /**
+   * @return a strong ETag of the current values of the collector. It changes with every update,
+   * with the displayed users and items, with the UTC day the time spans end with and with every
+   * restart.
+   */
+  public static String getETag(AbstractMetricCollector<?, ?> collector) {
+    return "\"" + INSTANCE_ID + "-" + collector.getClass().getSimpleName() + "-"
+        + collector.getVersion() + "-" + MetricEntityResolver.getVersion() + "-"
+        + MetricWindow.toBucket(Instant.now().toEpochMilli()) + "\"";
+  }
+
+  /**
+   * @param key    identifies the request, e.g. the collector and all parameters
+   * @param eTag   the ETag of the values the response is read from, taken before reading them
+   * @param loader reads the response, empty if the request is invalid
+   * @return the JSON of the response, empty if the loader returned nothing
+   */
+  public Optional<byte[]> get(String key, String eTag, Supplier<? extends Optional<?>> loader) {
+    CachedResponse cached = responses.get(key);
+    if (cached != null && cached.eTag().equals(eTag)) {
+      return Optional.of(cached.json());
+    }
+
+    Optional<?> response = loader.get();
+    if (response.isEmpty()) {
+      return Optional.empty();
+    }
+    byte[] json;
+    try {
+      json = objectMapper.writeValueAsBytes(response.get());
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Could not serialize metric response", e);
+    }
+    if (responses.size() >= MAX_CACHE_SIZE) {
+      responses.clear();
+    }
+    responses.put(key, new CachedResponse(eTag, json));
+    return Optional.of(json);
+  }
+
+  private record CachedResponse(String eTag, byte[] json) {
+
+  }
+}
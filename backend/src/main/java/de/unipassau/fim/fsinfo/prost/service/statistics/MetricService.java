@@ -1,17 +1,19 @@
 package de.unipassau.fim.fsinfo.prost.service.statistics;
 
 import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
-import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
 import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
 import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRebuildEngine.RebuildResult;
+import jakarta.annotation.PreDestroy;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -23,36 +25,60 @@ public class MetricService {
   private final UserRepository userRepository;
   private final ShopItemRepository shopItemRepository;
   private final ShopItemHistoryRepository shopItemHistoryRepository;
-  private static final Long UPDATE_INTERVAL = 1000L * 60 * 60;
+  private final MetricRebuildEngine rebuildEngine;
+  private Timer timer;
 
+  /**
+   * @param rebuildInterval the metrics are only updated with each purchase in between, so a
+   *                        rebuild regularly corrects anything the updates missed. 0 disables it.
+   */
   @Autowired
   public MetricService(UserRepository userRepository, ShopItemRepository shopItemRepository,
-      ShopItemHistoryRepository shopItemHistoryRepository) {
+      ShopItemHistoryRepository shopItemHistoryRepository, MetricRebuildEngine rebuildEngine,
+      @Value("${METRIC_REBUILD_INTERVAL:86400000}") long rebuildInterval) {
     this.userRepository = userRepository;
     this.shopItemRepository = shopItemRepository;
     this.shopItemHistoryRepository = shopItemHistoryRepository;
+    this.rebuildEngine = rebuildEngine;
 
-    Timer t = new Timer();
-    t.scheduleAtFixedRate(new TimerTask() {
-      @Override
-      public void run() {
-        resetMetric();
-      }
-    }, UPDATE_INTERVAL, UPDATE_INTERVAL);
+    if (rebuildInterval > 0) {
+      timer = new Timer("metric-rebuild", true);
+      timer.scheduleAtFixedRate(new TimerTask() {
+        @Override
+        public void run() {
+          // an exception would cancel the timer and with it all following rebuilds
+          try {
+            resetMetric();
+          } catch (RuntimeException e) {
+            System.err.println("[MS] :: Resetting Metrics :: failed :: " + e.getMessage());
+          }
+        }
+      }, rebuildInterval, rebuildInterval);
+    }
   }
 
+  @PreDestroy
+  public void shutdown() {
+    if (timer != null) {
+      timer.cancel();
+    }
+  }
+
+  /**
+   * Rebuilds all metrics from the shop history.
+   *
+   * @return the duration of the rebuild in ms
+   */
   public long resetMetric() {
     System.out.println(
         "[MS] :: Resetting Metrics :: started at " + dateTimeFormatter.format(
             LocalDateTime.now()));
-    long currentTime = System.currentTimeMillis();
-    AbstractMetricCollector.initAllCollectors(ProstUser.class, userRepository.findByHidden(false));
-    AbstractMetricCollector.initAllCollectors(ShopItem.class, shopItemRepository.findAll());
-    AbstractMetricCollector.initAllCollectors(ShopItemHistoryEntry.class,
-        shopItemHistoryRepository.findAll());
-    long dur = (System.currentTimeMillis() - currentTime);
-    System.out.println("[MS] :: Resetting Metrics :: finished after " + dur + " ms");
-    return dur;
+    RebuildResult result = rebuildEngine.rebuild(userRepository.findByHidden(false),
+        shopItemRepository.findAll());
+    System.out.println(
+        "[MS] :: Resetting Metrics :: finished after " + result.durationMillis() + " ms ("
+            + result.rows() + " history entries)");
+    return result.durationMillis();
   }
 
   public void removeFromMetrics(ProstUser user) {
@@ -0,0 +1,256 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRebuildEngine.RebuildResult;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Timer;
+import java.util.TimerTask;
+import lombok.NonNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Saves the values of all collectors to a binary snapshot under the save-location, periodically
+ * and on shutdown. On startup the snapshot is loaded and only the recent history entries that are
+ * not part of it are replayed, instead of rebuilding the metrics from the whole history.
+ */
+@Service
+public class MetricSnapshotService {
+
+  private static final int MAGIC = 0x50524d53; // "PRMS"
+  private static final int VERSION = 5;
+
+  private static final String sep = System.getProperty("file.separator");
+
+  private final File snapshotFile;
+  private final long interval;
+  private final MetricRebuildEngine rebuildEngine;
+  private final UserRepository userRepository;
+  private final ShopItemRepository shopItemRepository;
+  private final List<AbstractMetricCollector<?, ?>> collectors;
+  private final MetricUpdateQueue updateQueue;
+
+  private Timer timer;
+
+  /**
+   * @param collectors injected so that all collectors are registered before the snapshot is loaded
+   */
+  @Autowired
+  public MetricSnapshotService(@Value("${prost.save-location}") @NonNull String saveLocation,
+      @Value("${METRIC_SNAPSHOT_INTERVAL:600000}") long interval,
+      MetricRebuildEngine rebuildEngine, UserRepository userRepository,
+      ShopItemRepository shopItemRepository, List<AbstractMetricCollector<?, ?>> collectors,
+      MetricUpdateQueue updateQueue) throws IOException {
+    File location = new File(saveLocation + sep + "metrics").getAbsoluteFile();
+    Files.createDirectories(location.toPath());
+    this.snapshotFile = new File(location, "metrics.snapshot");
+    this.interval = interval;
+    this.rebuildEngine = rebuildEngine;
+    this.userRepository = userRepository;
+    this.shopItemRepository = shopItemRepository;
+    this.collectors = collectors;
+    this.updateQueue = updateQueue;
+  }
+
+  @PostConstruct
+  public void init() {
+    long start = System.currentTimeMillis();
+    OptionalLong settledBefore = restore();
+    if (settledBefore.isPresent()) {
+      long rows = rebuildEngine.replay(settledBefore.getAsLong());
+      AbstractMetricCollector.reconcileAllEntriesFor(ProstUser.class, userRepository.findAll());
+      AbstractMetricCollector.reconcileAllEntriesFor(ShopItem.class, shopItemRepository.findAll());
+      System.out.println(
+          "[MSS] :: restored snapshot after " + (System.currentTimeMillis() - start) + " ms ("
+              + rows + " recent history entries)");
+    } else {
+      RebuildResult result = rebuildEngine.rebuild(userRepository.findByHidden(false),
+          shopItemRepository.findAll());
+      System.out.println(
+          "[MSS] :: no snapshot, rebuilt metrics after " + result.durationMillis() + " ms ("
+              + result.rows() + " history entries)");
+    }
+
+    if (interval > 0) {
+      timer = new Timer("metric-snapshot", true);
+      timer.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          save();
+        }
+      }, interval, interval);
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (timer != null) {
+      timer.cancel();
+    }
+    // the purchases that are still queued have to be part of the last snapshot
+    updateQueue.shutdown();
+    save();
+  }
+
+  /**
+   * Writes the current values of all collectors. The file is replaced atomically, so a crash while
+   * writing keeps the previous snapshot.
+   */
+  public synchronized void save() {
+    try {
+      byte[] snapshot = AbstractMetricCollector.lockedForSnapshot(this::serialize);
+      Path temp = new File(snapshotFile.getPath() + ".tmp").toPath();
+      Files.write(temp, snapshot);
+      Files.move(temp, snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | UncheckedIOException e) {
+      System.out.println("[MSS] :: saving snapshot failed :: " + e.getMessage());
+    }
+  }
+
+  private byte[] serialize() {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      long now = Instant.now().toEpochMilli();
+      long settledBefore = now - AbstractMetricCollector.SETTLE_MILLIS;
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(now);
+
+      // entries committed out of order or still queued may be missing among the recent ones, so
+      // the recent ones that are part of the values are saved instead of the newest id
+      Map<Long, Long> applied = AbstractMetricCollector.getApplied();
+      applied.values().removeIf(timestamp -> timestamp < settledBefore);
+      out.writeLong(settledBefore);
+      out.writeInt(applied.size());
+      for (Map.Entry<Long, Long> entry : applied.entrySet()) {
+        out.writeLong(entry.getKey());
+        out.writeLong(entry.getValue());
+      }
+
+      out.writeInt(collectors.size());
+      for (AbstractMetricCollector<?, ?> collector : collectors) {
+        out.writeUTF(getName(collector));
+        out.writeInt(collector.getSlotCount());
+
+        // length-prefixed, so the values of a collector that no longer exists can be skipped
+        // without knowing how its keys are written
+        ByteArrayOutputStream windows = new ByteArrayOutputStream();
+        collector.writeWindows(new DataOutputStream(windows));
+        out.writeInt(windows.size());
+        windows.writeTo(out);
+
+        ByteArrayOutputStream extra = new ByteArrayOutputStream();
+        collector.metrics.writeExtra(new DataOutputStream(extra));
+        out.writeInt(extra.size());
+        extra.writeTo(out);
+      }
+      out.flush();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Loads the snapshot into the collectors. Nothing is changed if the file is missing or does not
+   * match the current collectors.
+   *
+   * @return the timestamp from which on the history has to be replayed, empty if the values were
+   * not restored
+   */
+  private OptionalLong restore() {
+    if (!snapshotFile.isFile()) {
+      return OptionalLong.empty();
+    }
+
+    long now = Instant.now().toEpochMilli();
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(snapshotFile.toPath())))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        System.out.println("[MSS] :: snapshot has an unknown format");
+        return OptionalLong.empty();
+      }
+      long savedAt = in.readLong();
+      long settledBefore = in.readLong();
+      Map<Long, Long> applied = new HashMap<>();
+      int appliedCount = in.readInt();
+      for (int i = 0; i < appliedCount; i++) {
+        applied.put(in.readLong(), in.readLong());
+      }
+
+      Map<String, AbstractMetricCollector<?, ?>> byId = new HashMap<>();
+      for (AbstractMetricCollector<?, ?> collector : collectors) {
+        byId.put(getId(getName(collector), collector.getSlotCount()), collector);
+      }
+
+      Map<AbstractMetricCollector<?, ?>, CollectorAccumulator<?>> accumulators = new HashMap<>();
+      int collectorCount = in.readInt();
+      for (int i = 0; i < collectorCount; i++) {
+        String name = in.readUTF();
+        int slotCount = in.readInt();
+        byte[] windows = new byte[in.readInt()];
+        in.readFully(windows);
+        byte[] extra = new byte[in.readInt()];
+        in.readFully(extra);
+
+        AbstractMetricCollector<?, ?> collector = byId.get(getId(name, slotCount));
+        if (collector != null) {
+          CollectorAccumulator<?> accumulator = CollectorAccumulator.of(collector, now);
+          accumulator.readWindows(new DataInputStream(new ByteArrayInputStream(windows)));
+          accumulator.readExtra(new DataInputStream(new ByteArrayInputStream(extra)));
+          accumulators.put(collector, accumulator);
+        }
+      }
+
+      for (AbstractMetricCollector<?, ?> collector : collectors) {
+        if (!accumulators.containsKey(collector)) {
+          System.out.println("[MSS] :: snapshot does not match " + getName(collector));
+          return OptionalLong.empty();
+        }
+      }
+
+      accumulators.values().forEach(CollectorAccumulator::publish);
+      AbstractMetricCollector.setApplied(applied);
+      System.out.println(
+          "[MSS] :: loaded snapshot from " + Instant.ofEpochMilli(savedAt) + " (" + appliedCount
+              + " recent entries)");
+      return OptionalLong.of(settledBefore);
+    } catch (IOException e) {
+      System.out.println("[MSS] :: reading snapshot failed :: " + e.getMessage());
+      return OptionalLong.empty();
+    }
+  }
+
+  private static String getName(AbstractMetricCollector<?, ?> collector) {
+    return ClassUtils.getUserClass(collector).getSimpleName();
+  }
+
+  // a collector whose slots changed can not use its old values
+  private static String getId(String name, int slotCount) {
+    return name + ":" + slotCount;
+  }
+}
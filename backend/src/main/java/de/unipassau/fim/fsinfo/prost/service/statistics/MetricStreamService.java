@@ -0,0 +1,318 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
+import de.unipassau.fim.fsinfo.prost.data.dto.LeaderboardEntryDTO;
+import de.unipassau.fim.fsinfo.prost.data.dto.LeaderboardUpdateDTO;
+import de.unipassau.fim.fsinfo.prost.data.dto.PurchaseEventDTO;
+import de.unipassau.fim.fsinfo.prost.data.metrics.ItemMetricType;
+import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
+import de.unipassau.fim.fsinfo.prost.data.metrics.UserMetricType;
+import de.unipassau.fim.fsinfo.prost.service.statistics.AbstractMetricCollector.MetricEntry;
+import de.unipassau.fim.fsinfo.prost.service.statistics.item.AbstractItemMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.user.AbstractUserMetricCollector;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Pushes leaderboard changes and new purchases to dashboards as Server-Sent Events, so they do not
+ * have to poll the metrics. Purchases are reported by the {@link MetricUpdateQueue} once they are
+ * part of the metrics. All purchases of an interval are coalesced into a single flush: every
+ * leaderboard is read once per flush, and each subscriber only receives the places that changed
+ * since its own last update.
+ * <p>
+ * A subscriber that is still busy sending its last update skips flushes, its changes add up until
+ * it caught up. At most {@link #MAX_PENDING_PURCHASES} purchases wait per subscriber, older ones
+ * are dropped. Subscribers that are stuck for longer than the stall timeout are disconnected.
+ * Without subscribers, purchases are ignored and nothing is scheduled.
+ */
+@Service
+public class MetricStreamService {
+
+  static final int MAX_PENDING_PURCHASES = 50;
+
+  private final MetricEntityResolver entityResolver;
+  private final long interval;
+  private final long timeout;
+  private final long stallTimeout;
+
+  private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+  // purchases since the last flush, only collected while there are subscribers
+  private final Queue<ShopItemHistoryEntry> purchases = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger purchaseCount = new AtomicInteger();
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+  // both create their threads on first use
+  private final ScheduledExecutorService scheduler;
+  private final ExecutorService senders;
+
+  @Autowired
+  public MetricStreamService(MetricEntityResolver entityResolver,
+      @Value("${METRIC_STREAM_INTERVAL:1000}") long interval,
+      @Value("${METRIC_STREAM_TIMEOUT:1800000}") long timeout,
+      @Value("${METRIC_STREAM_STALL_TIMEOUT:30000}") long stallTimeout,
+      @Value("${METRIC_STREAM_SENDERS:2}") int senderCount) {
+    this.entityResolver = entityResolver;
+    this.interval = Math.max(0, interval);
+    this.timeout = timeout;
+    this.stallTimeout = stallTimeout;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(daemon("metric-stream"));
+    this.senders = Executors.newFixedThreadPool(Math.max(1, senderCount),
+        daemon("metric-stream-send"));
+  }
+
+  /**
+   * @param userTypes     the user leaderboards to follow
+   * @param itemTypes     the item leaderboards to follow
+   * @param limit         number of places per leaderboard
+   * @param withPurchases whether new purchases are pushed as well
+   * @return the emitter of the new subscriber. Its first update holds all places of the
+   * leaderboards.
+   */
+  public SseEmitter subscribe(List<UserMetricType> userTypes, List<ItemMetricType> itemTypes,
+      TimeSpan timeSpan, int limit, boolean withPurchases) {
+    List<Board> boards = new ArrayList<>();
+    userTypes.stream().distinct().forEach(type -> boards.add(new Board(type, timeSpan, limit)));
+    itemTypes.stream().distinct().forEach(type -> boards.add(new Board(type, timeSpan, limit)));
+
+    SseEmitter emitter = new SseEmitter(timeout);
+    Subscriber subscriber = new Subscriber(emitter, boards, withPurchases);
+    emitter.onCompletion(() -> subscribers.remove(subscriber));
+    emitter.onTimeout(() -> subscribers.remove(subscriber));
+    emitter.onError(e -> subscribers.remove(subscriber));
+    subscribers.add(subscriber);
+    requestFlush();
+    return emitter;
+  }
+
+  /**
+   * Called once a purchase was added to the collectors.
+   */
+  public void onApplied(ShopItemHistoryEntry entry) {
+    if (subscribers.isEmpty() || entityResolver.isHidden(entry.getUserId())) {
+      return;
+    }
+    purchases.add(entry);
+    if (purchaseCount.incrementAndGet() > MAX_PENDING_PURCHASES && purchases.poll() != null) {
+      purchaseCount.decrementAndGet();
+    }
+    requestFlush();
+  }
+
+  public int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    for (Subscriber subscriber : subscribers) {
+      subscriber.emitter.complete();
+    }
+    subscribers.clear();
+    scheduler.shutdownNow();
+    senders.shutdownNow();
+  }
+
+  /**
+   * @param previous the places sent last, null if none were sent yet
+   * @return the places of the current leaderboard that differ from the previous one
+   */
+  static List<LeaderboardEntryDTO> changes(List<LeaderboardEntryDTO> previous,
+      List<LeaderboardEntryDTO> current) {
+    return current.stream()
+        .filter(entry -> previous == null || entry.position() > previous.size()
+            || !entry.equals(previous.get(entry.position() - 1)))
+        .collect(Collectors.toList());
+  }
+
+  private void requestFlush() {
+    if (flushScheduled.compareAndSet(false, true)) {
+      try {
+        scheduler.schedule(this::flush, interval, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        flushScheduled.set(false);
+      }
+    }
+  }
+
+  private void flush() {
+    flushScheduled.set(false);
+    List<ShopItemHistoryEntry> batch = new ArrayList<>();
+    for (ShopItemHistoryEntry entry; (entry = purchases.poll()) != null; ) {
+      purchaseCount.decrementAndGet();
+      batch.add(entry);
+    }
+    if (subscribers.isEmpty()) {
+      return;
+    }
+
+    try {
+      List<PurchaseEventDTO> purchaseDTOs = batch.isEmpty() ? List.of() : toDTOs(batch);
+      Map<Board, List<LeaderboardEntryDTO>> read = new HashMap<>();
+      long now = System.currentTimeMillis();
+      boolean behind = false;
+
+      for (Subscriber subscriber : subscribers) {
+        if (subscriber.withPurchases) {
+          subscriber.addPurchases(purchaseDTOs);
+        }
+        if (!subscriber.sending.compareAndSet(false, true)) {
+          if (now - subscriber.sendingSince > stallTimeout) {
+            System.out.println("[MSS] :: dropping stalled subscriber");
+            subscribers.remove(subscriber);
+            subscriber.emitter.complete();
+          } else {
+            behind = true;
+          }
+          continue;
+        }
+        subscriber.sendingSince = now;
+
+        // the senders only get their own map, the shared one keeps growing during the flush
+        Map<Board, List<LeaderboardEntryDTO>> current = new HashMap<>();
+        for (Board board : subscriber.boards) {
+          current.put(board, read.computeIfAbsent(board, MetricStreamService::read));
+        }
+        senders.execute(() -> send(subscriber, current));
+      }
+      if (behind) {
+        requestFlush();
+      }
+    } catch (RuntimeException e) {
+      System.out.println("[MSS] :: flush failed :: " + e.getMessage());
+    }
+  }
+
+  private void send(Subscriber subscriber, Map<Board, List<LeaderboardEntryDTO>> current) {
+    try {
+      for (Map.Entry<Board, List<LeaderboardEntryDTO>> board : current.entrySet()) {
+        List<LeaderboardEntryDTO> previous = subscriber.sent.get(board.getKey());
+        List<LeaderboardEntryDTO> changed = changes(previous, board.getValue());
+        if (previous == null || !changed.isEmpty()
+            || previous.size() != board.getValue().size()) {
+          subscriber.emitter.send(SseEmitter.event().name("metric").data(
+              new LeaderboardUpdateDTO(board.getKey().type().name(), board.getKey().timeSpan(),
+                  board.getValue().size(), changed)));
+          subscriber.sent.put(board.getKey(), board.getValue());
+        }
+      }
+      List<PurchaseEventDTO> pending = subscriber.drainPurchases();
+      if (!pending.isEmpty()) {
+        subscriber.emitter.send(SseEmitter.event().name("purchase").data(pending));
+      }
+    } catch (IOException | IllegalStateException e) {
+      // the client is gone, the emitter was completed already
+      subscribers.remove(subscriber);
+      subscriber.emitter.completeWithError(e);
+    } finally {
+      subscriber.sending.set(false);
+    }
+  }
+
+  private static List<LeaderboardEntryDTO> read(Board board) {
+    List<LeaderboardEntryDTO> places = new ArrayList<>();
+    if (board.type() instanceof UserMetricType type) {
+      AbstractUserMetricCollector.getMetricEntries(type, board.timeSpan(), 0, board.limit())
+          .ifPresent(entries -> entries.forEach(entry -> places.add(
+              toPlace(places.size() + 1, entry, entry.entity().getDisplayName()))));
+    } else if (board.type() instanceof ItemMetricType type) {
+      AbstractItemMetricCollector.getMetricEntries(type, board.timeSpan(), 0, board.limit())
+          .ifPresent(entries -> entries.forEach(entry -> places.add(
+              toPlace(places.size() + 1, entry,
+                  entry.entity() != null ? entry.entity().getDisplayName() : entry.key()))));
+    }
+    return places;
+  }
+
+  private static LeaderboardEntryDTO toPlace(int position, MetricEntry<?> entry,
+      String displayName) {
+    return new LeaderboardEntryDTO(position, entry.key(), displayName, entry.value());
+  }
+
+  // purchases of hidden users are never queued, see onApplied, so nothing is anonymized
+  List<PurchaseEventDTO> toDTOs(List<ShopItemHistoryEntry> entries) {
+    Map<String, ProstUser> users = entityResolver.findUsers(
+        entries.stream().map(ShopItemHistoryEntry::getUserId).collect(Collectors.toSet()));
+    Map<String, ShopItem> items = entityResolver.findItems(
+        entries.stream().map(ShopItemHistoryEntry::getItemId).collect(Collectors.toSet()));
+    return entries.stream().map(entry -> {
+      ProstUser user = users.get(entry.getUserId());
+      ShopItem item = items.get(entry.getItemId());
+      return new PurchaseEventDTO(entry.getItemId(),
+          item != null ? item.getDisplayName() : entry.getItemId(),
+          user != null ? user.getDisplayName() : entry.getUserId(),
+          entry.getAmount(),
+          entry.getTimestamp());
+    }).collect(Collectors.toList());
+  }
+
+  private static ThreadFactory daemon(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private record Board(Enum<?> type, TimeSpan timeSpan, int limit) {
+
+  }
+
+  private static class Subscriber {
+
+    private final SseEmitter emitter;
+    private final List<Board> boards;
+    private final boolean withPurchases;
+
+    private final AtomicBoolean sending = new AtomicBoolean();
+    private volatile long sendingSince;
+    // only used by the sender that holds the sending flag
+    private final Map<Board, List<LeaderboardEntryDTO>> sent = new HashMap<>();
+    private final ArrayDeque<PurchaseEventDTO> pendingPurchases = new ArrayDeque<>();
+
+    private Subscriber(SseEmitter emitter, List<Board> boards, boolean withPurchases) {
+      this.emitter = emitter;
+      this.boards = boards;
+      this.withPurchases = withPurchases;
+    }
+
+    private synchronized void addPurchases(List<PurchaseEventDTO> purchases) {
+      for (PurchaseEventDTO purchase : purchases) {
+        if (pendingPurchases.size() == MAX_PENDING_PURCHASES) {
+          pendingPurchases.removeFirst();
+        }
+        pendingPurchases.addLast(purchase);
+      }
+    }
+
+    private synchronized List<PurchaseEventDTO> drainPurchases() {
+      List<PurchaseEventDTO> drained = new ArrayList<>(pendingPurchases);
+      pendingPurchases.clear();
+      return drained;
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
+import java.util.List;
+
+/**
+ * Published for every new purchase that should count in the metrics, with all entries of a
+ * checkout. It is handled by the {@link MetricUpdateQueue} after the transaction of the purchase
+ * was committed.
+ */
+public record MetricUpdateEvent(List<ShopItemHistoryEntry> entries) {
+
+  public MetricUpdateEvent(ShopItemHistoryEntry entry) {
+    this(List.of(entry));
+  }
+}
@@ -0,0 +1,138 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
+import de.unipassau.fim.fsinfo.prost.data.dto.MetricQueueStatusDTO;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+/**
+ * Applies new purchases to the collectors once their transaction is committed. The purchase only
+ * puts the entry into a bounded queue, worker threads drain it in batches. A purchase that is
+ * rolled back never reaches the metrics.
+ * <p>
+ * If the queue is full, the committing thread applies its entry itself instead of dropping it.
+ * Applied entries are handed to the {@link MetricStreamService}, so pushed leaderboards already
+ * contain them.
+ */
+@Service
+public class MetricUpdateQueue {
+
+  private static final int BATCH_SIZE = 100;
+
+  private final BlockingQueue<QueuedEntry> queue;
+  private final int workerCount;
+  private final MetricStreamService streamService;
+  private final List<Thread> workers = new ArrayList<>();
+
+  private final AtomicLong processed = new AtomicLong();
+  private final AtomicLong appliedByCaller = new AtomicLong();
+  private final AtomicLong lastLag = new AtomicLong();
+
+  private volatile boolean running = true;
+
+  @Autowired
+  public MetricUpdateQueue(@Value("${METRIC_QUEUE_CAPACITY:10000}") int capacity,
+      @Value("${METRIC_QUEUE_WORKERS:1}") int workerCount, MetricStreamService streamService) {
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    this.workerCount = Math.max(1, workerCount);
+    this.streamService = streamService;
+  }
+
+  @PostConstruct
+  public void start() {
+    for (int i = 0; i < workerCount; i++) {
+      Thread worker = new Thread(this::work, "metric-update-" + i);
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+    System.out.println("[MUQ] :: started " + workerCount + " worker(s)");
+  }
+
+  /**
+   * Stops the workers after the queued entries were applied.
+   */
+  @PreDestroy
+  public synchronized void shutdown() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    for (Thread worker : workers) {
+      try {
+        worker.join(TimeUnit.SECONDS.toMillis(10));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    // anything left (e.g. a worker that was still busy) is applied here
+    List<QueuedEntry> remaining = new ArrayList<>();
+    queue.drainTo(remaining);
+    apply(remaining);
+  }
+
+  @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+  public void onPurchase(MetricUpdateEvent event) {
+    QueuedEntry queued = new QueuedEntry(event.entries(), Instant.now().toEpochMilli());
+    if (!running || !queue.offer(queued)) {
+      appliedByCaller.incrementAndGet();
+      apply(List.of(queued));
+    }
+  }
+
+  public MetricQueueStatusDTO getStatus() {
+    QueuedEntry oldest = queue.peek();
+    long lag = oldest == null ? 0 : Instant.now().toEpochMilli() - oldest.queuedAt();
+    return new MetricQueueStatusDTO(queue.size(), queue.size() + queue.remainingCapacity(), lag,
+        lastLag.get(), processed.get(), appliedByCaller.get());
+  }
+
+  private void work() {
+    List<QueuedEntry> batch = new ArrayList<>(BATCH_SIZE);
+    while (running || !queue.isEmpty()) {
+      try {
+        QueuedEntry first = queue.poll(500, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, BATCH_SIZE - 1);
+        apply(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RuntimeException e) {
+        System.out.println("[MUQ] :: applying updates failed :: " + e.getMessage());
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void apply(List<QueuedEntry> batch) {
+    for (QueuedEntry queued : batch) {
+      AbstractMetricCollector.addToAllCollectors(queued.entries());
+      queued.entries().forEach(streamService::onApplied);
+      lastLag.set(Instant.now().toEpochMilli() - queued.queuedAt());
+      processed.addAndGet(queued.entries().size());
+    }
+  }
+
+  // all entries of one purchase or checkout
+  private record QueuedEntry(List<ShopItemHistoryEntry> entries, long queuedAt) {
+
+  }
+}
@@ -0,0 +1,215 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The values of a single metric key per day. Only days with values are kept, ordered by day and
+ * with the prefix sums of all days up to each one, so the sum of any range of days is the
+ * difference of two prefix sums found by binary search. The time spans are ranges that end with
+ * the current day; old purchases drop out of them as the clock advances, without touching the
+ * database. Values are plain longs (cents or counts), see
+ * {@link AbstractMetricCollector#getScale()}.
+ * <p>
+ * The time spans cover whole UTC days, not a rolling window of hours: WEEK is the current day and
+ * the 6 days before, MONTH the current day and the 29 days before, YEAR the current day and the
+ * 364 days before.
+ */
+public class MetricWindow {
+
+  public static final long BUCKET_MILLIS = 1000L * 60 * 60 * 24;
+  public static final int WEEK_BUCKETS = 7;
+  public static final int MONTH_BUCKETS = 30;
+  public static final int YEAR_BUCKETS = 365;
+
+  /**
+   * The time spans a window can answer.
+   */
+  public static final List<TimeSpan> TIME_SPANS = List.of(TimeSpan.WEEK, TimeSpan.MONTH,
+      TimeSpan.YEAR, TimeSpan.ALL_TIME);
+
+  private final int slotCount;
+
+  // the days with values in ascending order; values and prefix are [index * slotCount + slot]
+  private long[] days;
+  private long[] values;
+  private long[] prefix;
+  private int size;
+  // the prefix sums below this index are correct. New purchases are added to the last day, which
+  // keeps them correct; changes of earlier days are summed up again on the next read.
+  private int validPrefix;
+
+  private long currentBucket;
+
+  public MetricWindow(int slotCount, long currentBucket) {
+    this.slotCount = slotCount;
+    this.days = new long[4];
+    this.values = new long[4 * slotCount];
+    this.prefix = new long[4 * slotCount];
+    this.currentBucket = currentBucket;
+  }
+
+  public static long toBucket(long timestamp) {
+    return Math.floorDiv(timestamp, BUCKET_MILLIS);
+  }
+
+  /**
+   * @return the bucket of a UTC day
+   */
+  public static long toBucket(LocalDate day) {
+    return day.toEpochDay();
+  }
+
+  public synchronized void add(long timestamp, int slot, long value) {
+    long bucket = toBucket(timestamp);
+    advance(bucket);
+
+    int index = indexOf(bucket);
+    values[index * slotCount + slot] += value;
+    if (index == size - 1 && validPrefix == size) {
+      prefix[index * slotCount + slot] += value;
+    } else {
+      validPrefix = Math.min(validPrefix, index);
+    }
+  }
+
+  /**
+   * Moves the time spans forward to the given bucket.
+   */
+  public synchronized void advance(long bucket) {
+    if (bucket > currentBucket) {
+      currentBucket = bucket;
+    }
+  }
+
+  public synchronized long[] get(TimeSpan timeSpan) {
+    return switch (timeSpan) {
+      case WEEK -> get(currentBucket - WEEK_BUCKETS + 1, currentBucket);
+      case MONTH -> get(currentBucket - MONTH_BUCKETS + 1, currentBucket);
+      case YEAR -> get(currentBucket - YEAR_BUCKETS + 1, currentBucket);
+      case ALL_TIME -> get(Long.MIN_VALUE, Long.MAX_VALUE);
+    };
+  }
+
+  /**
+   * @return the sums of all days from the first to the last bucket, both included
+   */
+  public synchronized long[] get(long fromBucket, long toBucket) {
+    long[] sums = new long[slotCount];
+    if (fromBucket > toBucket) {
+      return sums;
+    }
+    updatePrefix();
+    int last = countUpTo(toBucket) - 1;
+    int beforeFirst = fromBucket == Long.MIN_VALUE ? -1 : countUpTo(fromBucket - 1) - 1;
+    for (int slot = 0; slot < slotCount; slot++) {
+      long upToLast = last < 0 ? 0 : prefix[last * slotCount + slot];
+      long beforeStart = beforeFirst < 0 ? 0 : prefix[beforeFirst * slotCount + slot];
+      sums[slot] = upToLast - beforeStart;
+    }
+    return sums;
+  }
+
+  /**
+   * Writes the window in a compact form: only the days with values. The prefix sums are summed up
+   * again when reading.
+   */
+  public synchronized void write(DataOutput out) throws IOException {
+    out.writeLong(currentBucket);
+    out.writeInt(size);
+    for (int i = 0; i < size; i++) {
+      out.writeLong(days[i]);
+      for (int slot = 0; slot < slotCount; slot++) {
+        out.writeLong(values[i * slotCount + slot]);
+      }
+    }
+  }
+
+  public static MetricWindow read(DataInput in, int slotCount) throws IOException {
+    MetricWindow window = new MetricWindow(slotCount, in.readLong());
+    int size = in.readInt();
+    if (size < 0) {
+      throw new IOException("Invalid day count " + size);
+    }
+    window.days = new long[Math.max(4, size)];
+    window.values = new long[Math.max(4, size) * slotCount];
+    window.prefix = new long[Math.max(4, size) * slotCount];
+    for (int i = 0; i < size; i++) {
+      long day = in.readLong();
+      if (i > 0 && day <= window.days[i - 1]) {
+        throw new IOException("Days out of order at " + day);
+      }
+      window.days[i] = day;
+      for (int slot = 0; slot < slotCount; slot++) {
+        window.values[i * slotCount + slot] = in.readLong();
+      }
+    }
+    window.size = size;
+    return window;
+  }
+
+  /**
+   * @return the index of the day, inserted with zero-values if it has none yet
+   */
+  private int indexOf(long bucket) {
+    if (size > 0 && days[size - 1] == bucket) {
+      return size - 1;
+    }
+    int index = size == 0 || days[size - 1] < bucket ? -size - 1
+        : Arrays.binarySearch(days, 0, size, bucket);
+    if (index >= 0) {
+      return index;
+    }
+
+    int insert = -index - 1;
+    if (size == days.length) {
+      days = Arrays.copyOf(days, size * 2);
+      values = Arrays.copyOf(values, size * 2 * slotCount);
+      prefix = Arrays.copyOf(prefix, size * 2 * slotCount);
+    }
+    System.arraycopy(days, insert, days, insert + 1, size - insert);
+    System.arraycopy(values, insert * slotCount, values, (insert + 1) * slotCount,
+        (size - insert) * slotCount);
+    days[insert] = bucket;
+    Arrays.fill(values, insert * slotCount, (insert + 1) * slotCount, 0);
+
+    if (insert == size && validPrefix == size) {
+      // a new last day starts with the sums of the day before
+      for (int slot = 0; slot < slotCount; slot++) {
+        prefix[insert * slotCount + slot] =
+            insert == 0 ? 0 : prefix[(insert - 1) * slotCount + slot];
+      }
+      validPrefix++;
+    } else {
+      validPrefix = Math.min(validPrefix, insert);
+    }
+    size++;
+    return insert;
+  }
+
+  private void updatePrefix() {
+    for (int i = validPrefix; i < size; i++) {
+      for (int slot = 0; slot < slotCount; slot++) {
+        long before = i == 0 ? 0 : prefix[(i - 1) * slotCount + slot];
+        prefix[i * slotCount + slot] = before + values[i * slotCount + slot];
+      }
+    }
+    validPrefix = size;
+  }
+
+  /**
+   * @return the number of days up to and including the bucket
+   */
+  private int countUpTo(long bucket) {
+    if (size == 0 || bucket >= days[size - 1]) {
+      return size;
+    }
+    int index = Arrays.binarySearch(days, 0, size, bucket);
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+}
@@ -3,60 +3,59 @@ package de.unipassau.fim.fsinfo.prost.service.statistics.composite;
 import de.unipassau.fim.fsinfo.prost.data.dto.CompositeMetricDTO;
 import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
 import de.unipassau.fim.fsinfo.prost.service.statistics.AbstractMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking.RankedValue;
 import java.math.BigDecimal;
+import java.time.LocalDate;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
-public abstract class AbstractCompositeMetricCollector<T> extends AbstractMetricCollector<T> {
-
-  protected static final String KEY_SEPARATOR = "-";
+/**
+ * Collectors whose keys consist of two parts, packed into a single long by {@link CompositeKey}.
+ */
+public abstract class AbstractCompositeMetricCollector<T> extends
+    AbstractMetricCollector<T, Long> {
 
   public AbstractCompositeMetricCollector(Class<T> entityType) {
     super(entityType);
   }
 
-  public abstract CompositeMetricDTO getCompositeMetricDTO(BigDecimal value, String... keys);
-
-  protected List<CompositeMetricDTO> mapToCompositeMetricEntries(
-      ConcurrentHashMap<String, BigDecimal> metricEntries) {
-
-    return metricEntries.entrySet().stream()
-        .sorted(Map.Entry.<String, BigDecimal>comparingByValue().reversed())
-        .map(entry -> getCompositeMetricDTO(entry.getValue(), entry.getKey().split(KEY_SEPARATOR)))
+  /**
+   * @param first  the first part of the key, as packed by the collector
+   * @param second the second part of the key, as packed by the collector
+   */
+  public abstract CompositeMetricDTO getCompositeMetricDTO(BigDecimal value, int first,
+      int second);
+
+  /**
+   * Maps a batch of the ranking. Collectors that resolve their keys to entities should override
+   * this and load them for the whole batch at once.
+   */
+  protected List<CompositeMetricDTO> mapToCompositeMetricEntries(List<RankedValue<Long>> ranking) {
+    return ranking.stream()
+        .map(entry -> getCompositeMetricDTO(toValue(entry.value()),
+            CompositeKey.first(entry.key()), CompositeKey.second(entry.key())))
         .collect(Collectors.toList());
   }
 
-  public Optional<List<CompositeMetricDTO>> getCompositeMetricEntries(TimeSpan timeSpan) {
-    return switch (timeSpan) {
-      case WEEK -> Optional.of(mapToCompositeMetricEntries(metricEntries_Weekly));
-      case MONTH -> Optional.of(mapToCompositeMetricEntries(metricEntries_Monthly));
-      case ALL_TIME -> Optional.of(mapToCompositeMetricEntries(metricEntries_AllTime));
-      default -> throw new IllegalStateException("Unexpected value: " + timeSpan);
-    };
+  public Optional<List<CompositeMetricDTO>> getCompositeMetricEntries(TimeSpan timeSpan,
+      int offset, int limit) {
+    return timer("prost.metrics.read").record(() -> getRanking(timeSpan).map(
+        ranking -> page(ranking.stream(), offset, limit, this::mapToCompositeMetricEntries)));
   }
 
-  @Override
-  protected T findByKey(String key) {
-    return findByKeys(key.split(KEY_SEPARATOR));
-  }
-
-  abstract protected T findByKeys(String... keys);
-
-  abstract protected String[] getKeys(T entity);
-
-  @Override
-  public String getKey(T entity) {
-    String[] keys = getKeys(entity);
-    StringBuilder out = new StringBuilder();
-    for (int i = 0; i < keys.length; i++) {
-      out.append(keys[i]);
-      if (i != keys.length - 1) {
-        out.append(KEY_SEPARATOR);
-      }
+  /**
+   * Same as {@link #getCompositeMetricEntries(TimeSpan, int, int)}, for the purchases from the
+   * first to the last UTC day (both included) instead of a time span.
+   *
+   * @return the page, empty if the range ends before it begins
+   */
+  public Optional<List<CompositeMetricDTO>> getCompositeMetricEntries(LocalDate from,
+      LocalDate to, int offset, int limit) {
+    if (from.isAfter(to)) {
+      return Optional.empty();
     }
-    return out.toString();
+    return Optional.of(timer("prost.metrics.read").record(
+        () -> page(rank(from, to).stream(), offset, limit, this::mapToCompositeMetricEntries)));
   }
 }
@@ -0,0 +1,67 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics.composite;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Composite keys packed into a single long: the first part in the upper, the second part in the
+ * lower 32 bits. User and item ids are interned to ints in a dictionary shared by all collectors,
+ * other parts (e.g. an hour of day) are stored as they are. Packing and unpacking neither parses
+ * nor allocates, and ids may contain any character.
+ * <p>
+ * The dictionary only grows and differs between runs, so keys have to be written to snapshots by
+ * their ids, not by their packed value.
+ */
+final class CompositeKey {
+
+  private static final Map<String, Integer> IDS = new ConcurrentHashMap<>();
+  private static volatile String[] names = new String[1024];
+  private static int count;
+
+  private CompositeKey() {
+  }
+
+  static long pack(int first, int second) {
+    return ((long) first << 32) | (second & 0xFFFFFFFFL);
+  }
+
+  static int first(long key) {
+    return (int) (key >>> 32);
+  }
+
+  static int second(long key) {
+    return (int) key;
+  }
+
+  /**
+   * @return the int the id is represented by in packed keys
+   */
+  static int intern(String id) {
+    Integer existing = IDS.get(id);
+    return existing != null ? existing : register(id);
+  }
+
+  /**
+   * @return the id an int returned by {@link #intern(String)} stands for
+   */
+  static String lookup(int interned) {
+    return names[interned];
+  }
+
+  private static synchronized int register(String id) {
+    Integer existing = IDS.get(id);
+    if (existing != null) {
+      return existing;
+    }
+    String[] current = names;
+    if (count == current.length) {
+      current = Arrays.copyOf(current, count * 2);
+    }
+    current[count] = id;
+    names = current;
+    // the name is in place before other threads can find the id
+    IDS.put(id, count);
+    return count++;
+  }
+}
@@ -0,0 +1,274 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics.composite;
+
+import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAccumulator;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking.RankedValue;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricWindow;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The purchases of every user counted per UTC hour (hours since the epoch). Because the hours are
+ * fixed, the hour of day can be derived for any time zone with the offset that was valid at the
+ * time of the purchase, including daylight saving time.
+ * <p>
+ * The ranking of user and local hour is built per requested zone on first use and kept up to date
+ * with new purchases. Weekly and monthly rankings are built again once a new day began. The windows
+ * of the base class are not used.
+ */
+class HourlyActivityAccumulator extends MetricAccumulator<Long> {
+
+  static final long HOUR_MILLIS = 1000L * 60 * 60;
+  private static final int HOURS_PER_BUCKET = (int) (MetricWindow.BUCKET_MILLIS / HOUR_MILLIS);
+
+  // rankings of rarely requested zones are dropped once more zones were requested
+  private static final int MAX_ZONES = 16;
+
+  private final Map<String, HourCounters> users = new HashMap<>();
+  private final Map<ZoneId, ZoneView> views = new ConcurrentHashMap<>();
+
+  HourlyActivityAccumulator(long now) {
+    super(now, 1, slots -> slots[0]);
+  }
+
+  static long toHour(long timestamp) {
+    return Math.floorDiv(timestamp, HOUR_MILLIS);
+  }
+
+  synchronized void add(String userId, long utcHour, long purchases) {
+    HourCounters counters = users.computeIfAbsent(userId, HourCounters::new);
+    counters.add(utcHour, purchases);
+    for (ZoneView view : views.values()) {
+      view.add(counters.user, utcHour, purchases);
+    }
+  }
+
+  synchronized void removeUser(String userId) {
+    HourCounters counters = users.remove(userId);
+    if (counters != null) {
+      for (ZoneView view : views.values()) {
+        view.remove(counters.user);
+      }
+    }
+  }
+
+  /**
+   * @return the ranking of user and local hour of day in the zone, empty if the span is not
+   * supported
+   */
+  Optional<MetricRanking<Long>> getRanking(TimeSpan timeSpan, ZoneId zone, long now) {
+    if (!MetricWindow.TIME_SPANS.contains(timeSpan)) {
+      return Optional.empty();
+    }
+    long bucket = MetricWindow.toBucket(now);
+    ZoneView view = views.get(zone);
+    if (view == null || view.bucket != bucket) {
+      view = createView(zone, bucket);
+    }
+    return Optional.of(view.rankings.get(timeSpan));
+  }
+
+  /**
+   * Ranks user and local hour of day by the purchases from the first hour (included) to the last
+   * one (excluded). Unlike the rankings of the time spans this is calculated on every call.
+   */
+  synchronized List<RankedValue<Long>> rank(long fromHour, long toHour, ZoneId zone) {
+    ZoneHours zoneHours = ZoneHours.of(zone, fromHour, toHour);
+    List<RankedValue<Long>> ranked = new ArrayList<>();
+    for (HourCounters counters : users.values()) {
+      long[] perHour = counters.sumByHourOfDay(fromHour, toHour, zoneHours);
+      for (int hour = 0; hour < perHour.length; hour++) {
+        if (perHour[hour] != 0) {
+          ranked.add(new RankedValue<>(perHour[hour], key(counters.user, hour)));
+        }
+      }
+    }
+    ranked.sort(MetricRanking::byRank);
+    return ranked;
+  }
+
+  private synchronized ZoneView createView(ZoneId zone, long bucket) {
+    ZoneView existing = views.get(zone);
+    if (existing != null && existing.bucket == bucket) {
+      return existing;
+    }
+
+    long firstHour = users.values().stream().mapToLong(HourCounters::first).min()
+        .orElse(bucket * HOURS_PER_BUCKET);
+    // covers the following days as well, so new purchases find their offset
+    ZoneHours zoneHours = ZoneHours.of(zone, firstHour, (bucket + 7) * HOURS_PER_BUCKET);
+    ZoneView view = new ZoneView(zoneHours, bucket);
+    users.values().forEach(view::fill);
+
+    if (views.size() >= MAX_ZONES) {
+      views.clear();
+    }
+    views.put(zone, view);
+    return view;
+  }
+
+  @Override
+  public synchronized void writeExtra(DataOutput out) throws IOException {
+    out.writeInt(users.size());
+    for (Map.Entry<String, HourCounters> entry : users.entrySet()) {
+      out.writeUTF(entry.getKey());
+      entry.getValue().write(out);
+    }
+  }
+
+  @Override
+  public synchronized void readExtra(DataInput in) throws IOException {
+    int userCount = in.readInt();
+    for (int i = 0; i < userCount; i++) {
+      String userId = in.readUTF();
+      users.put(userId, HourCounters.read(userId, in));
+    }
+    views.clear();
+  }
+
+  private static long firstHour(TimeSpan timeSpan, long bucket) {
+    return switch (timeSpan) {
+      case WEEK -> (bucket - MetricWindow.WEEK_BUCKETS + 1) * HOURS_PER_BUCKET;
+      case MONTH -> (bucket - MetricWindow.MONTH_BUCKETS + 1) * HOURS_PER_BUCKET;
+      case YEAR -> (bucket - MetricWindow.YEAR_BUCKETS + 1) * HOURS_PER_BUCKET;
+      default -> Long.MIN_VALUE;
+    };
+  }
+
+  /**
+   * @param user the interned id of the user
+   */
+  static long key(int user, int hourOfDay) {
+    return CompositeKey.pack(user, hourOfDay);
+  }
+
+  /**
+   * The rankings of all time spans in a single zone, as of a single day.
+   */
+  private static final class ZoneView {
+
+    private final ZoneHours zoneHours;
+    private final long bucket;
+    private final Map<TimeSpan, MetricRanking<Long>> rankings = new EnumMap<>(TimeSpan.class);
+
+    private ZoneView(ZoneHours zoneHours, long bucket) {
+      this.zoneHours = zoneHours;
+      this.bucket = bucket;
+      for (TimeSpan timeSpan : MetricWindow.TIME_SPANS) {
+        rankings.put(timeSpan, new MetricRanking<>());
+      }
+    }
+
+    private void fill(HourCounters counters) {
+      rankings.forEach((timeSpan, ranking) -> {
+        long[] perHour = counters.sumByHourOfDay(firstHour(timeSpan, bucket), Long.MAX_VALUE,
+            zoneHours);
+        for (int hour = 0; hour < perHour.length; hour++) {
+          if (perHour[hour] != 0) {
+            ranking.update(key(counters.user, hour), perHour[hour]);
+          }
+        }
+      });
+    }
+
+    private void add(int user, long utcHour, long purchases) {
+      long key = key(user, zoneHours.hourOfDay(utcHour));
+      rankings.forEach((timeSpan, ranking) -> {
+        if (utcHour >= firstHour(timeSpan, bucket)) {
+          ranking.update(key, ranking.get(key).orElse(0L) + purchases);
+        }
+      });
+    }
+
+    private void remove(int user) {
+      for (MetricRanking<Long> ranking : rankings.values()) {
+        for (int hour = 0; hour < HOURS_PER_BUCKET; hour++) {
+          ranking.remove(key(user, hour));
+        }
+      }
+    }
+  }
+
+  /**
+   * Purchase counts of a single user, ordered by hour. New purchases are appended at the end.
+   */
+  private static final class HourCounters {
+
+    private final int user;
+    private long[] hours = new long[4];
+    private int[] counts = new int[4];
+    private int size;
+
+    private HourCounters(String userId) {
+      this.user = CompositeKey.intern(userId);
+    }
+
+    private void add(long hour, long purchases) {
+      int index = size > 0 && hours[size - 1] < hour ? -size - 1
+          : Arrays.binarySearch(hours, 0, size, hour);
+      if (index >= 0) {
+        counts[index] += (int) purchases;
+        return;
+      }
+
+      int insert = -index - 1;
+      if (size == hours.length) {
+        hours = Arrays.copyOf(hours, size * 2);
+        counts = Arrays.copyOf(counts, size * 2);
+      }
+      System.arraycopy(hours, insert, hours, insert + 1, size - insert);
+      System.arraycopy(counts, insert, counts, insert + 1, size - insert);
+      hours[insert] = hour;
+      counts[insert] = (int) purchases;
+      size++;
+    }
+
+    private long first() {
+      return size == 0 ? Long.MAX_VALUE : hours[0];
+    }
+
+    /**
+     * @param toHour the first hour that is not included
+     */
+    private long[] sumByHourOfDay(long fromHour, long toHour, ZoneHours zoneHours) {
+      long[] perHour = new long[HOURS_PER_BUCKET];
+      int start = Arrays.binarySearch(hours, 0, size, fromHour);
+      for (int i = start >= 0 ? start : -start - 1; i < size && hours[i] < toHour; i++) {
+        perHour[zoneHours.hourOfDay(hours[i])] += counts[i];
+      }
+      return perHour;
+    }
+
+    private void write(DataOutput out) throws IOException {
+      out.writeInt(size);
+      for (int i = 0; i < size; i++) {
+        out.writeLong(hours[i]);
+        out.writeInt(counts[i]);
+      }
+    }
+
+    private static HourCounters read(String userId, DataInput in) throws IOException {
+      HourCounters counters = new HourCounters(userId);
+      int size = in.readInt();
+      counters.hours = new long[Math.max(4, size)];
+      counters.counts = new int[Math.max(4, size)];
+      for (int i = 0; i < size; i++) {
+        counters.hours[i] = in.readLong();
+        counters.counts[i] = in.readInt();
+      }
+      counters.size = size;
+      return counters;
+    }
+  }
+}
@@ -5,26 +5,41 @@ import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
 import de.unipassau.fim.fsinfo.prost.data.dto.CompositeMetricDTO;
 import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
-import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
-import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.UserHourAggregate;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAccumulator;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAggregates;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricEntityResolver;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking.RankedValue;
 import jakarta.annotation.PostConstruct;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.time.Instant;
-import java.time.LocalDateTime;
+import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+/**
+ * Purchases per user and hour of day. Purchases are counted per UTC hour and the hour of day is
+ * derived when a ranking is requested, by default in the zone of {@code ZONE_ID}, see
+ * {@link HourlyActivityAccumulator}.
+ */
 @Service
 public class HourlyActivityMetricCollector extends
     AbstractCompositeMetricCollector<ShopItemHistoryEntry> {
 
   protected ShopItemHistoryRepository shopItemHistoryRepository;
-  protected ShopItemRepository shopItemRepository;
-  protected UserRepository userRepository;
+  protected MetricEntityResolver entityResolver;
 
   @Value("${ZONE_ID:Europe/Berlin}")
   private String zoneId;
@@ -32,11 +47,10 @@ public class HourlyActivityMetricCollector extends
 
   @Autowired
   public HourlyActivityMetricCollector(ShopItemHistoryRepository shopItemHistoryRepository,
-      ShopItemRepository shopItemRepository, UserRepository userRepository) {
+      MetricEntityResolver entityResolver) {
     super(ShopItemHistoryEntry.class);
     this.shopItemHistoryRepository = shopItemHistoryRepository;
-    this.shopItemRepository = shopItemRepository;
-    this.userRepository = userRepository;
+    this.entityResolver = entityResolver;
   }
 
   @PostConstruct
@@ -48,68 +62,153 @@ public class HourlyActivityMetricCollector extends
       zone = ZoneOffset.UTC;
       System.out.println("[HAMC] :: zone defaults to UTC");
     }
-    initMetrics(shopItemHistoryRepository.findAll());
   }
 
   @Override
-  public BigDecimal calculateValue(ShopItemHistoryEntry entity, TimeSpan timeSpan,
-      Long startTimestamp,
-      Long endTimestamp) {
-    Optional<BigDecimal> valueO = getValue(timeSpan, getKey(entity));
+  protected void updateEntry(ShopItemHistoryEntry entity) {
+    accumulate(entity, metrics);
+  }
 
-    if (entity.getTimestamp() >= startTimestamp && entity.getTimestamp() <= endTimestamp) {
-      return valueO.map(bigDecimal -> bigDecimal.add(BigDecimal.ONE)).orElse(BigDecimal.ONE);
+  @Override
+  protected MetricAccumulator<Long> createAccumulator(long now) {
+    return new HourlyActivityAccumulator(now);
+  }
+
+  @Override
+  protected void accumulate(ShopItemHistoryEntry entry, MetricAccumulator<Long> accumulator) {
+    if (!filterOut(entry)) {
+      ((HourlyActivityAccumulator) accumulator).add(entry.getUserId(),
+          HourlyActivityAccumulator.toHour(entry.getTimestamp()), 1);
     }
+  }
 
-    return valueO.orElse(BigDecimal.ZERO);
+  @Override
+  protected void accumulate(MetricAggregates aggregates, MetricAccumulator<Long> accumulator) {
+    HourlyActivityAccumulator hourly = (HourlyActivityAccumulator) accumulator;
+    for (UserHourAggregate row : aggregates.byUserAndHour()) {
+      if (!entityResolver.isHidden(row.getUserId())) {
+        hourly.add(row.getUserId(), row.getHour(), row.getPurchases());
+      }
+    }
   }
 
   @Override
-  protected boolean filterOut(ShopItemHistoryEntry entity) {
-    Optional<ProstUser> userO = userRepository.findById(entity.getUserId());
-    if (userO.isPresent()) {
-      ProstUser user = userO.get();
-      return user.getHidden();
+  protected void removeEntry(ShopItemHistoryEntry entity) {
+    ((HourlyActivityAccumulator) metrics).removeUser(entity.getUserId());
+  }
+
+  @Override
+  protected Optional<MetricRanking.Snapshot<Long>> getRanking(TimeSpan timeSpan) {
+    return getRanking(timeSpan, zone);
+  }
+
+  private Optional<MetricRanking.Snapshot<Long>> getRanking(TimeSpan timeSpan, ZoneId zone) {
+    HourlyActivityAccumulator current = (HourlyActivityAccumulator) metrics;
+    return current.getRanking(timeSpan, zone, Instant.now().toEpochMilli())
+        .map(MetricRanking::snapshot);
+  }
+
+  /**
+   * Same as {@link #getCompositeMetricEntries(TimeSpan, int, int)}, with the hours of day in the
+   * given zone instead of the configured one.
+   */
+  public Optional<List<CompositeMetricDTO>> getCompositeMetricEntries(TimeSpan timeSpan,
+      int offset, int limit, ZoneId zone) {
+    return timer("prost.metrics.read").record(() -> getRanking(timeSpan, zone).map(
+        ranking -> page(ranking.stream(), offset, limit, this::mapToCompositeMetricEntries)));
+  }
+
+  @Override
+  protected List<RankedValue<Long>> rank(LocalDate from, LocalDate to) {
+    return rank(from, to, zone);
+  }
+
+  /**
+   * The days begin and end in the given zone, not in UTC.
+   */
+  private List<RankedValue<Long>> rank(LocalDate from, LocalDate to, ZoneId zone) {
+    long fromHour = HourlyActivityAccumulator.toHour(
+        from.atStartOfDay(zone).toInstant().toEpochMilli());
+    long toHour = HourlyActivityAccumulator.toHour(
+        to.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli());
+    return ((HourlyActivityAccumulator) metrics).rank(fromHour, toHour, zone);
+  }
+
+  /**
+   * Same as {@link #getCompositeMetricEntries(LocalDate, LocalDate, int, int)}, with the days and
+   * hours of day in the given zone instead of the configured one.
+   */
+  public Optional<List<CompositeMetricDTO>> getCompositeMetricEntries(LocalDate from,
+      LocalDate to, int offset, int limit, ZoneId zone) {
+    if (from.isAfter(to)) {
+      return Optional.empty();
     }
-    return false;
+    return Optional.of(timer("prost.metrics.read").record(() -> page(
+        rank(from, to, zone).stream(), offset, limit, this::mapToCompositeMetricEntries)));
+  }
+
+  @Override
+  protected boolean filterOut(ShopItemHistoryEntry entity) {
+    return entityResolver.isHidden(entity.getUserId());
   }
 
   @Override
-  public String[] getKeys(ShopItemHistoryEntry entity) {
-    ZoneOffset offset = zone.getRules().getOffset(Instant.now());
-    LocalDateTime entityTime = Instant.ofEpochMilli(entity.getTimestamp()).atZone(offset)
-        .toLocalDateTime();
-    int hour = entityTime.getHour();
-    return new String[]{entity.getUserId(), "" + hour};
+  public Long getKey(ShopItemHistoryEntry entity) {
+    int hour = Instant.ofEpochMilli(entity.getTimestamp()).atZone(zone).getHour();
+    return HourlyActivityAccumulator.key(CompositeKey.intern(entity.getUserId()), hour);
   }
 
   @Override
-  public ShopItemHistoryEntry findByKeys(String... keys) {
+  public ShopItemHistoryEntry findByKey(Long key) {
     return new ShopItemHistoryEntry();
   }
 
   @Override
-  public CompositeMetricDTO getCompositeMetricDTO(BigDecimal value, String... keys) {
-    String key1 = keys[0];
-    String key2 = keys[1];
+  protected void writeKey(DataOutput out, Long key) throws IOException {
+    out.writeUTF(CompositeKey.lookup(CompositeKey.first(key)));
+    out.writeInt(CompositeKey.second(key));
+  }
 
-    Optional<ProstUser> userO = userRepository.findById(key1);
-    Optional<Integer> hour;
+  @Override
+  protected Long readKey(DataInput in) throws IOException {
+    int user = CompositeKey.intern(in.readUTF());
+    return HourlyActivityAccumulator.key(user, in.readInt());
+  }
 
-    try {
-      hour = Optional.of(Integer.parseInt(key2));
-    } catch (NumberFormatException e) {
-      hour = Optional.empty();
+  @Override
+  protected List<CompositeMetricDTO> mapToCompositeMetricEntries(List<RankedValue<Long>> ranking) {
+    Map<String, ProstUser> users = entityResolver.findUsers(ranking.stream()
+        .map(entry -> CompositeKey.lookup(CompositeKey.first(entry.key())))
+        .collect(Collectors.toSet()));
+
+    List<CompositeMetricDTO> result = new ArrayList<>();
+    for (RankedValue<Long> entry : ranking) {
+      String userId = CompositeKey.lookup(CompositeKey.first(entry.key()));
+      result.add(getCompositeMetricDTO(toValue(entry.value()), CompositeKey.second(entry.key()),
+          Optional.ofNullable(users.get(userId))));
     }
+    return result;
+  }
+
+  /**
+   * @param user the interned id of the user
+   * @param hour the hour of day
+   */
+  @Override
+  public CompositeMetricDTO getCompositeMetricDTO(BigDecimal value, int user, int hour) {
+    return getCompositeMetricDTO(value, hour,
+        entityResolver.findUser(CompositeKey.lookup(user)));
+  }
 
+  private CompositeMetricDTO getCompositeMetricDTO(BigDecimal value, int hour,
+      Optional<ProstUser> userO) {
     ProstUser user = ProstUser.getAnonymous();
 
     if (userO.isPresent() && !userO.get().getHidden()) {
       user = userO.get();
     }
 
-    return new CompositeMetricDTO(hour.map(Object::toString).orElse("unknown"),
-        hour.map(integer -> integer + ":00").orElse("unknown"),
+    return new CompositeMetricDTO(Integer.toString(hour), hour + ":00",
         user.getId(), user.getDisplayName(),
         value);
   }
@@ -5,15 +5,21 @@ import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
 import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
 import de.unipassau.fim.fsinfo.prost.data.dao.TransactionEntry;
 import de.unipassau.fim.fsinfo.prost.data.dto.CompositeMetricDTO;
-import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
-import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
-import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.ItemUserAggregate;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAccumulator;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAggregates;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricEntityResolver;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking.RankedValue;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigDecimal;
-import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -22,63 +28,103 @@ public class ItemPurchaseMetricCollector extends
     AbstractCompositeMetricCollector<ShopItemHistoryEntry> {
 
   protected ShopItemHistoryRepository shopItemHistoryRepository;
-  protected ShopItemRepository shopItemRepository;
-  protected UserRepository userRepository;
+  protected MetricEntityResolver entityResolver;
 
   @Autowired
   public ItemPurchaseMetricCollector(ShopItemHistoryRepository shopItemHistoryRepository,
-      ShopItemRepository shopItemRepository, UserRepository userRepository) {
+      MetricEntityResolver entityResolver) {
     super(ShopItemHistoryEntry.class);
     this.shopItemHistoryRepository = shopItemHistoryRepository;
-    this.shopItemRepository = shopItemRepository;
-    this.userRepository = userRepository;
-    initMetrics(shopItemHistoryRepository.findAll());
+    this.entityResolver = entityResolver;
   }
 
   @Override
-  public BigDecimal calculateValue(ShopItemHistoryEntry entity, TimeSpan timeSpan,
-      Long startTimestamp, Long endTimestamp) {
+  protected void updateEntry(ShopItemHistoryEntry entity) {
+    accumulate(entity, metrics);
+  }
 
-    Optional<BigDecimal> valueO = getValue(timeSpan, getKey(entity));
+  @Override
+  protected void accumulate(ShopItemHistoryEntry entry, MetricAccumulator<Long> accumulator) {
+    if (!filterOut(entry)) {
+      accumulator.add(getKey(entry), entry.getTimestamp(), 0, entry.getAmount());
+    }
+  }
 
-    if (entity.getTimestamp() >= startTimestamp && entity.getTimestamp() <= endTimestamp) {
-      return valueO.map(bigDecimal -> bigDecimal.add(BigDecimal.valueOf(entity.getAmount())))
-          .orElseGet(() -> BigDecimal.valueOf(entity.getAmount()));
+  @Override
+  protected void accumulate(MetricAggregates aggregates, MetricAccumulator<Long> accumulator) {
+    List<ItemUserAggregate> rows = aggregates.byItemAndUser();
+    for (ItemUserAggregate row : rows) {
+      if (!entityResolver.isHidden(row.getUserId())) {
+        accumulator.add(key(row.getItemId(), row.getUserId()),
+            MetricAggregates.toTimestamp(row.getDay()), 0, row.getAmount());
+      }
     }
+  }
 
-    return valueO.orElse(BigDecimal.ZERO);
+  private static long key(String itemId, String userId) {
+    return CompositeKey.pack(CompositeKey.intern(itemId), CompositeKey.intern(userId));
   }
 
   @Override
   protected boolean filterOut(ShopItemHistoryEntry entity) {
-    Optional<ProstUser> userO = userRepository.findById(entity.getUserId());
-    if (userO.isPresent()) {
-      ProstUser user = userO.get();
-      return user.getHidden();
-    }
-    return false;
+    return entityResolver.isHidden(entity.getUserId());
+  }
+
+  @Override
+  public Long getKey(ShopItemHistoryEntry entity) {
+    return key(entity.getItemId(), entity.getUserId());
   }
 
   @Override
-  public String[] getKeys(ShopItemHistoryEntry entity) {
-    LocalDateTime entityTime = Instant.ofEpochMilli(entity.getTimestamp()).atZone(ZoneOffset.UTC)
-        .toLocalDateTime();
-    int hour = entityTime.getHour();
-    return new String[]{entity.getItemId(), entity.getUserId()};
+  public ShopItemHistoryEntry findByKey(Long key) {
+    return new ShopItemHistoryEntry(new TransactionEntry(),
+        CompositeKey.lookup(CompositeKey.first(key)), BigDecimal.ZERO, 0);
   }
 
   @Override
-  public ShopItemHistoryEntry findByKeys(String... keys) {
-    return new ShopItemHistoryEntry(new TransactionEntry(), keys[0], BigDecimal.ZERO, 0);
+  protected void writeKey(DataOutput out, Long key) throws IOException {
+    out.writeUTF(CompositeKey.lookup(CompositeKey.first(key)));
+    out.writeUTF(CompositeKey.lookup(CompositeKey.second(key)));
   }
 
   @Override
-  public CompositeMetricDTO getCompositeMetricDTO(BigDecimal value, String... keys) {
-    String itemId = keys[0];
-    String userId = keys[1];
+  protected Long readKey(DataInput in) throws IOException {
+    String itemId = in.readUTF();
+    return key(itemId, in.readUTF());
+  }
+
+  @Override
+  protected List<CompositeMetricDTO> mapToCompositeMetricEntries(List<RankedValue<Long>> ranking) {
+    Map<String, ShopItem> items = entityResolver.findItems(ranking.stream()
+        .map(entry -> CompositeKey.lookup(CompositeKey.first(entry.key())))
+        .collect(Collectors.toSet()));
+    Map<String, ProstUser> users = entityResolver.findUsers(ranking.stream()
+        .map(entry -> CompositeKey.lookup(CompositeKey.second(entry.key())))
+        .collect(Collectors.toSet()));
+
+    List<CompositeMetricDTO> result = new ArrayList<>();
+    for (RankedValue<Long> entry : ranking) {
+      String itemId = CompositeKey.lookup(CompositeKey.first(entry.key()));
+      String userId = CompositeKey.lookup(CompositeKey.second(entry.key()));
+      result.add(getCompositeMetricDTO(toValue(entry.value()), itemId,
+          Optional.ofNullable(items.get(itemId)), Optional.ofNullable(users.get(userId))));
+    }
+    return result;
+  }
+
+  /**
+   * @param item the interned id of the item
+   * @param user the interned id of the user
+   */
+  @Override
+  public CompositeMetricDTO getCompositeMetricDTO(BigDecimal value, int item, int user) {
+    String itemId = CompositeKey.lookup(item);
+    return getCompositeMetricDTO(value, itemId, entityResolver.findItem(itemId),
+        entityResolver.findUser(CompositeKey.lookup(user)));
+  }
 
-    Optional<ShopItem> item = shopItemRepository.findById(itemId);
-    Optional<ProstUser> userO = userRepository.findById(userId);
+  private CompositeMetricDTO getCompositeMetricDTO(BigDecimal value, String itemId,
+      Optional<ShopItem> item, Optional<ProstUser> userO) {
     ProstUser user = ProstUser.getAnonymous();
 
     if (userO.isPresent() && !userO.get().getHidden()) {
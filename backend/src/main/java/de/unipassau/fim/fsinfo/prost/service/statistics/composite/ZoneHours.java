@@ -0,0 +1,86 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics.composite;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The UTC offsets of a time zone over a range of time, precomputed from the transitions of the
+ * zone. Finding the local hour of day of a UTC hour is a binary search over a few offsets instead
+ * of a date-time conversion. Hours outside of the range are looked up in the rules of the zone.
+ */
+final class ZoneHours {
+
+  private static final long HOUR_SECONDS = 60 * 60;
+  private static final long DAY_SECONDS = 24 * HOUR_SECONDS;
+
+  private final ZoneRules rules;
+  private final long fromSecond;
+  private final long toSecond;
+
+  // the offset at index i is valid from starts[i] (epoch seconds) until starts[i + 1]
+  private final long[] starts;
+  private final int[] offsets;
+
+  private ZoneHours(ZoneRules rules, long fromSecond, long toSecond, long[] starts,
+      int[] offsets) {
+    this.rules = rules;
+    this.fromSecond = fromSecond;
+    this.toSecond = toSecond;
+    this.starts = starts;
+    this.offsets = offsets;
+  }
+
+  /**
+   * @param fromHour first UTC hour (hours since the epoch) that has to be converted
+   * @param toHour   last UTC hour that has to be converted
+   */
+  static ZoneHours of(ZoneId zone, long fromHour, long toHour) {
+    ZoneRules rules = zone.getRules();
+    long fromSecond = fromHour * HOUR_SECONDS;
+    long toSecond = toHour * HOUR_SECONDS;
+    Instant from = Instant.ofEpochSecond(fromSecond);
+
+    List<Long> starts = new ArrayList<>();
+    List<Integer> offsets = new ArrayList<>();
+    starts.add(Long.MIN_VALUE);
+    offsets.add(rules.getOffset(from).getTotalSeconds());
+
+    ZoneOffsetTransition transition = rules.nextTransition(from);
+    while (transition != null && transition.toEpochSecond() <= toSecond) {
+      starts.add(transition.toEpochSecond());
+      offsets.add(transition.getOffsetAfter().getTotalSeconds());
+      transition = rules.nextTransition(transition.getInstant());
+    }
+
+    return new ZoneHours(rules, fromSecond, toSecond,
+        starts.stream().mapToLong(Long::longValue).toArray(),
+        offsets.stream().mapToInt(Integer::intValue).toArray());
+  }
+
+  /**
+   * @return the local hour of day (0-23) the UTC hour begins in. Zones with an offset that is not
+   * a full hour count the UTC hour to the local hour it begins in.
+   */
+  int hourOfDay(long utcHour) {
+    long second = utcHour * HOUR_SECONDS;
+    if (second < fromSecond || second > toSecond) {
+      int offset = rules.getOffset(Instant.ofEpochSecond(second)).getTotalSeconds();
+      return (int) (Math.floorMod(second + offset, DAY_SECONDS) / HOUR_SECONDS);
+    }
+    int low = 0;
+    int high = starts.length - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (starts[mid] <= second) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return (int) (Math.floorMod(second + offsets[low], DAY_SECONDS) / HOUR_SECONDS);
+  }
+}
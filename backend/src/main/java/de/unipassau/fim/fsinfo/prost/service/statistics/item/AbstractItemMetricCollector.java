@@ -3,32 +3,53 @@ package de.unipassau.fim.fsinfo.prost.service.statistics.item;
 import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
 import de.unipassau.fim.fsinfo.prost.data.metrics.ItemMetricType;
 import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
-import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
 import de.unipassau.fim.fsinfo.prost.service.statistics.AbstractMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricEntityResolver;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
-public abstract class AbstractItemMetricCollector extends AbstractMetricCollector<ShopItem> {
+public abstract class AbstractItemMetricCollector extends
+    AbstractMetricCollector<ShopItem, String> {
 
-  protected ShopItemRepository shopItemRepository;
+  protected MetricEntityResolver entityResolver;
+  protected ShopItemHistoryRepository shopItemHistoryRepository;
 
   public static final Map<ItemMetricType, AbstractItemMetricCollector> COLLECTORS = new HashMap<>();
 
   public static Optional<List<MetricEntry<ShopItem>>> getMetricEntries(ItemMetricType type,
-      TimeSpan timeSpan) {
+      TimeSpan timeSpan, int offset, int limit) {
     if (COLLECTORS.containsKey(type)) {
-      return COLLECTORS.get(type).getMetricEntries(timeSpan);
+      return COLLECTORS.get(type).getMetricEntries(timeSpan, offset, limit);
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * @see AbstractMetricCollector#getMetricEntries(LocalDate, LocalDate, int, int)
+   */
+  public static Optional<List<MetricEntry<ShopItem>>> getMetricEntries(ItemMetricType type,
+      LocalDate from, LocalDate to, int offset, int limit) {
+    if (COLLECTORS.containsKey(type)) {
+      return COLLECTORS.get(type).getMetricEntries(from, to, offset, limit);
     }
     return Optional.empty();
   }
 
   protected ItemMetricType type;
 
-  public AbstractItemMetricCollector(ItemMetricType type, ShopItemRepository shopItemRepository) {
+  public AbstractItemMetricCollector(ItemMetricType type, MetricEntityResolver entityResolver,
+      ShopItemHistoryRepository shopItemHistoryRepository) {
     super(ShopItem.class);
-    this.shopItemRepository = shopItemRepository;
+    this.entityResolver = entityResolver;
+    this.shopItemHistoryRepository = shopItemHistoryRepository;
     this.type = type;
     COLLECTORS.put(type, this);
   }
@@ -40,12 +61,37 @@ public abstract class AbstractItemMetricCollector extends AbstractMetricCollecto
 
   @Override
   public ShopItem findByKey(String key) {
-    Optional<ShopItem> result = shopItemRepository.findById(key);
-    return result.orElse(null);
+    return entityResolver.findItem(key).orElse(null);
+  }
+
+  @Override
+  protected Map<String, ShopItem> findAllByKey(Collection<String> keys) {
+    return entityResolver.findItems(keys);
+  }
+
+  @Override
+  protected void writeKey(DataOutput out, String key) throws IOException {
+    out.writeUTF(key);
+  }
+
+  @Override
+  protected String readKey(DataInput in) throws IOException {
+    return in.readUTF();
   }
 
   @Override
   protected boolean filterOut(ShopItem entity) {
     return false;
   }
+
+  /**
+   * Purchases are added as deltas, so the history only has to be loaded for entities that are not
+   * part of the metric yet (new, or shown again after being removed).
+   */
+  @Override
+  protected void updateEntry(ShopItem entity) {
+    if (!filterOut(entity) && !metrics.isSeeded(getKey(entity))) {
+      recalculate(getKey(entity), shopItemHistoryRepository.findByItemId(entity.getId()));
+    }
+  }
 }
@@ -1,44 +1,41 @@
 package de.unipassau.fim.fsinfo.prost.service.statistics.item;
 
-import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.DataFilter;
 import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
 import de.unipassau.fim.fsinfo.prost.data.metrics.ItemMetricType;
-import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
-import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
-import java.math.BigDecimal;
-import java.util.List;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.ItemAggregate;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAccumulator;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAggregates;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricEntityResolver;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 @Service
 public class ItemRevenueMetricCollector extends AbstractItemMetricCollector {
 
-  private final ShopItemHistoryRepository shopItemHistoryRepository;
-
   @Autowired
   public ItemRevenueMetricCollector(ShopItemHistoryRepository shopItemHistoryRepository,
-      ShopItemRepository shopItemRepository) {
-    super(ItemMetricType.ITEM_REVENUE, shopItemRepository);
-    this.shopItemHistoryRepository = shopItemHistoryRepository;
-    initMetrics(shopItemRepository.findAll());
+      MetricEntityResolver entityResolver) {
+    super(ItemMetricType.ITEM_REVENUE, entityResolver, shopItemHistoryRepository);
   }
 
   @Override
-  public BigDecimal calculateValue(ShopItem entity, TimeSpan timeSpan,
-      Long startTimestamp,
-      Long endTimestamp) {
+  protected int getScale() {
+    return 2;
+  }
 
-    List<ShopItemHistoryEntry> list = shopItemHistoryRepository.findAllByItemIdAndTimestampBetween(
-        entity.getId(),
-        startTimestamp,
-        endTimestamp);
+  @Override
+  protected void accumulate(ShopItemHistoryEntry entry, MetricAccumulator<String> accumulator) {
+    accumulator.addIfSeeded(entry.getItemId(), entry.getTimestamp(), 0,
+        DataFilter.toCents(entry.getItemPrice()) * entry.getAmount());
+  }
 
-    BigDecimal result = BigDecimal.ZERO;
-    for (ShopItemHistoryEntry entry : list) {
-      result = result.add(entry.getItemPrice().multiply(BigDecimal.valueOf(entry.getAmount())));
+  @Override
+  protected void accumulate(MetricAggregates aggregates, MetricAccumulator<String> accumulator) {
+    for (ItemAggregate row : aggregates.byItem()) {
+      accumulator.addIfSeeded(row.getItemId(), MetricAggregates.toTimestamp(row.getDay()), 0,
+          DataFilter.toCents(row.getRevenue()));
     }
-
-    return result;
   }
 }
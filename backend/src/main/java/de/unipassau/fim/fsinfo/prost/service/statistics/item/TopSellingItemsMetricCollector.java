@@ -1,34 +1,34 @@
 package de.unipassau.fim.fsinfo.prost.service.statistics.item;
 
-import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
 import de.unipassau.fim.fsinfo.prost.data.metrics.ItemMetricType;
-import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
-import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
-import java.math.BigDecimal;
-import java.util.Optional;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.ItemAggregate;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAccumulator;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAggregates;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricEntityResolver;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 @Service
 public class TopSellingItemsMetricCollector extends AbstractItemMetricCollector {
 
-  private final ShopItemHistoryRepository shopItemHistoryRepository;
-
   @Autowired
   public TopSellingItemsMetricCollector(ShopItemHistoryRepository shopItemHistoryRepository,
-      ShopItemRepository shopItemRepository) {
-    super(ItemMetricType.TOP_SELLING_ITEMS, shopItemRepository);
-    this.shopItemHistoryRepository = shopItemHistoryRepository;
-    initMetrics(shopItemRepository.findAll());
+      MetricEntityResolver entityResolver) {
+    super(ItemMetricType.TOP_SELLING_ITEMS, entityResolver, shopItemHistoryRepository);
   }
 
   @Override
-  public BigDecimal calculateValue(ShopItem entity, TimeSpan timeSpan, Long startTimeStamp,
-      Long endTimeStamp) {
-    Optional<Long> result = shopItemHistoryRepository.getTotalAmountPurchasedInTimeFrame(
-        entity.getId(), startTimeStamp, endTimeStamp);
+  protected void accumulate(ShopItemHistoryEntry entry, MetricAccumulator<String> accumulator) {
+    accumulator.addIfSeeded(entry.getItemId(), entry.getTimestamp(), 0, entry.getAmount());
+  }
 
-    return result.map(BigDecimal::valueOf).orElse(BigDecimal.ZERO);
+  @Override
+  protected void accumulate(MetricAggregates aggregates, MetricAccumulator<String> accumulator) {
+    for (ItemAggregate row : aggregates.byItem()) {
+      accumulator.addIfSeeded(row.getItemId(), MetricAggregates.toTimestamp(row.getDay()), 0,
+          row.getAmount());
+    }
   }
 }
@@ -1,61 +1,80 @@
 package de.unipassau.fim.fsinfo.prost.service.statistics.user;
 
 import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.dto.MetricPositionDTO;
 import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
 import de.unipassau.fim.fsinfo.prost.data.metrics.UserMetricType;
-import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
 import de.unipassau.fim.fsinfo.prost.service.statistics.AbstractMetricCollector;
-import java.math.BigDecimal;
-import java.util.ArrayList;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricEntityResolver;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking.RankedValue;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
-public abstract class AbstractUserMetricCollector extends AbstractMetricCollector<ProstUser> {
+public abstract class AbstractUserMetricCollector extends
+    AbstractMetricCollector<ProstUser, String> {
 
-  private final UserRepository userRepository;
+  private final MetricEntityResolver entityResolver;
+  protected final ShopItemHistoryRepository shopItemHistoryRepository;
 
   public static final Map<UserMetricType, AbstractUserMetricCollector> COLLECTORS = new HashMap<>();
 
   public static Optional<List<MetricEntry<ProstUser>>> getMetricEntries(UserMetricType type,
-      TimeSpan timeSpan) {
+      TimeSpan timeSpan, int offset, int limit) {
     if (COLLECTORS.containsKey(type)) {
-      return COLLECTORS.get(type).getMetricEntries(timeSpan);
+      return COLLECTORS.get(type).getMetricEntries(timeSpan, offset, limit);
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * @see AbstractMetricCollector#getMetricEntries(LocalDate, LocalDate, int, int)
+   */
+  public static Optional<List<MetricEntry<ProstUser>>> getMetricEntries(UserMetricType type,
+      LocalDate from, LocalDate to, int offset, int limit) {
+    if (COLLECTORS.containsKey(type)) {
+      return COLLECTORS.get(type).getMetricEntries(from, to, offset, limit);
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * @return the place of a single user, empty if the user is not part of the metric
+   */
+  public static Optional<MetricPositionDTO> getPosition(UserMetricType type, TimeSpan timeSpan,
+      String userId) {
+    if (COLLECTORS.containsKey(type)) {
+      return COLLECTORS.get(type).getPosition(timeSpan, userId);
     }
     return Optional.empty();
   }
 
   protected UserMetricType type;
 
-  public AbstractUserMetricCollector(UserMetricType type, UserRepository userRepository) {
+  public AbstractUserMetricCollector(UserMetricType type, MetricEntityResolver entityResolver,
+      ShopItemHistoryRepository shopItemHistoryRepository) {
     super(ProstUser.class);
-    this.userRepository = userRepository;
+    this.entityResolver = entityResolver;
+    this.shopItemHistoryRepository = shopItemHistoryRepository;
     this.type = type;
     COLLECTORS.put(type, this);
   }
 
   @Override
-  protected List<MetricEntry<ProstUser>> mapToMetricEntries(
-      ConcurrentHashMap<String, BigDecimal> metricEntries) {
-    List<MetricEntry<ProstUser>> result = super.mapToMetricEntries(metricEntries);
-
-    List<MetricEntry<ProstUser>> sanitized = new ArrayList<>();
-
-    for (MetricEntry<ProstUser> entry : result) {
-      if (!entry.entity().getEnabled()) {
-        continue;
-      }
-
-      if (entry.entity().getHidden()) {
-        sanitized.add(getSanitizedEntry(entry));
-      } else {
-        sanitized.add(entry);
-      }
-    }
-
-    return sanitized;
+  protected List<MetricEntry<ProstUser>> mapToMetricEntries(List<RankedValue<String>> ranking) {
+    // filtered before paging, so a page is not shortened by disabled or deleted users
+    return super.mapToMetricEntries(ranking).stream()
+        .filter(entry -> entry.entity() != null && entry.entity().getEnabled())
+        .map(entry -> entry.entity().getHidden() ? getSanitizedEntry(entry) : entry)
+        .collect(Collectors.toList());
   }
 
   protected MetricEntry<ProstUser> getSanitizedEntry(MetricEntry<ProstUser> entry) {
@@ -69,12 +88,37 @@ public abstract class AbstractUserMetricCollector extends AbstractMetricCollecto
 
   @Override
   public ProstUser findByKey(String key) {
-    Optional<ProstUser> result = userRepository.findById(key);
-    return result.orElse(null);
+    return entityResolver.findUser(key).orElse(null);
+  }
+
+  @Override
+  protected Map<String, ProstUser> findAllByKey(Collection<String> keys) {
+    return entityResolver.findUsers(keys);
+  }
+
+  @Override
+  protected void writeKey(DataOutput out, String key) throws IOException {
+    out.writeUTF(key);
+  }
+
+  @Override
+  protected String readKey(DataInput in) throws IOException {
+    return in.readUTF();
   }
 
   @Override
   protected boolean filterOut(ProstUser entity) {
-    return entity.getHidden();
+    return entity.getHidden() || !Boolean.TRUE.equals(entity.getEnabled());
+  }
+
+  /**
+   * Purchases are added as deltas, so the history only has to be loaded for entities that are not
+   * part of the metric yet (new, or shown again after being removed).
+   */
+  @Override
+  protected void updateEntry(ProstUser entity) {
+    if (!filterOut(entity) && !metrics.isSeeded(getKey(entity))) {
+      recalculate(getKey(entity), shopItemHistoryRepository.findByUserId(entity.getId()));
+    }
   }
 }
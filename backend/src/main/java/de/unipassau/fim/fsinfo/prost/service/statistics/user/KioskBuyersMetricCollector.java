@@ -1,43 +1,41 @@
 package de.unipassau.fim.fsinfo.prost.service.statistics.user;
 
-import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
 import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
-import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
 import de.unipassau.fim.fsinfo.prost.data.metrics.UserMetricType;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
-import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
-import java.math.BigDecimal;
-import java.util.List;
-import java.util.stream.Stream;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.UserAggregate;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAccumulator;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAggregates;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricEntityResolver;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 @Service
 public class KioskBuyersMetricCollector extends AbstractUserMetricCollector {
 
-  private final ShopItemHistoryRepository shopItemHistoryRepository;
-
   @Autowired
-  public KioskBuyersMetricCollector(UserRepository userRepository,
-      ShopItemHistoryRepository shopItemHistoryRepository) {
-    super(UserMetricType.KIOSK_CUSTOMER, userRepository);
-    this.shopItemHistoryRepository = shopItemHistoryRepository;
-    initMetrics(userRepository.findAll());
+  public KioskBuyersMetricCollector(ShopItemHistoryRepository shopItemHistoryRepository,
+      MetricEntityResolver entityResolver) {
+    super(UserMetricType.KIOSK_CUSTOMER, entityResolver, shopItemHistoryRepository);
   }
 
   @Override
-  public BigDecimal calculateValue(ProstUser entity, TimeSpan timeSpan, Long startTimestamp,
-      Long endTimestamp) {
-
-    List<ShopItemHistoryEntry> items = shopItemHistoryRepository.findByUserIdAndTimestampBetween(
-        entity.getId(), startTimestamp,
-        endTimestamp);
-
+  protected void accumulate(ShopItemHistoryEntry entry, MetricAccumulator<String> accumulator) {
     // We only check for transactions from other users, because only the kiosk and admins have
     // authority to make transactions for other users.
-    Stream<ShopItemHistoryEntry> filter = items.stream()
-        .filter(entry -> !entry.getTransaction().getBearerId().equals(entity.getId()));
+    if (!entry.getTransaction().getBearerId().equals(entry.getUserId())) {
+      accumulator.addIfSeeded(entry.getUserId(), entry.getTimestamp(), 0, 1);
+    }
+  }
 
-    return BigDecimal.valueOf(filter.count());
+  @Override
+  protected void accumulate(MetricAggregates aggregates, MetricAccumulator<String> accumulator) {
+    for (UserAggregate row : aggregates.byUser()) {
+      // days without kiosk purchases must not take up a slot, same as for single entries
+      if (row.getPurchasesByOthers() > 0) {
+        accumulator.addIfSeeded(row.getUserId(), MetricAggregates.toTimestamp(row.getDay()), 0,
+            row.getPurchasesByOthers());
+      }
+    }
   }
 }
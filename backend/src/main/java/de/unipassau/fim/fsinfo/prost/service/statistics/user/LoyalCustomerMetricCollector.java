@@ -1,11 +1,12 @@
 package de.unipassau.fim.fsinfo.prost.service.statistics.user;
 
-import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
-import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
 import de.unipassau.fim.fsinfo.prost.data.metrics.UserMetricType;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
-import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
-import java.math.BigDecimal;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.UserAggregate;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAccumulator;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAggregates;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricEntityResolver;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -13,21 +14,22 @@ import org.springframework.stereotype.Service;
 @Service
 public class LoyalCustomerMetricCollector extends AbstractUserMetricCollector {
 
-  private final ShopItemHistoryRepository shopItemHistoryRepository;
-
   @Autowired
-  public LoyalCustomerMetricCollector(UserRepository userRepository,
-      ShopItemHistoryRepository shopItemHistoryRepository) {
-    super(UserMetricType.LOYAL_CUSTOMER, userRepository);
-    this.shopItemHistoryRepository = shopItemHistoryRepository;
-    initMetrics(userRepository.findAll());
+  public LoyalCustomerMetricCollector(ShopItemHistoryRepository shopItemHistoryRepository,
+      MetricEntityResolver entityResolver) {
+    super(UserMetricType.LOYAL_CUSTOMER, entityResolver, shopItemHistoryRepository);
+  }
+
+  @Override
+  protected void accumulate(ShopItemHistoryEntry entry, MetricAccumulator<String> accumulator) {
+    accumulator.addIfSeeded(entry.getUserId(), entry.getTimestamp(), 0, 1);
   }
 
   @Override
-  public BigDecimal calculateValue(ProstUser entity, TimeSpan timeSpan, Long startTimestamp,
-      Long endTimestamp) {
-    return BigDecimal.valueOf(
-        shopItemHistoryRepository.findByUserIdAndTimestampBetween(entity.getId(), startTimestamp,
-            endTimestamp).size());
+  protected void accumulate(MetricAggregates aggregates, MetricAccumulator<String> accumulator) {
+    for (UserAggregate row : aggregates.byUser()) {
+      accumulator.addIfSeeded(row.getUserId(), MetricAggregates.toTimestamp(row.getDay()), 0,
+          row.getPurchases());
+    }
   }
 }
@@ -1,50 +1,61 @@
 package de.unipassau.fim.fsinfo.prost.service.statistics.user;
 
-import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.DataFilter;
 import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
-import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
 import de.unipassau.fim.fsinfo.prost.data.metrics.UserMetricType;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
-import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.List;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.UserAggregate;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAccumulator;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricAggregates;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricEntityResolver;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 @Service
 public class LuxuryCustomerMetricCollector extends AbstractUserMetricCollector {
 
-  private final ShopItemHistoryRepository shopItemHistoryRepository;
+  private static final int SLOT_SUM = 0;
+  private static final int SLOT_COUNT = 1;
 
   @Autowired
-  public LuxuryCustomerMetricCollector(
-      UserRepository userRepository,
-      ShopItemHistoryRepository shopItemHistoryRepository) {
-    super(UserMetricType.LUXURY_CUSTOMER, userRepository);
-    this.shopItemHistoryRepository = shopItemHistoryRepository;
-    initMetrics(userRepository.findAll());
+  public LuxuryCustomerMetricCollector(ShopItemHistoryRepository shopItemHistoryRepository,
+      MetricEntityResolver entityResolver) {
+    super(UserMetricType.LUXURY_CUSTOMER, entityResolver, shopItemHistoryRepository);
   }
 
   @Override
-  public BigDecimal calculateValue(ProstUser entity, TimeSpan timeSpan, Long startTimestamp,
-      Long endTimestamp) {
-
-    List<ShopItemHistoryEntry> entries = shopItemHistoryRepository.findByUserIdAndTimestampBetween(
-        entity.getId(), startTimestamp,
-        endTimestamp);
+  protected int getSlotCount() {
+    return 2;
+  }
 
-    BigDecimal sum = BigDecimal.ZERO;
-    int count = 0;
+  @Override
+  protected int getScale() {
+    return 2;
+  }
 
-    for (ShopItemHistoryEntry entry : entries) {
-      count += entry.getAmount();
-      sum = sum.add(entry.getItemPrice().multiply(BigDecimal.valueOf(entry.getAmount())));
+  @Override
+  protected long evaluate(long[] slots) {
+    if (slots[SLOT_COUNT] != 0) {
+      return Math.floorDiv(slots[SLOT_SUM], slots[SLOT_COUNT]);
     }
+    return 0;
+  }
 
-    if (count != 0) {
-      return sum.divide(BigDecimal.valueOf(count), 2, RoundingMode.FLOOR);
+  @Override
+  protected void accumulate(ShopItemHistoryEntry entry, MetricAccumulator<String> accumulator) {
+    long amount = entry.getAmount();
+    accumulator.addIfSeeded(entry.getUserId(), entry.getTimestamp(), SLOT_SUM,
+        DataFilter.toCents(entry.getItemPrice()) * amount);
+    accumulator.addIfSeeded(entry.getUserId(), entry.getTimestamp(), SLOT_COUNT, amount);
+  }
+
+  @Override
+  protected void accumulate(MetricAggregates aggregates, MetricAccumulator<String> accumulator) {
+    for (UserAggregate row : aggregates.byUser()) {
+      long timestamp = MetricAggregates.toTimestamp(row.getDay());
+      accumulator.addIfSeeded(row.getUserId(), timestamp, SLOT_SUM,
+          DataFilter.toCents(row.getRevenue()));
+      accumulator.addIfSeeded(row.getUserId(), timestamp, SLOT_COUNT, row.getAmount());
     }
-    return BigDecimal.ZERO;
   }
 }
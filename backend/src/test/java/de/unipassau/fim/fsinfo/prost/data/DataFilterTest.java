@@ -119,5 +119,20 @@ public class DataFilterTest {
   public void testValidMoney_NullAmount() {
     assertFalse(DataFilter.isValidMoney(null));
   }
-}
 
+  @Test
+  public void testToCents_ValidMoney() {
+    assertEquals(1250L, DataFilter.toCents(new BigDecimal("12.50")));
+    assertEquals(300L, DataFilter.toCents(new BigDecimal("3")));
+  }
+
+  @Test
+  public void testToCents_NegativeMoney() {
+    assertEquals(-199L, DataFilter.toCents(new BigDecimal("-1.99")));
+  }
+
+  @Test
+  public void testToCents_Null() {
+    assertEquals(0L, DataFilter.toCents(null));
+  }
+}
@@ -0,0 +1,134 @@
+package de.unipassau.fim.fsinfo.prost.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import de.unipassau.fim.fsinfo.prost.data.TransactionType;
+import de.unipassau.fim.fsinfo.prost.data.dao.TransactionEntry;
+import de.unipassau.fim.fsinfo.prost.data.repositories.TransactionRepository;
+import de.unipassau.fim.fsinfo.prost.service.IdempotencyService.Check;
+import de.unipassau.fim.fsinfo.prost.service.IdempotencyService.Status;
+import java.math.BigDecimal;
+import java.util.Optional;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class IdempotencyServiceTest {
+
+  private static final String FINGERPRINT = IdempotencyService.fingerprint("consume", "user",
+      "item", 1);
+
+  @Mock
+  private TransactionRepository transactionRepository;
+
+  private IdempotencyService idempotencyService;
+
+  @BeforeEach
+  public void setUp() {
+    idempotencyService = new IdempotencyService(transactionRepository, 60000, 2);
+  }
+
+  @Test
+  public void testBegin_NewKeyIsReservedUntilRelease() {
+    when(transactionRepository.findByIdempotencyKey("key-1")).thenReturn(Optional.empty());
+
+    assertEquals(Status.NEW, idempotencyService.begin("key-1", "kiosk", FINGERPRINT).status());
+    assertEquals(Status.RUNNING, idempotencyService.begin("key-1", "kiosk", FINGERPRINT).status());
+
+    // the request failed, so it may be sent again
+    idempotencyService.release("key-1");
+    assertEquals(Status.NEW, idempotencyService.begin("key-1", "kiosk", FINGERPRINT).status());
+  }
+
+  @Test
+  public void testBegin_RecordedKeyIsReplayed() {
+    when(transactionRepository.findByIdempotencyKey("key-1")).thenReturn(Optional.empty());
+    assertEquals(Status.NEW, idempotencyService.begin("key-1", "kiosk", FINGERPRINT).status());
+
+    idempotencyService.record(entry("key-1", "kiosk"));
+    idempotencyService.release("key-1");
+
+    assertEquals(Status.REPLAYED, idempotencyService.begin("key-1", "kiosk", FINGERPRINT).status());
+    assertEquals(Status.REJECTED, idempotencyService.begin("key-1", "other", FINGERPRINT).status());
+    verify(transactionRepository, times(1)).findByIdempotencyKey("key-1");
+  }
+
+  @Test
+  public void testBegin_StoredKeyIsReplayed() {
+    when(transactionRepository.findByIdempotencyKey("key-1"))
+        .thenReturn(Optional.of(entry("key-1", "kiosk")));
+
+    assertEquals(Status.REPLAYED, idempotencyService.begin("key-1", "kiosk", FINGERPRINT).status());
+    assertEquals(Status.REPLAYED, idempotencyService.begin("key-1", "kiosk", FINGERPRINT).status());
+    verify(transactionRepository, times(1)).findByIdempotencyKey("key-1");
+  }
+
+  @Test
+  public void testBegin_ReplayReturnsTransaction() {
+    when(transactionRepository.findByIdempotencyKey("key-1"))
+        .thenReturn(Optional.of(entry("key-1", "kiosk")));
+
+    Check check = idempotencyService.begin("key-1", "kiosk", FINGERPRINT);
+    assertEquals(Status.REPLAYED, check.status());
+    assertEquals(1L, check.transactionId());
+  }
+
+  @Test
+  public void testBegin_OtherRequestIsMismatch() {
+    String otherAmount = IdempotencyService.fingerprint("consume", "user", "item", 2);
+    when(transactionRepository.findByIdempotencyKey("key-1")).thenReturn(Optional.empty());
+    assertEquals(Status.NEW, idempotencyService.begin("key-1", "kiosk", FINGERPRINT).status());
+    assertEquals(Status.MISMATCH, idempotencyService.begin("key-1", "kiosk", otherAmount).status());
+    assertEquals(FINGERPRINT, idempotencyService.getFingerprint("key-1"));
+
+    idempotencyService.record(entry("key-1", "kiosk"));
+    idempotencyService.release("key-1");
+
+    Check check = idempotencyService.begin("key-1", "kiosk", otherAmount);
+    assertEquals(Status.MISMATCH, check.status());
+    assertNull(check.transactionId());
+    assertEquals(Status.REPLAYED, idempotencyService.begin("key-1", "kiosk", FINGERPRINT).status());
+  }
+
+  @Test
+  public void testBegin_StoredKeyWithOtherRequestIsMismatch() {
+    when(transactionRepository.findByIdempotencyKey("key-1"))
+        .thenReturn(Optional.of(entry("key-1", "kiosk")));
+
+    Check check = idempotencyService.begin("key-1", "kiosk",
+        IdempotencyService.fingerprint("checkout", "user", "item", 1));
+    assertEquals(Status.MISMATCH, check.status());
+  }
+
+  @Test
+  public void testBegin_InvalidKeyIsRejected() {
+    assertEquals(Status.REJECTED, idempotencyService.begin(" ", "kiosk", FINGERPRINT).status());
+    assertEquals(Status.REJECTED, idempotencyService.begin(
+        "k".repeat(IdempotencyService.MAX_KEY_LENGTH + 1), "kiosk", FINGERPRINT).status());
+  }
+
+  @Test
+  public void testRecord_CacheIsBounded() {
+    idempotencyService.record(entry("key-1", "kiosk"));
+    idempotencyService.record(entry("key-2", "kiosk"));
+    idempotencyService.record(entry("key-3", "kiosk"));
+
+    assertEquals(1, idempotencyService.size());
+  }
+
+  private static TransactionEntry entry(String key, String bearerId) {
+    TransactionEntry entry = new TransactionEntry(null, "user", bearerId, TransactionType.BUY,
+        BigDecimal.ZERO, BigDecimal.ONE);
+    entry.setId(1L);
+    entry.setIdempotencyKey(key);
+    entry.setIdempotencyFingerprint(FINGERPRINT);
+    return entry;
+  }
+}
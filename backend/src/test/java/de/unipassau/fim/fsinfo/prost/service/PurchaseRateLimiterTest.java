@@ -0,0 +1,90 @@
+package de.unipassau.fim.fsinfo.prost.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.unipassau.fim.fsinfo.prost.data.UserAccessRole;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class PurchaseRateLimiterTest {
+
+  @Test
+  public void testTryAcquire_OnePurchasePerCooldown() {
+    PurchaseRateLimiter limiter = new PurchaseRateLimiter(1000, new String[0], false);
+
+    assertTrue(limiter.tryAcquire("user", UserAccessRole.FSINFO, 0));
+    assertFalse(limiter.tryAcquire("user", UserAccessRole.FSINFO, 999));
+    assertTrue(limiter.tryAcquire("other", UserAccessRole.FSINFO, 999));
+    assertTrue(limiter.tryAcquire("user", UserAccessRole.FSINFO, 1000));
+  }
+
+  @Test
+  public void testTryAcquire_BurstPerRole() {
+    PurchaseRateLimiter limiter = new PurchaseRateLimiter(1000,
+        new String[]{"KIOSK:100:3", "invalid"}, false);
+
+    assertTrue(limiter.tryAcquire("kiosk", UserAccessRole.KIOSK, 0));
+    assertTrue(limiter.tryAcquire("kiosk", UserAccessRole.KIOSK, 0));
+    assertTrue(limiter.tryAcquire("kiosk", UserAccessRole.KIOSK, 0));
+    assertFalse(limiter.tryAcquire("kiosk", UserAccessRole.KIOSK, 0));
+    // one purchase is back after a cooldown
+    assertTrue(limiter.tryAcquire("kiosk", UserAccessRole.KIOSK, 100));
+    assertFalse(limiter.tryAcquire("kiosk", UserAccessRole.KIOSK, 100));
+  }
+
+  @Test
+  public void testRelease_GivesPurchaseBack() {
+    PurchaseRateLimiter limiter = new PurchaseRateLimiter(60000, new String[0], false);
+
+    assertTrue(limiter.tryAcquire("user", UserAccessRole.KAFFEEKASSE));
+    assertTrue(limiter.isLimited("user", UserAccessRole.KAFFEEKASSE));
+    limiter.release("user", UserAccessRole.KAFFEEKASSE);
+    assertFalse(limiter.isLimited("user", UserAccessRole.KAFFEEKASSE));
+  }
+
+  @Test
+  public void testSweep_RemovesOnlyFullBuckets() {
+    PurchaseRateLimiter limiter = new PurchaseRateLimiter(1000, new String[0], false);
+    limiter.tryAcquire("old", UserAccessRole.FSINFO, 0);
+    limiter.tryAcquire("new", UserAccessRole.FSINFO, 500);
+
+    limiter.sweep(1000);
+    assertEquals(1, limiter.size());
+    // a purchase after the sweep is limited by the remaining bucket
+    assertFalse(limiter.tryAcquire("new", UserAccessRole.FSINFO, 1000));
+    assertTrue(limiter.tryAcquire("old", UserAccessRole.FSINFO, 1000));
+  }
+
+  @Test
+  public void testTryAcquire_ParallelPurchases_OnlyOnePasses() throws InterruptedException {
+    PurchaseRateLimiter limiter = new PurchaseRateLimiter(60000, new String[0], false);
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger passed = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (limiter.tryAcquire("user", UserAccessRole.KIOSK)) {
+          passed.incrementAndGet();
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(1, passed.get());
+  }
+}
@@ -0,0 +1,99 @@
+package de.unipassau.fim.fsinfo.prost.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.dto.ItemStateDTO;
+import de.unipassau.fim.fsinfo.prost.data.dto.UserStateDTO;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import java.math.BigDecimal;
+import java.util.Optional;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class ShopEntityCacheTest {
+
+  @Mock
+  private UserRepository userRepository;
+
+  @Mock
+  private ShopItemRepository itemRepository;
+
+  private ShopEntityCache entityCache;
+  private ProstUser user;
+  private ShopItem item;
+
+  @BeforeEach
+  public void setUp() {
+    ShopEntityCache.clear();
+    entityCache = new ShopEntityCache(userRepository, itemRepository);
+    user = new ProstUser("user1", "Test User", "digga@test.com", true, false, true);
+    item = new ShopItem("item1", "category1", "Item 1", new BigDecimal("10.00"));
+  }
+
+  @Test
+  public void testFind_ReadsOnce() {
+    when(userRepository.findStateById(user.getId()))
+        .thenReturn(Optional.of(UserStateDTO.of(user)));
+    when(itemRepository.findStateById(item.getId()))
+        .thenReturn(Optional.of(ItemStateDTO.of(item)));
+
+    assertEquals(Optional.of(UserStateDTO.of(user)), entityCache.findUser(user.getId()));
+    assertEquals(Optional.of(UserStateDTO.of(user)), entityCache.findUser(user.getId()));
+    assertEquals(Optional.of(ItemStateDTO.of(item)), entityCache.findItem(item.getId()));
+    assertEquals(Optional.of(ItemStateDTO.of(item)), entityCache.findItem(item.getId()));
+
+    verify(userRepository, times(1)).findStateById(user.getId());
+    verify(itemRepository, times(1)).findStateById(item.getId());
+  }
+
+  @Test
+  public void testEvictUser_ReadsChangedState() {
+    when(userRepository.findStateById(user.getId()))
+        .thenReturn(Optional.of(UserStateDTO.of(user)));
+    assertTrue(entityCache.findUser(user.getId()).orElseThrow().enabled());
+
+    user.setEnabled(false);
+    when(userRepository.findStateById(user.getId()))
+        .thenReturn(Optional.of(UserStateDTO.of(user)));
+    ShopEntityCache.evictUser(user.getId());
+
+    assertFalse(entityCache.findUser(user.getId()).orElseThrow().enabled());
+  }
+
+  @Test
+  public void testEvictItem_ReadsChangedPrice() {
+    when(itemRepository.findStateById(item.getId()))
+        .thenReturn(Optional.of(ItemStateDTO.of(item)));
+    assertEquals(new BigDecimal("10.00"), entityCache.findItem(item.getId()).orElseThrow().price());
+
+    item.setPrice(new BigDecimal("2.50"));
+    when(itemRepository.findStateById(item.getId()))
+        .thenReturn(Optional.of(ItemStateDTO.of(item)));
+    ShopEntityCache.evictItem(item.getId());
+
+    assertEquals(new BigDecimal("2.50"), entityCache.findItem(item.getId()).orElseThrow().price());
+  }
+
+  @Test
+  public void testFind_MissingIsNotCached() {
+    when(userRepository.findStateById("missing")).thenReturn(Optional.empty());
+
+    assertTrue(entityCache.findUser("missing").isEmpty());
+    assertTrue(entityCache.findUser("missing").isEmpty());
+    assertTrue(entityCache.findUser(null).isEmpty());
+
+    verify(userRepository, times(2)).findStateById("missing");
+  }
+}
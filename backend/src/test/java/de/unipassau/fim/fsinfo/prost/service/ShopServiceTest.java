@@ -2,9 +2,12 @@ package de.unipassau.fim.fsinfo.prost.service;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import de.unipassau.fim.fsinfo.prost.data.TransactionType;
@@ -12,23 +15,34 @@ import de.unipassau.fim.fsinfo.prost.data.UserAccessRole;
 import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
 import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
 import de.unipassau.fim.fsinfo.prost.data.dao.TransactionEntry;
+import de.unipassau.fim.fsinfo.prost.data.dto.CheckoutLineDTO;
+import de.unipassau.fim.fsinfo.prost.data.dto.ItemStateDTO;
+import de.unipassau.fim.fsinfo.prost.data.dto.UserStateDTO;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
 import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
 import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricUpdateEvent;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import java.math.BigDecimal;
 import java.time.Instant;
+import java.util.List;
 import java.util.Optional;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationEventPublisher;
 
 @ExtendWith(MockitoExtension.class)
 public class ShopServiceTest {
 
-  @InjectMocks
+  private static final long BUY_COOLDOWN = 10L;
+
   private ShopService shopService;
 
   @Mock
@@ -43,17 +57,37 @@ public class ShopServiceTest {
   @Mock
   private TransactionService transactionService;
 
+  @Mock
+  private ApplicationEventPublisher eventPublisher;
+
+  @Spy
+  private PurchaseRateLimiter rateLimiter = new PurchaseRateLimiter(BUY_COOLDOWN, new String[0],
+      false);
+
   private ShopItem shopItem;
   private ProstUser prostUser;
   private ProstUser kioskUser;
 
   @BeforeEach
   public void setUp() {
+    ShopEntityCache.clear();
+    shopService = new ShopService(itemRepository, historyRepository,
+        new ShopEntityCache(userRepository, itemRepository), transactionService, eventPublisher,
+        rateLimiter);
     shopItem = new ShopItem("item1", "category1", "Item 1", new BigDecimal("10.00"));
     prostUser = new ProstUser("user1", "Test User", "digga@test.com", true, false, true);
     kioskUser = new ProstUser("kiosk", "Kiosk", "kiosk@test.com", true, true, false);
   }
 
+  // the state is copied, so the entities have to be changed before
+  private void stubUser(ProstUser user) {
+    when(userRepository.findStateById(user.getId())).thenReturn(Optional.of(UserStateDTO.of(user)));
+  }
+
+  private void stubItem(ShopItem item) {
+    when(itemRepository.findStateById(item.getId())).thenReturn(Optional.of(ItemStateDTO.of(item)));
+  }
+
   @Test
   public void testConsume_InvalidAmount_ReturnsFalse() {
     boolean result = shopService.consume(shopItem.getId(), prostUser.getId(), 0, prostUser.getId(),
@@ -63,8 +97,8 @@ public class ShopServiceTest {
 
   @Test
   public void testConsume_MissingEntities_ReturnsFalse() {
-    when(itemRepository.findById(anyString())).thenReturn(Optional.empty());
-    when(userRepository.findById(anyString())).thenReturn(Optional.empty());
+    when(itemRepository.findStateById(anyString())).thenReturn(Optional.empty());
+    when(userRepository.findStateById(anyString())).thenReturn(Optional.empty());
     boolean result = shopService.consume(shopItem.getId(), prostUser.getId(), 1, prostUser.getId(),
         UserAccessRole.KAFFEEKASSE);
     assertFalse(result);
@@ -72,9 +106,9 @@ public class ShopServiceTest {
 
   @Test
   public void testConsume_DisabledItem_ReturnsFalse() {
-    when(itemRepository.findById(shopItem.getId())).thenReturn(Optional.of(shopItem));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
     shopItem.setEnabled(false);
+    stubItem(shopItem);
+    stubUser(prostUser);
 
     boolean result = shopService.consume(shopItem.getId(), prostUser.getId(), 1, prostUser.getId(),
         UserAccessRole.KAFFEEKASSE);
@@ -83,9 +117,9 @@ public class ShopServiceTest {
 
   @Test
   public void testConsume_DisabledUser_ReturnsFalse() {
-    when(itemRepository.findById(shopItem.getId())).thenReturn(Optional.of(shopItem));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
     prostUser.setEnabled(false);
+    stubItem(shopItem);
+    stubUser(prostUser);
 
     assertFalse(shopService.consume(shopItem.getId(), prostUser.getId(), 1, prostUser.getId(),
         UserAccessRole.KAFFEEKASSE));
@@ -96,11 +130,11 @@ public class ShopServiceTest {
     TransactionEntry transaction = new TransactionEntry(null, prostUser.getId(), kioskUser.getId(),
         TransactionType.BUY, null, shopItem.getPrice());
     when(transactionService.moneyTransfer(any(), anyString(), anyString(), any(),
-        any(TransactionType.class)))
+        any(TransactionType.class), any()))
         .thenReturn(Optional.of(transaction));
-    when(itemRepository.findById(shopItem.getId())).thenReturn(Optional.of(shopItem));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
-    when(userRepository.findById(kioskUser.getId())).thenReturn(Optional.of(kioskUser));
+    stubItem(shopItem);
+    stubUser(prostUser);
+    stubUser(kioskUser);
 
     assertTrue(shopService.consume(shopItem.getId(), prostUser.getId(), 1, kioskUser.getId(),
         UserAccessRole.KIOSK));
@@ -109,9 +143,9 @@ public class ShopServiceTest {
   @Test
   public void testConsume_DisabledKiosk_ReturnsFalse() {
     prostUser.setKiosk(false);
-    when(itemRepository.findById(shopItem.getId())).thenReturn(Optional.of(shopItem));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
-    when(userRepository.findById(kioskUser.getId())).thenReturn(Optional.of(kioskUser));
+    stubItem(shopItem);
+    stubUser(prostUser);
+    stubUser(kioskUser);
 
     assertFalse(shopService.consume(shopItem.getId(), prostUser.getId(), 1, kioskUser.getId(),
         UserAccessRole.KIOSK));
@@ -122,20 +156,38 @@ public class ShopServiceTest {
     TransactionEntry transaction = new TransactionEntry(null, prostUser.getId(), prostUser.getId(),
         TransactionType.BUY, null, shopItem.getPrice());
     when(transactionService.moneyTransfer(any(), anyString(), anyString(), any(),
-        any(TransactionType.class)))
+        any(TransactionType.class), any()))
         .thenReturn(Optional.of(transaction));
-    when(itemRepository.findById(shopItem.getId())).thenReturn(Optional.of(shopItem));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
+    stubItem(shopItem);
+    stubUser(prostUser);
 
     assertTrue(shopService.consume(shopItem.getId(), prostUser.getId(), 1, prostUser.getId(),
         UserAccessRole.FSINFO));
+    verify(eventPublisher).publishEvent(any(MetricUpdateEvent.class));
+  }
+
+  @Test
+  public void testConsume_HiddenUser_PublishesMetricUpdate() {
+    prostUser.setHidden(true);
+    TransactionEntry transaction = new TransactionEntry(null, prostUser.getId(), prostUser.getId(),
+        TransactionType.BUY, null, shopItem.getPrice());
+    when(transactionService.moneyTransfer(any(), anyString(), anyString(), any(),
+        any(TransactionType.class), any()))
+        .thenReturn(Optional.of(transaction));
+    stubItem(shopItem);
+    stubUser(prostUser);
+
+    assertTrue(shopService.consume(shopItem.getId(), prostUser.getId(), 1, prostUser.getId(),
+        UserAccessRole.FSINFO));
+    // the item metrics count hidden users too
+    verify(eventPublisher).publishEvent(any(MetricUpdateEvent.class));
   }
 
   @Test
   public void testConsume_RegularUser_BuyOther_ReturnsFalse() {
-    when(itemRepository.findById(shopItem.getId())).thenReturn(Optional.of(shopItem));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
-    when(userRepository.findById(kioskUser.getId())).thenReturn(Optional.of(kioskUser));
+    stubItem(shopItem);
+    stubUser(prostUser);
+    stubUser(kioskUser);
 
     assertFalse(shopService.consume(shopItem.getId(), prostUser.getId(), 1, kioskUser.getId(),
         UserAccessRole.FSINFO));
@@ -143,8 +195,6 @@ public class ShopServiceTest {
 
   @Test
   public void testHasBearerPermissions_UnknownBearerRole_ReturnsFalse() {
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
-
     assertFalse(
         shopService.hasBearerPermissions(shopItem.getId(), prostUser.getId(), 1, kioskUser.getId(),
             UserAccessRole.UNASSIGNED));
@@ -152,8 +202,6 @@ public class ShopServiceTest {
 
   @Test
   public void testHasBearerPermissions_RegularUser() {
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
-
     assertFalse(
         shopService.hasBearerPermissions(shopItem.getId(), prostUser.getId(), 1, kioskUser.getId(),
             UserAccessRole.FSINFO));
@@ -164,8 +212,6 @@ public class ShopServiceTest {
 
   @Test
   public void testHasBearerPermissions_AdminUser() {
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
-
     assertTrue(
         shopService.hasBearerPermissions(shopItem.getId(), prostUser.getId(), 1, kioskUser.getId(),
             UserAccessRole.KAFFEEKASSE));
@@ -174,9 +220,8 @@ public class ShopServiceTest {
   @Test
   public void testConsume_FailedTransaction_ReturnsFalse() {
     ShopItem invalidItem = new ShopItem("invaliditem", "null", "Invalid", BigDecimal.valueOf(-1.0));
-    when(itemRepository.findById(invalidItem.getId())).thenReturn(Optional.of(invalidItem));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
+    stubItem(invalidItem);
+    stubUser(prostUser);
 
     boolean result = shopService.consume(invalidItem.getId(), prostUser.getId(), 1,
         prostUser.getId(), UserAccessRole.KAFFEEKASSE);
@@ -184,12 +229,28 @@ public class ShopServiceTest {
   }
 
   @Test
-  public void testConsume_DisabledBearer_ReturnsFalse() {
-    when(itemRepository.findById(shopItem.getId())).thenReturn(Optional.of(shopItem));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
-    when(userRepository.findById(kioskUser.getId())).thenReturn(Optional.of(kioskUser));
+  public void testConsume_FailedSave_ReleasesCooldown() {
+    TransactionEntry transaction = new TransactionEntry(null, prostUser.getId(), prostUser.getId(),
+        TransactionType.BUY, null, shopItem.getPrice());
+    stubItem(shopItem);
+    stubUser(prostUser);
+    when(transactionService.moneyTransfer(any(), anyString(), anyString(), any(),
+        any(TransactionType.class), any()))
+        .thenReturn(Optional.of(transaction));
+    when(historyRepository.saveAll(any())).thenThrow(new IllegalStateException("database down"));
+
+    assertThrows(IllegalStateException.class, () -> shopService.consume(shopItem.getId(),
+        prostUser.getId(), 1, prostUser.getId(), UserAccessRole.KAFFEEKASSE));
+    verify(rateLimiter).release(prostUser.getId(), UserAccessRole.KAFFEEKASSE);
+    assertFalse(shopService.hasBearerCooldown(prostUser.getId(), UserAccessRole.KAFFEEKASSE));
+  }
 
+  @Test
+  public void testConsume_DisabledBearer_ReturnsFalse() {
     kioskUser.setEnabled(false);
+    stubItem(shopItem);
+    stubUser(prostUser);
+    stubUser(kioskUser);
 
     boolean result = shopService.consume(shopItem.getId(), prostUser.getId(), 1, kioskUser.getId(),
         UserAccessRole.KAFFEEKASSE);
@@ -200,11 +261,10 @@ public class ShopServiceTest {
   public void testConsume_SuccessfulTransaction_ReturnsTrue() {
     TransactionEntry transaction = new TransactionEntry(null, prostUser.getId(), prostUser.getId(),
         TransactionType.BUY, null, shopItem.getPrice());
-    when(itemRepository.findById(shopItem.getId())).thenReturn(Optional.of(shopItem));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
+    stubItem(shopItem);
+    stubUser(prostUser);
     when(transactionService.moneyTransfer(any(), anyString(), anyString(), any(),
-        any(TransactionType.class)))
+        any(TransactionType.class), any()))
         .thenReturn(Optional.of(transaction));
 
     boolean result = shopService.consume(shopItem.getId(), prostUser.getId(), 1, prostUser.getId(),
@@ -212,24 +272,51 @@ public class ShopServiceTest {
     assertTrue(result);
   }
 
+  @Test
+  public void testConsume_RecordsTimerWithOutcome() {
+    TransactionEntry transaction = new TransactionEntry(null, prostUser.getId(), prostUser.getId(),
+        TransactionType.BUY, null, shopItem.getPrice());
+    stubItem(shopItem);
+    stubUser(prostUser);
+    when(transactionService.moneyTransfer(any(), anyString(), anyString(), any(),
+        any(TransactionType.class), any()))
+        .thenReturn(Optional.of(transaction));
+
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+    try {
+      shopService.consume(shopItem.getId(), prostUser.getId(), 1, prostUser.getId(),
+          UserAccessRole.KAFFEEKASSE);
+      shopService.consume(shopItem.getId(), prostUser.getId(), 0, prostUser.getId(),
+          UserAccessRole.KAFFEEKASSE);
+
+      Timer success = registry.find("prost.shop.consume").tag("outcome", "success").timer();
+      assertNotNull(success);
+      assertEquals(1, success.count());
+      Timer invalid = registry.find("prost.shop.consume").tag("outcome", "invalid_amount")
+          .timer();
+      assertNotNull(invalid);
+      assertEquals(1, invalid.count());
+    } finally {
+      Metrics.removeRegistry(registry);
+    }
+  }
+
   @Test
   public void testConsume_UnsuccessfulSecondTransactionWithoutPause_ReturnsFalse()
       throws InterruptedException {
-    shopService.buyCooldownTime = 10L;
-
     TransactionEntry transaction = new TransactionEntry(null, prostUser.getId(), prostUser.getId(),
         TransactionType.BUY, null, shopItem.getPrice());
-    when(itemRepository.findById(shopItem.getId())).thenReturn(Optional.of(shopItem));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
+    stubItem(shopItem);
+    stubUser(prostUser);
     when(transactionService.moneyTransfer(any(), anyString(), anyString(), any(),
-        any(TransactionType.class)))
+        any(TransactionType.class), any()))
         .thenReturn(Optional.of(transaction));
 
     boolean result = shopService.consume(shopItem.getId(), prostUser.getId(), 1, prostUser.getId(),
         UserAccessRole.KAFFEEKASSE);
     assertTrue(result);
-    assertTrue(shopService.hasBearerCooldown(prostUser.getId()));
+    assertTrue(shopService.hasBearerCooldown(prostUser.getId(), UserAccessRole.KAFFEEKASSE));
 
     // second buy
     TransactionEntry transaction2 = new TransactionEntry(null, prostUser.getId(), prostUser.getId(),
@@ -238,43 +325,106 @@ public class ShopServiceTest {
     boolean result2 = shopService.consume(shopItem.getId(), prostUser.getId(), 1,
         prostUser.getId(), UserAccessRole.KAFFEEKASSE);
     assertFalse(result2);
-    assertTrue(shopService.hasBearerCooldown(prostUser.getId()));
+    assertTrue(shopService.hasBearerCooldown(prostUser.getId(), UserAccessRole.KAFFEEKASSE));
   }
 
   @Test
   public void testConsume_SuccessfulSecondTransactionWithPause_ReturnsTrue()
       throws InterruptedException {
-    shopService.buyCooldownTime = 10L;
-
     TransactionEntry transaction = new TransactionEntry(null, prostUser.getId(), prostUser.getId(),
         TransactionType.BUY, null, shopItem.getPrice());
-    when(itemRepository.findById(shopItem.getId())).thenReturn(Optional.of(shopItem));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
-    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
+    stubItem(shopItem);
+    stubUser(prostUser);
     when(transactionService.moneyTransfer(any(), anyString(), anyString(), any(),
-        any(TransactionType.class)))
+        any(TransactionType.class), any()))
         .thenReturn(Optional.of(transaction));
 
     boolean result = shopService.consume(shopItem.getId(), prostUser.getId(), 1, prostUser.getId(),
         UserAccessRole.KAFFEEKASSE);
     long lastTransaction = Instant.now().toEpochMilli();
     assertTrue(result);
-    assertTrue(shopService.hasBearerCooldown(prostUser.getId()));
+    assertTrue(shopService.hasBearerCooldown(prostUser.getId(), UserAccessRole.KAFFEEKASSE));
 
-    Thread.sleep(shopService.buyCooldownTime + 1);
-    assertFalse(shopService.hasBearerCooldown(prostUser.getId()));
+    Thread.sleep(BUY_COOLDOWN + 1);
+    assertFalse(shopService.hasBearerCooldown(prostUser.getId(), UserAccessRole.KAFFEEKASSE));
 
     // second buy
     TransactionEntry transaction2 = new TransactionEntry(null, prostUser.getId(), prostUser.getId(),
         TransactionType.BUY, null, shopItem.getPrice());
     when(transactionService.moneyTransfer(any(), anyString(), anyString(), any(),
-        any(TransactionType.class)))
+        any(TransactionType.class), any()))
         .thenReturn(Optional.of(transaction2));
 
     boolean result2 = shopService.consume(shopItem.getId(), prostUser.getId(), 1,
         prostUser.getId(), UserAccessRole.KAFFEEKASSE);
     assertTrue(result2);
-    assertTrue(shopService.hasBearerCooldown(prostUser.getId()));
+    assertTrue(shopService.hasBearerCooldown(prostUser.getId(), UserAccessRole.KAFFEEKASSE));
+  }
+
+  @Test
+  public void testCheckout_OneTransactionForAllLines() {
+    ShopItem otherItem = new ShopItem("item2", "category1", "Item 2", new BigDecimal("6.50"));
+    TransactionEntry transaction = new TransactionEntry(null, prostUser.getId(), prostUser.getId(),
+        TransactionType.BUY, null, new BigDecimal("23.00"));
+    stubItem(shopItem);
+    stubItem(otherItem);
+    stubUser(prostUser);
+    when(transactionService.moneyTransfer(Optional.empty(), prostUser.getId(), prostUser.getId(),
+        new BigDecimal("23.00"), TransactionType.BUY, null)).thenReturn(Optional.of(transaction));
+
+    List<CheckoutLineDTO> lines = List.of(new CheckoutLineDTO(shopItem.getId(), 1),
+        new CheckoutLineDTO(otherItem.getId(), 2));
+
+    assertTrue(shopService.checkout(lines, prostUser.getId(), prostUser.getId(),
+        UserAccessRole.FSINFO));
+
+    ArgumentCaptor<MetricUpdateEvent> event = ArgumentCaptor.forClass(MetricUpdateEvent.class);
+    verify(eventPublisher).publishEvent(event.capture());
+    assertEquals(2, event.getValue().entries().size());
+    assertEquals(otherItem.getId(), event.getValue().entries().get(1).getItemId());
+    assertEquals(2, event.getValue().entries().get(1).getAmount());
+    verify(historyRepository).saveAll(event.getValue().entries());
+  }
+
+  @Test
+  public void testConsume_StoresIdempotencyKey() {
+    TransactionEntry transaction = new TransactionEntry(null, prostUser.getId(), prostUser.getId(),
+        TransactionType.BUY, null, shopItem.getPrice());
+    stubItem(shopItem);
+    stubUser(prostUser);
+    when(transactionService.moneyTransfer(Optional.empty(), prostUser.getId(), prostUser.getId(),
+        new BigDecimal("10.00"), TransactionType.BUY, "key-1"))
+        .thenReturn(Optional.of(transaction));
+
+    assertTrue(shopService.consume(shopItem.getId(), prostUser.getId(), 1, prostUser.getId(),
+        UserAccessRole.KAFFEEKASSE, "key-1"));
+  }
+
+  @Test
+  public void testCheckout_InvalidLines_ReturnsFalse() {
+    assertFalse(shopService.checkout(List.of(), prostUser.getId(), prostUser.getId(),
+        UserAccessRole.KAFFEEKASSE));
+    assertFalse(shopService.checkout(
+        List.of(new CheckoutLineDTO(shopItem.getId(), 1), new CheckoutLineDTO(shopItem.getId(), 0)),
+        prostUser.getId(), prostUser.getId(), UserAccessRole.KAFFEEKASSE));
+    // nothing was bought, so there is no cooldown
+    assertFalse(shopService.hasBearerCooldown(prostUser.getId(), UserAccessRole.KAFFEEKASSE));
+  }
+
+  @Test
+  public void testCheckout_OneDisabledItem_ReturnsFalse() {
+    ShopItem disabledItem = new ShopItem("item2", "category1", "Item 2", new BigDecimal("6.50"));
+    disabledItem.setEnabled(false);
+    stubItem(shopItem);
+    stubItem(disabledItem);
+    stubUser(prostUser);
+
+    List<CheckoutLineDTO> lines = List.of(new CheckoutLineDTO(shopItem.getId(), 1),
+        new CheckoutLineDTO(disabledItem.getId(), 1));
+
+    assertFalse(shopService.checkout(lines, prostUser.getId(), prostUser.getId(),
+        UserAccessRole.KAFFEEKASSE));
+    assertFalse(shopService.hasBearerCooldown(prostUser.getId(), UserAccessRole.KAFFEEKASSE));
   }
 
   @Test
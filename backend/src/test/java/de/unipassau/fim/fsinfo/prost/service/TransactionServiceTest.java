@@ -4,11 +4,15 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import de.unipassau.fim.fsinfo.prost.data.TransactionType;
 import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
 import de.unipassau.fim.fsinfo.prost.data.dao.TransactionEntry;
+import de.unipassau.fim.fsinfo.prost.data.dto.BalanceDTO;
+import de.unipassau.fim.fsinfo.prost.data.dto.UserStateDTO;
 import de.unipassau.fim.fsinfo.prost.data.repositories.TransactionRepository;
 import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
 import java.math.BigDecimal;
@@ -37,6 +41,12 @@ public class TransactionServiceTest {
   @Mock
   private TransactionRepository transactionRepository;
 
+  @Mock
+  private ShopEntityCache entityCache;
+
+  @Mock
+  private IdempotencyService idempotencyService;
+
   private ProstUser receiver;
   private ProstUser bearer;
   private TransactionEntry transactionEntry;
@@ -89,6 +99,9 @@ public class TransactionServiceTest {
 
   @Test
   public void testMoneyTransfer_Deposit_PositiveAmount() {
+    when(userRepository.addToBalance(receiver.getId(), new BigDecimal("10.00"),
+        BigDecimal.ZERO)).thenReturn(1);
+    stubBalance(new BigDecimal("10.00"));
     when(transactionRepository.save(any(TransactionEntry.class))).thenReturn(transactionEntry);
 
     Optional<TransactionEntry> result = transactionService.moneyTransfer(Optional.empty(),
@@ -98,11 +111,15 @@ public class TransactionServiceTest {
     assertTrue(result.isPresent());
     assertEquals(receiver.getId(), result.get().getReceiverId());
     assertEquals(TransactionType.DEPOSIT, result.get().getTransactionType());
+    assertEquals(new BigDecimal("0.00"), result.get().getPrevious());
   }
 
   @Test
   public void testMoneyTransfer_Buy_PositiveAmount() {
-    receiver.setBalance(new BigDecimal("20.00"));
+    when(userRepository.addToBalance(receiver.getId(), new BigDecimal("-10.00"),
+        new BigDecimal("10.00"))).thenReturn(1);
+    // the balance written by the update, the previous one is calculated from it
+    stubBalance(new BigDecimal("10.00"));
     when(transactionRepository.save(any(TransactionEntry.class))).thenReturn(transactionEntry);
 
     Optional<TransactionEntry> result = transactionService.moneyTransfer(Optional.of(receiver),
@@ -111,6 +128,19 @@ public class TransactionServiceTest {
     assertTrue(result.isPresent());
     assertEquals(receiver.getId(), result.get().getReceiverId());
     assertEquals(TransactionType.BUY, result.get().getTransactionType());
+    assertEquals(new BigDecimal("20.00"), result.get().getPrevious());
+  }
+
+  @Test
+  public void testMoneyTransfer_Buy_UnknownReceiver_ReturnsEmpty() {
+    when(userRepository.addToBalance(any(), any(), any())).thenReturn(0);
+
+    Optional<TransactionEntry> result = transactionService.moneyTransfer(Optional.of(receiver),
+        Optional.of(receiver), Optional.of(bearer), new BigDecimal("10.00"), TransactionType.BUY);
+
+    assertTrue(result.isEmpty());
+    verify(userRepository, never()).findBalanceById(any());
+    verify(transactionRepository, never()).save(any());
   }
 
   @Test
@@ -135,7 +165,14 @@ public class TransactionServiceTest {
 
   @Test
   public void testMoneyTransfer_Change_SetsBalance() {
-    receiver.setBalance(new BigDecimal("20.00"));
+    // the first update only locks the row before the balance is read
+    when(userRepository.addToBalance(receiver.getId(), BigDecimal.ZERO, BigDecimal.ZERO))
+        .thenReturn(1);
+    when(userRepository.findBalanceById(receiver.getId())).thenReturn(
+        Optional.of(new BalanceDTO(receiver.getId(), new BigDecimal("20.00"))),
+        Optional.of(new BalanceDTO(receiver.getId(), new BigDecimal("30.00"))));
+    when(userRepository.addToBalance(receiver.getId(), new BigDecimal("10.00"),
+        BigDecimal.ZERO)).thenReturn(1);
     when(transactionRepository.save(any(TransactionEntry.class))).thenReturn(transactionEntry);
 
     Optional<TransactionEntry> result = transactionService.moneyTransfer(Optional.of(receiver),
@@ -145,6 +182,35 @@ public class TransactionServiceTest {
     assertTrue(result.isPresent());
     assertEquals(receiver.getId(), result.get().getReceiverId());
     assertEquals(TransactionType.CHANGE, result.get().getTransactionType());
+    assertEquals(new BigDecimal("20.00"), result.get().getPrevious());
+  }
+
+  @Test
+  public void testMoneyTransfer_IdempotencyKey_IsStored() {
+    when(entityCache.findUser(receiver.getId())).thenReturn(
+        Optional.of(UserStateDTO.of(receiver)));
+    when(entityCache.findUser(bearer.getId())).thenReturn(Optional.of(UserStateDTO.of(bearer)));
+    when(userRepository.getReferenceById(receiver.getId())).thenReturn(receiver);
+    when(userRepository.getReferenceById(bearer.getId())).thenReturn(bearer);
+    when(userRepository.addToBalance(receiver.getId(), new BigDecimal("10.00"),
+        BigDecimal.ZERO)).thenReturn(1);
+    stubBalance(new BigDecimal("10.00"));
+    when(idempotencyService.getFingerprint("key-1")).thenReturn("fingerprint");
+
+    Optional<TransactionEntry> result = transactionService.moneyTransfer(Optional.empty(),
+        receiver.getId(), bearer.getId(), new BigDecimal("10.00"), TransactionType.DEPOSIT,
+        "key-1");
+
+    assertTrue(result.isPresent());
+    assertEquals("key-1", result.get().getIdempotencyKey());
+    assertEquals("fingerprint", result.get().getIdempotencyFingerprint());
+    verify(transactionRepository).save(result.get());
+    verify(idempotencyService).record(result.get());
+  }
+
+  private void stubBalance(BigDecimal balance) {
+    when(userRepository.findBalanceById(receiver.getId())).thenReturn(
+        Optional.of(new BalanceDTO(receiver.getId(), balance)));
   }
 
   @Test
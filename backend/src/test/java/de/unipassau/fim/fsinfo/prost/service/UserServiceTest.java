@@ -4,6 +4,9 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
@@ -224,6 +227,26 @@ class UserServiceTest {
     assertTrue(result);
   }
 
+  @Test
+  public void testSetHidden_Unchanged_MetricsNotUpdated() {
+    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
+    boolean result = userService.setHidden(prostUser.getId(), false);
+    assertTrue(result);
+    verify(metricService, never()).addToMetrics(any());
+    verify(metricService, never()).removeFromMetrics(any());
+  }
+
+  @Test
+  public void testSetHidden_Changed_MetricsUpdatedOnce() {
+    when(userRepository.findById(prostUser.getId())).thenReturn(Optional.of(prostUser));
+    assertTrue(userService.setHidden(prostUser.getId(), true));
+    assertTrue(userService.setHidden(prostUser.getId(), true));
+    verify(metricService, times(1)).removeFromMetrics(prostUser);
+
+    assertTrue(userService.setHidden(prostUser.getId(), false));
+    verify(metricService, times(1)).addToMetrics(prostUser);
+  }
+
   @Test
   public void testSetEnabled_UserNotFound_ReturnsFalse() {
     when(userRepository.findById(prostUser.getId())).thenReturn(Optional.empty());
@@ -0,0 +1,126 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+class MetricEntityResolverTest {
+
+  private MetricEntityResolver resolver;
+
+  @Mock
+  private UserRepository userRepository;
+
+  @Mock
+  private ShopItemRepository shopItemRepository;
+
+  private ProstUser user1;
+  private ProstUser user2;
+
+  @BeforeEach
+  void setUp() {
+    MockitoAnnotations.openMocks(this);
+    resolver = new MetricEntityResolver(userRepository, shopItemRepository);
+
+    user1 = new ProstUser("user1", "User One", "user1@test.com", true, false);
+    user2 = new ProstUser("user2", "User Two", "user2@test.com", true, false);
+    user1.setBalance(new BigDecimal("12.00"));
+    MetricEntityResolver.evictUser(user1.getId());
+    MetricEntityResolver.evictUser(user2.getId());
+  }
+
+  @Test
+  public void testFindUsers_LoadsAllWithOneQuery() {
+    when(userRepository.findAllById(any())).thenReturn(List.of(user1, user2));
+
+    Map<String, ProstUser> result = resolver.findUsers(List.of("user1", "user2", "unknown"));
+
+    assertEquals(2, result.size());
+    assertEquals("User One", result.get("user1").getDisplayName());
+    verify(userRepository, times(1)).findAllById(any());
+  }
+
+  @Test
+  public void testFindUsers_OnlyDisplayData() {
+    when(userRepository.findAllById(any())).thenReturn(List.of(user1));
+
+    ProstUser result = resolver.findUsers(List.of("user1")).get("user1");
+
+    assertNull(result.getEmail());
+    assertEquals(BigDecimal.ZERO, result.getBalance());
+  }
+
+  @Test
+  public void testFindUser_CachedUntilEvicted() {
+    when(userRepository.findAllById(any())).thenReturn(List.of(user1));
+
+    resolver.findUser("user1");
+    resolver.findUser("user1");
+    verify(userRepository, times(1)).findAllById(any());
+
+    MetricEntityResolver.evictUser("user1");
+    resolver.findUser("user1");
+    verify(userRepository, times(2)).findAllById(any());
+  }
+
+  @Test
+  public void testEvictUser_EvictedAgainAfterCompletion() {
+    when(userRepository.findAllById(any())).thenReturn(List.of(user1));
+
+    TransactionSynchronizationManager.initSynchronization();
+    try {
+      MetricEntityResolver.evictUser("user1");
+      // another transaction caches the old state before the change is committed
+      resolver.findUser("user1");
+      long version = MetricEntityResolver.getVersion();
+
+      TransactionSynchronizationManager.getSynchronizations().forEach(
+          sync -> sync.afterCompletion(TransactionSynchronization.STATUS_COMMITTED));
+      assertTrue(MetricEntityResolver.getVersion() > version);
+    } finally {
+      TransactionSynchronizationManager.clearSynchronization();
+    }
+
+    resolver.findUser("user1");
+    verify(userRepository, times(2)).findAllById(any());
+  }
+
+  @Test
+  public void testIsHidden_LoadedOnceAndUpdated() {
+    ProstUser hidden = new ProstUser("hidden", "Hidden", null, true, true);
+    when(userRepository.findByHidden(true)).thenReturn(List.of(hidden));
+
+    resolver.loadHiddenUsers();
+    assertTrue(resolver.isHidden("hidden"));
+    assertFalse(resolver.isHidden("user1"));
+
+    user1.setHidden(true);
+    MetricEntityResolver.updateHidden(user1);
+    hidden.setHidden(false);
+    MetricEntityResolver.updateHidden(hidden);
+    assertTrue(resolver.isHidden("user1"));
+    assertFalse(resolver.isHidden("hidden"));
+
+    MetricEntityResolver.removeHidden("user1");
+    assertFalse(resolver.isHidden("user1"));
+    verify(userRepository, times(1)).findByHidden(true);
+  }
+}
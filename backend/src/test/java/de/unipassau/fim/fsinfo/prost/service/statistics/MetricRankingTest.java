@@ -0,0 +1,96 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking.Position;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking.RankedValue;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking.Snapshot;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+public class MetricRankingTest {
+
+  @Test
+  public void testStream_OrderedByValueThenKey() {
+    MetricRanking<String> ranking = new MetricRanking<>();
+    ranking.update("b", 5);
+    ranking.update("c", 10);
+    ranking.update("a", 5);
+
+    assertEquals(List.of("c", "a", "b"), keys(ranking));
+  }
+
+  @Test
+  public void testUpdate_MovesKey() {
+    MetricRanking<String> ranking = new MetricRanking<>();
+    ranking.update("a", 1);
+    ranking.update("b", 2);
+    ranking.update("a", 3);
+
+    assertEquals(List.of("a", "b"), keys(ranking));
+    assertEquals(2, ranking.size());
+    assertEquals(Optional.of(3L), ranking.get("a"));
+  }
+
+  @Test
+  public void testRemove() {
+    MetricRanking<String> ranking = new MetricRanking<>();
+    ranking.update("a", 1);
+    ranking.update("b", 2);
+    ranking.remove("b");
+
+    assertEquals(List.of("a"), keys(ranking));
+    assertEquals(1, ranking.size());
+  }
+
+  @Test
+  public void testGetPosition() {
+    MetricRanking<String> ranking = new MetricRanking<>();
+    ranking.update("a", 1);
+    ranking.update("b", 3);
+    ranking.update("c", 2);
+
+    assertEquals(Optional.of(new Position(0, 3, 3)), ranking.getPosition("b"));
+    assertEquals(Optional.of(new Position(2, 1, 3)), ranking.getPosition("a"));
+    assertEquals(Optional.empty(), ranking.getPosition("d"));
+  }
+
+  @Test
+  public void testGetPosition_ManyKeys() {
+    MetricRanking<String> ranking = new MetricRanking<>();
+    for (int i = 0; i < 1000; i++) {
+      ranking.update("user" + i, i % 100);
+    }
+    for (int i = 0; i < 1000; i += 2) {
+      ranking.remove("user" + i);
+    }
+
+    List<String> keys = keys(ranking);
+    assertEquals(500, keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      assertEquals(i, ranking.getPosition(keys.get(i)).orElseThrow().position());
+      assertEquals(keys.get(i), ranking.getAt(i).orElseThrow().key());
+    }
+  }
+
+  @Test
+  public void testSnapshot_UnaffectedByLaterUpdates() {
+    MetricRanking<String> ranking = new MetricRanking<>();
+    ranking.update("a", 1);
+    ranking.update("b", 2);
+    Snapshot<String> snapshot = ranking.snapshot();
+
+    ranking.update("a", 3);
+    ranking.remove("b");
+    ranking.update("c", 4);
+
+    assertEquals(List.of("b", "a"), snapshot.stream().map(RankedValue::key).toList());
+    assertEquals(Optional.of(1L), snapshot.get("a"));
+    assertEquals(List.of("c", "a"), keys(ranking));
+  }
+
+  private static List<String> keys(MetricRanking<String> ranking) {
+    return ranking.stream().map(RankedValue::key).toList();
+  }
+}
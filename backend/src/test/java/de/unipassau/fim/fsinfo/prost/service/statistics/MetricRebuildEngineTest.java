@@ -0,0 +1,248 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import static de.unipassau.fim.fsinfo.prost.service.statistics.MetricTestShop.DAY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
+import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
+import de.unipassau.fim.fsinfo.prost.service.statistics.composite.HourlyActivityMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.composite.ItemPurchaseMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.item.ItemRevenueMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.item.TopSellingItemsMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.user.KioskBuyersMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.user.LoyalCustomerMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.user.LuxuryCustomerMetricCollector;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MetricRebuildEngineTest {
+
+  private MetricTestShop shop;
+  private MetricRebuildEngine engine;
+  private long now;
+
+  private ProstUser alice;
+  private ProstUser carol;
+  private ShopItem mate;
+  private ShopItemHistoryEntry aliceMate;
+  private ShopItemHistoryEntry bobMate;
+  private ShopItemHistoryEntry carolMate;
+
+  @BeforeEach
+  public void setUp() {
+    shop = new MetricTestShop();
+    now = Instant.now().toEpochMilli();
+
+    alice = shop.addUser("alice", false);
+    ProstUser bob = shop.addUser("bob", false);
+    carol = shop.addUser("carol", true);
+    ProstUser kiosk = shop.addUser("kiosk", false);
+    mate = shop.addItem("mate", "1.50");
+    ShopItem pizza = shop.addItem("pizza", "3.00");
+
+    aliceMate = shop.purchase(alice, alice, mate, 2, now);
+    shop.purchase(alice, kiosk, pizza, 1, now - 10 * DAY);
+    bobMate = shop.purchase(bob, bob, mate, 1, now - 40 * DAY);
+    carolMate = shop.purchase(carol, carol, mate, 1, now);
+
+    engine = shop.createCollectors();
+  }
+
+  @Test
+  public void testRebuild_UserMetrics() {
+    MetricRebuildEngine.RebuildResult result = shop.rebuild(engine);
+    assertTrue(result.rows() > 0);
+
+    LoyalCustomerMetricCollector loyal = shop.getCollector(LoyalCustomerMetricCollector.class);
+    assertEquals(new BigDecimal("1"), value(loyal, TimeSpan.WEEK, "alice"));
+    assertEquals(new BigDecimal("2"), value(loyal, TimeSpan.MONTH, "alice"));
+    assertEquals(new BigDecimal("0"), value(loyal, TimeSpan.MONTH, "bob"));
+    assertEquals(new BigDecimal("1"), value(loyal, TimeSpan.ALL_TIME, "bob"));
+    assertEquals(new BigDecimal("0"), value(loyal, TimeSpan.ALL_TIME, "kiosk"));
+    // hidden users are not part of the user metrics at all
+    assertNull(value(loyal, TimeSpan.ALL_TIME, "carol"));
+
+    // average price per bought item: (2 * 1.50 + 3.00) / 3
+    LuxuryCustomerMetricCollector luxury = shop.getCollector(LuxuryCustomerMetricCollector.class);
+    assertEquals(new BigDecimal("1.50"), value(luxury, TimeSpan.WEEK, "alice"));
+    assertEquals(new BigDecimal("2.00"), value(luxury, TimeSpan.ALL_TIME, "alice"));
+
+    KioskBuyersMetricCollector kioskBuyers = shop.getCollector(KioskBuyersMetricCollector.class);
+    assertEquals(new BigDecimal("0"), value(kioskBuyers, TimeSpan.WEEK, "alice"));
+    assertEquals(new BigDecimal("1"), value(kioskBuyers, TimeSpan.MONTH, "alice"));
+  }
+
+  @Test
+  public void testRebuild_ItemMetrics() {
+    shop.rebuild(engine);
+
+    // items also count the purchases of hidden users
+    TopSellingItemsMetricCollector topSelling =
+        shop.getCollector(TopSellingItemsMetricCollector.class);
+    assertEquals(new BigDecimal("3"), value(topSelling, TimeSpan.WEEK, "mate"));
+    assertEquals(new BigDecimal("4"), value(topSelling, TimeSpan.ALL_TIME, "mate"));
+    assertEquals(new BigDecimal("1"), value(topSelling, TimeSpan.MONTH, "pizza"));
+
+    ItemRevenueMetricCollector revenue = shop.getCollector(ItemRevenueMetricCollector.class);
+    assertEquals(new BigDecimal("6.00"), value(revenue, TimeSpan.ALL_TIME, "mate"));
+    assertEquals(new BigDecimal("3.00"), value(revenue, TimeSpan.YEAR, "pizza"));
+  }
+
+  @Test
+  public void testRebuild_CompositeMetrics() {
+    shop.rebuild(engine);
+
+    ItemPurchaseMetricCollector itemPurchases =
+        shop.getCollector(ItemPurchaseMetricCollector.class);
+    assertEquals(new BigDecimal("2"),
+        value(itemPurchases, TimeSpan.WEEK, itemPurchases.getKey(aliceMate)));
+    assertEquals(new BigDecimal("0"),
+        value(itemPurchases, TimeSpan.MONTH, itemPurchases.getKey(bobMate)));
+    assertEquals(new BigDecimal("1"),
+        value(itemPurchases, TimeSpan.ALL_TIME, itemPurchases.getKey(bobMate)));
+    assertNull(value(itemPurchases, TimeSpan.ALL_TIME, itemPurchases.getKey(carolMate)));
+
+    // both purchases of alice were made at the same hour of day, 10 days apart
+    HourlyActivityMetricCollector hourly = shop.getCollector(HourlyActivityMetricCollector.class);
+    assertEquals(new BigDecimal("1"), value(hourly, TimeSpan.WEEK, hourly.getKey(aliceMate)));
+    assertEquals(new BigDecimal("2"), value(hourly, TimeSpan.MONTH, hourly.getKey(aliceMate)));
+    assertNull(value(hourly, TimeSpan.ALL_TIME, hourly.getKey(carolMate)));
+  }
+
+  @Test
+  public void testRebuild_MatchesSingleEntries() throws IOException {
+    shop.rebuild(engine);
+
+    for (AbstractMetricCollector<?, ?> collector : AbstractMetricCollector.getAllCollectors()) {
+      Map<String, String> grouped = windows(collector);
+
+      CollectorAccumulator<?> accumulator = CollectorAccumulator.of(collector, now);
+      accumulator.seed(ProstUser.class, shop.getVisibleUsers());
+      accumulator.seed(ShopItem.class, shop.getItems());
+      shop.getHistory().forEach(accumulator::accumulate);
+      accumulator.publish();
+
+      assertEquals(grouped, windows(collector), collector.getClass().getSimpleName());
+    }
+  }
+
+  @Test
+  public void testRebuild_PurchaseDuringRebuild_IsKept() throws IOException {
+    // the purchase is applied to the previous values while the aggregates load
+    AtomicBoolean purchased = new AtomicBoolean();
+    shop.setBeforeQuery(() -> {
+      if (purchased.compareAndSet(false, true)) {
+        AbstractMetricCollector.addToAllCollectors(shop.purchase(alice, alice, mate, 5, now));
+      }
+    });
+    shop.rebuild(engine);
+
+    TopSellingItemsMetricCollector topSelling =
+        shop.getCollector(TopSellingItemsMetricCollector.class);
+    assertEquals(new BigDecimal("8"), value(topSelling, TimeSpan.WEEK, "mate"));
+    assertRebuilt();
+  }
+
+  @Test
+  public void testRebuild_QueuedEntries_CountedOnce() throws IOException {
+    // committed in a different order than their ids, both are still queued during the rebuild
+    ShopItemHistoryEntry first = shop.reserve(alice, alice, mate, 5, now);
+    ShopItemHistoryEntry second = shop.purchase(alice, alice, mate, 1, now);
+    shop.commit(first);
+    shop.rebuild(engine);
+
+    AbstractMetricCollector.addToAllCollectors(List.of(second, first));
+
+    TopSellingItemsMetricCollector topSelling =
+        shop.getCollector(TopSellingItemsMetricCollector.class);
+    assertEquals(new BigDecimal("9"), value(topSelling, TimeSpan.WEEK, "mate"));
+    assertRebuilt();
+  }
+
+  @Test
+  public void testRebuild_LateCommitWithLowerId_IsKept() throws IOException {
+    ShopItemHistoryEntry late = shop.reserve(alice, alice, mate, 5, now);
+    ShopItemHistoryEntry queued = shop.purchase(alice, alice, mate, 1, now);
+
+    // the entry with the lower id is committed and applied while the aggregates load
+    AtomicBoolean committed = new AtomicBoolean();
+    shop.setBeforeQuery(() -> {
+      if (committed.compareAndSet(false, true)) {
+        AbstractMetricCollector.addToAllCollectors(shop.commit(late));
+      }
+    });
+    shop.rebuild(engine);
+    AbstractMetricCollector.addToAllCollectors(queued);
+
+    TopSellingItemsMetricCollector topSelling =
+        shop.getCollector(TopSellingItemsMetricCollector.class);
+    assertEquals(new BigDecimal("9"), value(topSelling, TimeSpan.WEEK, "mate"));
+    assertRebuilt();
+  }
+
+  @Test
+  public void testAdd_HiddenUser_MatchesRebuild() throws IOException {
+    shop.rebuild(engine);
+    AbstractMetricCollector.addToAllCollectors(shop.purchase(carol, carol, mate, 5, now));
+
+    TopSellingItemsMetricCollector topSelling =
+        shop.getCollector(TopSellingItemsMetricCollector.class);
+    assertEquals(new BigDecimal("8"), value(topSelling, TimeSpan.WEEK, "mate"));
+    LoyalCustomerMetricCollector loyal = shop.getCollector(LoyalCustomerMetricCollector.class);
+    assertNull(value(loyal, TimeSpan.WEEK, "carol"));
+    assertRebuilt();
+  }
+
+  // the values are the same as those of a rebuild that saw every purchase from the start
+  private void assertRebuilt() throws IOException {
+    Map<String, Map<String, String>> current = new HashMap<>();
+    for (AbstractMetricCollector<?, ?> collector : AbstractMetricCollector.getAllCollectors()) {
+      current.put(collector.getClass().getSimpleName(), windows(collector));
+    }
+    shop.setBeforeQuery(() -> {
+    });
+    shop.rebuild(engine);
+    for (AbstractMetricCollector<?, ?> collector : AbstractMetricCollector.getAllCollectors()) {
+      assertEquals(windows(collector), current.get(collector.getClass().getSimpleName()),
+          collector.getClass().getSimpleName());
+    }
+  }
+
+  private static <K extends Comparable<K>> BigDecimal value(
+      AbstractMetricCollector<?, K> collector, TimeSpan timeSpan, K key) {
+    return collector.getValue(timeSpan, key).orElse(null);
+  }
+
+  // the written bytes of every window by the written key, plus what is kept outside the windows
+  private static <K extends Comparable<K>> Map<String, String> windows(
+      AbstractMetricCollector<?, K> collector) throws IOException {
+    Map<String, String> windows = new TreeMap<>();
+    for (Map.Entry<K, MetricWindow> entry : collector.metrics.getWindows().entrySet()) {
+      ByteArrayOutputStream key = new ByteArrayOutputStream();
+      collector.writeKey(new DataOutputStream(key), entry.getKey());
+      ByteArrayOutputStream window = new ByteArrayOutputStream();
+      entry.getValue().write(new DataOutputStream(window));
+      windows.put(HexFormat.of().formatHex(key.toByteArray()),
+          HexFormat.of().formatHex(window.toByteArray()));
+    }
+    ByteArrayOutputStream extra = new ByteArrayOutputStream();
+    collector.metrics.writeExtra(new DataOutputStream(extra));
+    windows.put("extra", HexFormat.of().formatHex(extra.toByteArray()));
+    return windows;
+  }
+}
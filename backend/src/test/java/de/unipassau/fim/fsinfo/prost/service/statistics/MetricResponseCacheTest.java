@@ -0,0 +1,66 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MetricResponseCacheTest {
+
+  private MetricResponseCache cache;
+  private AtomicInteger loads;
+
+  @BeforeEach
+  public void setUp() {
+    cache = new MetricResponseCache(new ObjectMapper());
+    loads = new AtomicInteger();
+  }
+
+  @Test
+  public void testGet_SameETag_LoadsOnce() throws Exception {
+    byte[] first = cache.get("key", "\"1\"", this::load).orElseThrow();
+    byte[] second = cache.get("key", "\"1\"", this::load).orElseThrow();
+
+    assertEquals(1, loads.get());
+    assertArrayEquals(new ObjectMapper().writeValueAsBytes(List.of(1, 2)), first);
+    assertArrayEquals(first, second);
+  }
+
+  @Test
+  public void testGet_NewETag_LoadsAgain() {
+    cache.get("key", "\"1\"", this::load);
+    cache.get("key", "\"2\"", this::load);
+    cache.get("other", "\"2\"", this::load);
+
+    assertEquals(3, loads.get());
+  }
+
+  @Test
+  public void testGet_InvalidRequest_NotCached() {
+    assertTrue(cache.get("key", "\"1\"", Optional::empty).isEmpty());
+    cache.get("key", "\"1\"", this::load);
+
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  public void testGetETag_ContainsInstanceId() {
+    new MetricTestShop().createCollectors();
+    AbstractMetricCollector<?, ?> collector = AbstractMetricCollector.getAllCollectors().get(0);
+
+    // the collector versions alone are the same after every restart
+    assertTrue(MetricResponseCache.getETag(collector)
+        .startsWith("\"" + MetricResponseCache.INSTANCE_ID + "-"));
+  }
+
+  private Optional<List<Integer>> load() {
+    loads.incrementAndGet();
+    return Optional.of(List.of(1, 2));
+  }
+}
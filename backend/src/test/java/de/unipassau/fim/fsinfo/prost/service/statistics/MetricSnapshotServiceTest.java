@@ -0,0 +1,68 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import static de.unipassau.fim.fsinfo.prost.service.statistics.MetricTestShop.DAY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
+import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
+import de.unipassau.fim.fsinfo.prost.service.statistics.item.TopSellingItemsMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.user.LoyalCustomerMetricCollector;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MetricSnapshotServiceTest {
+
+  private MetricTestShop shop;
+  private Path saveLocation;
+  private long now;
+
+  private ProstUser alice;
+  private ShopItem mate;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    shop = new MetricTestShop();
+    saveLocation = Files.createTempDirectory("prost-metrics");
+    now = Instant.now().toEpochMilli();
+
+    alice = shop.addUser("alice", false);
+    mate = shop.addItem("mate", "1.50");
+    shop.purchase(alice, alice, mate, 2, now - 3 * DAY);
+  }
+
+  @Test
+  public void testRestore_ReplaysEntriesMissingFromSnapshot() throws IOException {
+    MetricSnapshotService service = createService();
+    service.init();
+
+    // committed after the snapshot, although its id is lower than that of an applied entry
+    ShopItemHistoryEntry late = shop.reserve(alice, alice, mate, 5, now);
+    ShopItemHistoryEntry applied = shop.purchase(alice, alice, mate, 1, now);
+    AbstractMetricCollector.addToAllCollectors(applied);
+    service.save();
+    shop.commit(late);
+
+    // a restart creates new collectors, which load the snapshot
+    createService().init();
+
+    TopSellingItemsMetricCollector topSelling =
+        shop.getCollector(TopSellingItemsMetricCollector.class);
+    assertEquals(new BigDecimal("8"), topSelling.getValue(TimeSpan.ALL_TIME, "mate").orElse(null));
+    LoyalCustomerMetricCollector loyal = shop.getCollector(LoyalCustomerMetricCollector.class);
+    assertEquals(new BigDecimal("3"), loyal.getValue(TimeSpan.WEEK, "alice").orElse(null));
+  }
+
+  private MetricSnapshotService createService() throws IOException {
+    MetricRebuildEngine engine = shop.createCollectors();
+    return new MetricSnapshotService(saveLocation.toString(), 0, engine,
+        shop.getUserRepository(), shop.getItemRepository(),
+        AbstractMetricCollector.getAllCollectors(), null);
+  }
+}
@@ -0,0 +1,60 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
+import de.unipassau.fim.fsinfo.prost.data.dto.LeaderboardEntryDTO;
+import de.unipassau.fim.fsinfo.prost.data.dto.PurchaseEventDTO;
+import java.math.BigDecimal;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class MetricStreamServiceTest {
+
+  @Test
+  public void testChanges_FirstUpdateHasAllPlaces() {
+    List<LeaderboardEntryDTO> current = List.of(place(1, "a", 5), place(2, "b", 3));
+
+    assertEquals(current, MetricStreamService.changes(null, current));
+  }
+
+  @Test
+  public void testChanges_OnlyChangedPlaces() {
+    List<LeaderboardEntryDTO> previous = List.of(place(1, "a", 5), place(2, "b", 3),
+        place(3, "c", 2));
+    // b overtakes a, c keeps its place, d is new
+    List<LeaderboardEntryDTO> current = List.of(place(1, "b", 6), place(2, "a", 5),
+        place(3, "c", 2), place(4, "d", 1));
+
+    assertEquals(List.of(place(1, "b", 6), place(2, "a", 5), place(4, "d", 1)),
+        MetricStreamService.changes(previous, current));
+    assertEquals(List.of(), MetricStreamService.changes(current, current));
+  }
+
+  @Test
+  public void testToDTOs_OnlyDisplayData() {
+    MetricTestShop shop = new MetricTestShop();
+    ProstUser alice = shop.addUser("alice", false);
+    ShopItem mate = shop.addItem("mate", "1.50");
+    ShopItemHistoryEntry entry = shop.purchase(alice, alice, mate, 2, 1000L);
+    MetricEntityResolver.evictUser(alice.getId());
+    MetricEntityResolver.evictItem(mate.getId());
+
+    MetricStreamService streamService = new MetricStreamService(
+        new MetricEntityResolver(shop.getUserRepository(), shop.getItemRepository()), 1000, 1000,
+        1000, 1);
+    try {
+      // the transaction with the balance of the user is not sent
+      assertEquals(List.of(new PurchaseEventDTO("mate", "Item mate", "User alice", 2, 1000L)),
+          streamService.toDTOs(List.of(entry)));
+    } finally {
+      streamService.shutdown();
+    }
+  }
+
+  private static LeaderboardEntryDTO place(int position, String key, long value) {
+    return new LeaderboardEntryDTO(position, key, key, BigDecimal.valueOf(value));
+  }
+}
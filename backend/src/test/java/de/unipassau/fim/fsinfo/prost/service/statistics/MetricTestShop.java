@@ -0,0 +1,361 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import de.unipassau.fim.fsinfo.prost.data.TransactionType;
+import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItemHistoryEntry;
+import de.unipassau.fim.fsinfo.prost.data.dao.TransactionEntry;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.ItemAggregate;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.ItemUserAggregate;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.UserAggregate;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemHistoryRepository.UserHourAggregate;
+import de.unipassau.fim.fsinfo.prost.data.repositories.ShopItemRepository;
+import de.unipassau.fim.fsinfo.prost.data.repositories.UserRepository;
+import de.unipassau.fim.fsinfo.prost.service.statistics.composite.HourlyActivityMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.composite.ItemPurchaseMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.item.ItemRevenueMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.item.TopSellingItemsMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.user.KioskBuyersMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.user.LoyalCustomerMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.user.LuxuryCustomerMetricCollector;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * A small shop whose history lives in a list. The repositories answer the queries of the
+ * statistics engine from that list, grouped the same way as the database would, so the collectors
+ * can be rebuilt and updated without a database.
+ */
+public class MetricTestShop {
+
+  public static final long DAY = MetricWindow.BUCKET_MILLIS;
+
+  private final List<ProstUser> users = new ArrayList<>();
+  private final List<ShopItem> items = new ArrayList<>();
+  // rebuilds query it from their own threads
+  private final List<ShopItemHistoryEntry> history = new CopyOnWriteArrayList<>();
+  private long nextId = 1;
+
+  private final ShopItemHistoryRepository historyRepository;
+  private final UserRepository userRepository;
+  private final ShopItemRepository itemRepository;
+
+  // called before each query, e.g. to add a purchase while a rebuild is running
+  private Runnable beforeQuery = () -> {
+  };
+
+  public MetricTestShop() {
+    this.historyRepository = proxy(ShopItemHistoryRepository.class, (method, args) -> {
+      beforeQuery.run();
+      return switch (method) {
+        case "findByUserId" -> select(entry -> entry.getUserId().equals(args[0]));
+        case "findByItemId" -> select(entry -> entry.getItemId().equals(args[0]));
+        case "streamByTimestampGreaterThanEqual" ->
+            byId(entry -> entry.getTimestamp() >= (Long) args[0]).stream();
+        case "aggregateByUser" -> aggregateByUser((Long) args[0]);
+        case "aggregateByItem" -> aggregateByItem((Long) args[0]);
+        case "aggregateByItemAndUser" -> aggregateByItemAndUser((Long) args[0]);
+        case "aggregateByUserAndHour" -> aggregateByUserAndHour((Long) args[0]);
+        default -> throw new UnsupportedOperationException(method);
+      };
+    });
+    this.userRepository = proxy(UserRepository.class, (method, args) -> switch (method) {
+      case "findAll" -> List.copyOf(users);
+      case "findAllById" -> findAllById(users, ProstUser::getId, (Iterable<?>) args[0]);
+      case "findByHidden" -> users.stream().filter(user -> user.getHidden().equals(args[0]))
+          .toList();
+      default -> throw new UnsupportedOperationException(method);
+    });
+    this.itemRepository = proxy(ShopItemRepository.class, (method, args) -> switch (method) {
+      case "findAll" -> List.copyOf(items);
+      case "findAllById" -> findAllById(items, ShopItem::getId, (Iterable<?>) args[0]);
+      default -> throw new UnsupportedOperationException(method);
+    });
+  }
+
+  public ProstUser addUser(String id, boolean hidden) {
+    ProstUser user = new ProstUser(id, "User " + id, null, true, hidden);
+    users.add(user);
+    return user;
+  }
+
+  public ShopItem addItem(String id, String price) {
+    ShopItem item = new ShopItem(id, "category", "Item " + id, new BigDecimal(price));
+    item.setEnabled(true);
+    items.add(item);
+    return item;
+  }
+
+  /**
+   * Adds a purchase to the history, it is not applied to any collector.
+   */
+  public ShopItemHistoryEntry purchase(ProstUser user, ProstUser bearer, ShopItem item,
+      int amount, long timestamp) {
+    return commit(reserve(user, bearer, item, amount, timestamp));
+  }
+
+  /**
+   * Creates a purchase with the next id that is not part of the history yet, like a purchase
+   * whose transaction was not committed.
+   */
+  public synchronized ShopItemHistoryEntry reserve(ProstUser user, ProstUser bearer,
+      ShopItem item, int amount, long timestamp) {
+    TransactionEntry transaction = new TransactionEntry(null, user.getId(), bearer.getId(),
+        TransactionType.BUY, BigDecimal.ZERO, item.getPrice().multiply(BigDecimal.valueOf(amount)));
+    ShopItemHistoryEntry entry = new ShopItemHistoryEntry(transaction, item.getId(),
+        item.getPrice(), amount);
+    entry.setId(nextId++);
+    entry.setTimestamp(timestamp);
+    return entry;
+  }
+
+  public ShopItemHistoryEntry commit(ShopItemHistoryEntry entry) {
+    history.add(entry);
+    return entry;
+  }
+
+  /**
+   * Creates all collectors of the application on top of this shop, replacing the ones created
+   * before.
+   */
+  public MetricRebuildEngine createCollectors() {
+    AbstractMetricCollector.clear();
+    MetricEntityResolver entityResolver = new MetricEntityResolver(userRepository, itemRepository);
+    entityResolver.loadHiddenUsers();
+    users.forEach(user -> MetricEntityResolver.evictUser(user.getId()));
+    items.forEach(item -> MetricEntityResolver.evictItem(item.getId()));
+
+    new LoyalCustomerMetricCollector(historyRepository, entityResolver);
+    new LuxuryCustomerMetricCollector(historyRepository, entityResolver);
+    new KioskBuyersMetricCollector(historyRepository, entityResolver);
+    new TopSellingItemsMetricCollector(historyRepository, entityResolver);
+    new ItemRevenueMetricCollector(historyRepository, entityResolver);
+    new ItemPurchaseMetricCollector(historyRepository, entityResolver);
+    new HourlyActivityMetricCollector(historyRepository, entityResolver).init();
+    return new MetricRebuildEngine(historyRepository, 2);
+  }
+
+  public MetricRebuildEngine.RebuildResult rebuild(MetricRebuildEngine engine) {
+    return engine.rebuild(getVisibleUsers(), items);
+  }
+
+  public List<ProstUser> getVisibleUsers() {
+    return users.stream().filter(user -> !user.getHidden()).toList();
+  }
+
+  public List<ShopItem> getItems() {
+    return items;
+  }
+
+  public <C extends AbstractMetricCollector<?, ?>> C getCollector(Class<C> type) {
+    return type.cast(AbstractMetricCollector.getAllCollectors().stream().filter(type::isInstance)
+        .findFirst().orElseThrow());
+  }
+
+  public void setBeforeQuery(Runnable beforeQuery) {
+    this.beforeQuery = beforeQuery;
+  }
+
+  public ShopItemHistoryRepository getHistoryRepository() {
+    return historyRepository;
+  }
+
+  public UserRepository getUserRepository() {
+    return userRepository;
+  }
+
+  public ShopItemRepository getItemRepository() {
+    return itemRepository;
+  }
+
+  public List<ShopItemHistoryEntry> getHistory() {
+    return history;
+  }
+
+  private List<ShopItemHistoryEntry> select(Predicate<ShopItemHistoryEntry> predicate) {
+    return history.stream().filter(predicate).toList();
+  }
+
+  // same bound as the :before parameter of the aggregate queries
+  private List<ShopItemHistoryEntry> settled(long before) {
+    return select(entry -> entry.getTimestamp() < before);
+  }
+
+  // purchases may be committed out of id order, streams are ordered by id like the queries
+  private List<ShopItemHistoryEntry> byId(Predicate<ShopItemHistoryEntry> predicate) {
+    return history.stream().filter(predicate)
+        .sorted(Comparator.comparing(ShopItemHistoryEntry::getId)).toList();
+  }
+
+  // same grouping as the AGGREGATE_DAY expression of the repository
+  private static long day(ShopItemHistoryEntry entry) {
+    return Math.floorDiv(entry.getTimestamp(), DAY);
+  }
+
+  private static BigDecimal revenue(ShopItemHistoryEntry entry) {
+    return entry.getItemPrice().multiply(BigDecimal.valueOf(entry.getAmount()));
+  }
+
+  private List<UserAggregate> aggregateByUser(long before) {
+    Map<List<Object>, List<ShopItemHistoryEntry>> groups = settled(before)
+        .stream()
+        .collect(Collectors.groupingBy(entry -> List.of(entry.getUserId(), day(entry))));
+    List<UserAggregate> rows = new ArrayList<>();
+    groups.forEach((key, entries) -> rows.add(new UserRow((String) key.get(0), (Long) key.get(1),
+        (long) entries.size(),
+        entries.stream().filter(e -> !e.getTransaction().getBearerId().equals(e.getUserId()))
+            .count(),
+        entries.stream().mapToLong(ShopItemHistoryEntry::getAmount).sum(),
+        entries.stream().map(MetricTestShop::revenue).reduce(BigDecimal.ZERO, BigDecimal::add))));
+    return rows;
+  }
+
+  private List<ItemAggregate> aggregateByItem(long before) {
+    Map<List<Object>, List<ShopItemHistoryEntry>> groups = settled(before)
+        .stream()
+        .collect(Collectors.groupingBy(entry -> List.of(entry.getItemId(), day(entry))));
+    List<ItemAggregate> rows = new ArrayList<>();
+    groups.forEach((key, entries) -> rows.add(new ItemRow((String) key.get(0), (Long) key.get(1),
+        entries.stream().mapToLong(ShopItemHistoryEntry::getAmount).sum(),
+        entries.stream().map(MetricTestShop::revenue).reduce(BigDecimal.ZERO, BigDecimal::add))));
+    return rows;
+  }
+
+  private List<ItemUserAggregate> aggregateByItemAndUser(long before) {
+    Map<List<Object>, Long> groups = settled(before).stream()
+        .collect(Collectors.groupingBy(
+            entry -> List.of(entry.getItemId(), entry.getUserId(), day(entry)),
+            Collectors.summingLong(ShopItemHistoryEntry::getAmount)));
+    List<ItemUserAggregate> rows = new ArrayList<>();
+    groups.forEach((key, amount) -> rows.add(new ItemUserRow((String) key.get(0),
+        (String) key.get(1), (Long) key.get(2), amount)));
+    return rows;
+  }
+
+  private List<UserHourAggregate> aggregateByUserAndHour(long before) {
+    Map<List<Object>, Long> groups = settled(before).stream()
+        .collect(Collectors.groupingBy(entry -> List.of(entry.getUserId(),
+                Math.floorDiv(entry.getTimestamp(), 3600000L)),
+            Collectors.counting()));
+    List<UserHourAggregate> rows = new ArrayList<>();
+    groups.forEach((key, purchases) -> rows.add(new UserHourRow((String) key.get(0),
+        (Long) key.get(1), purchases)));
+    return rows;
+  }
+
+  private static <T> List<T> findAllById(List<T> entities, Function<T, String> idOf,
+      Iterable<?> ids) {
+    List<Object> wanted = new ArrayList<>();
+    ids.forEach(wanted::add);
+    return entities.stream().filter(entity -> wanted.contains(idOf.apply(entity))).toList();
+  }
+
+  private interface Query {
+
+    Object answer(String method, Object[] args);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <R> R proxy(Class<R> repository, Query query) {
+    return (R) Proxy.newProxyInstance(repository.getClassLoader(), new Class<?>[]{repository},
+        (proxy, method, args) -> switch (method.getName()) {
+          case "toString" -> "In-memory " + repository.getSimpleName();
+          case "hashCode" -> System.identityHashCode(proxy);
+          case "equals" -> proxy == args[0];
+          default -> query.answer(method.getName(), args);
+        });
+  }
+
+  private record UserRow(String userId, Long day, Long purchases, Long purchasesByOthers,
+                         Long amount, BigDecimal revenue) implements UserAggregate {
+
+    public String getUserId() {
+      return userId;
+    }
+
+    public Long getDay() {
+      return day;
+    }
+
+    public Long getPurchases() {
+      return purchases;
+    }
+
+    public Long getPurchasesByOthers() {
+      return purchasesByOthers;
+    }
+
+    public Long getAmount() {
+      return amount;
+    }
+
+    public BigDecimal getRevenue() {
+      return revenue;
+    }
+  }
+
+  private record ItemRow(String itemId, Long day, Long amount, BigDecimal revenue) implements
+      ItemAggregate {
+
+    public String getItemId() {
+      return itemId;
+    }
+
+    public Long getDay() {
+      return day;
+    }
+
+    public Long getAmount() {
+      return amount;
+    }
+
+    public BigDecimal getRevenue() {
+      return revenue;
+    }
+  }
+
+  private record ItemUserRow(String itemId, String userId, Long day, Long amount) implements
+      ItemUserAggregate {
+
+    public String getItemId() {
+      return itemId;
+    }
+
+    public String getUserId() {
+      return userId;
+    }
+
+    public Long getDay() {
+      return day;
+    }
+
+    public Long getAmount() {
+      return amount;
+    }
+  }
+
+  private record UserHourRow(String userId, Long hour, Long purchases) implements
+      UserHourAggregate {
+
+    public String getUserId() {
+      return userId;
+    }
+
+    public Long getHour() {
+      return hour;
+    }
+
+    public Long getPurchases() {
+      return purchases;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+
+public class MetricWindowTest {
+
+  private static final long DAY = MetricWindow.BUCKET_MILLIS;
+  private static final long TODAY = 20000;
+
+  @Test
+  public void testAdd_RecentValueCountsInAllWindows() {
+    MetricWindow window = new MetricWindow(1, TODAY);
+    window.add(TODAY * DAY, 0, 10);
+
+    assertEquals(10, window.get(TimeSpan.WEEK)[0]);
+    assertEquals(10, window.get(TimeSpan.MONTH)[0]);
+    assertEquals(10, window.get(TimeSpan.ALL_TIME)[0]);
+  }
+
+  @Test
+  public void testAdd_OldValueOnlyCountsAllTime() {
+    MetricWindow window = new MetricWindow(1, TODAY);
+    window.add((TODAY - 10) * DAY, 0, 1);
+    window.add((TODAY - 40) * DAY, 0, 10);
+
+    assertEquals(0, window.get(TimeSpan.WEEK)[0]);
+    assertEquals(1, window.get(TimeSpan.MONTH)[0]);
+    assertEquals(11, window.get(TimeSpan.ALL_TIME)[0]);
+  }
+
+  @Test
+  public void testAdvance_ExpiresValues() {
+    MetricWindow window = new MetricWindow(1, TODAY);
+    window.add(TODAY * DAY, 0, 10);
+
+    window.advance(TODAY + MetricWindow.WEEK_BUCKETS);
+    assertEquals(0, window.get(TimeSpan.WEEK)[0]);
+    assertEquals(10, window.get(TimeSpan.MONTH)[0]);
+
+    window.advance(TODAY + MetricWindow.MONTH_BUCKETS);
+    assertEquals(0, window.get(TimeSpan.MONTH)[0]);
+    assertEquals(10, window.get(TimeSpan.ALL_TIME)[0]);
+  }
+
+  @Test
+  public void testAdvance_LargeJumpResetsWindows() {
+    MetricWindow window = new MetricWindow(1, TODAY);
+    window.add(TODAY * DAY, 0, 10);
+    window.advance(TODAY + 365);
+
+    assertEquals(0, window.get(TimeSpan.WEEK)[0]);
+    assertEquals(0, window.get(TimeSpan.MONTH)[0]);
+    assertEquals(10, window.get(TimeSpan.ALL_TIME)[0]);
+  }
+
+  @Test
+  public void testGet_YearAndRange() {
+    MetricWindow window = new MetricWindow(1, TODAY);
+    window.add(TODAY * DAY, 0, 1);
+    window.add((TODAY - 100) * DAY, 0, 10);
+    window.add((TODAY - 400) * DAY, 0, 100);
+
+    assertEquals(11, window.get(TimeSpan.YEAR)[0]);
+    assertEquals(10, window.get(TODAY - 100, TODAY - 100)[0]);
+    assertEquals(110, window.get(TODAY - 400, TODAY - 1)[0]);
+    assertEquals(0, window.get(TODAY - 99, TODAY - 1)[0]);
+    assertEquals(0, window.get(TODAY, TODAY - 1)[0]);
+  }
+
+  @Test
+  public void testAdd_DaysOutOfOrder() {
+    MetricWindow window = new MetricWindow(2, TODAY);
+    window.add((TODAY - 5) * DAY, 0, 1);
+    assertEquals(1, window.get(TimeSpan.WEEK)[0]);
+
+    window.add((TODAY - 20) * DAY, 1, 2);
+    window.add((TODAY - 5) * DAY, 0, 4);
+    window.add((TODAY - 10) * DAY, 0, 8);
+    window.add((TODAY - 20) * DAY, 0, 16);
+
+    assertArrayEquals(new long[]{5, 0}, window.get(TimeSpan.WEEK));
+    assertArrayEquals(new long[]{29, 2}, window.get(TimeSpan.MONTH));
+    assertArrayEquals(new long[]{24, 2}, window.get(TODAY - 20, TODAY - 10));
+
+    window.add(TODAY * DAY, 1, 32);
+    assertArrayEquals(new long[]{29, 34}, window.get(TimeSpan.ALL_TIME));
+  }
+
+  @Test
+  public void testWriteRead_KeepsAllWindows() throws IOException {
+    MetricWindow window = new MetricWindow(2, TODAY);
+    window.add(TODAY * DAY, 0, 10);
+    window.add((TODAY - 10) * DAY, 1, 3);
+    window.add((TODAY - 40) * DAY, 0, 7);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    window.write(new DataOutputStream(bytes));
+    MetricWindow read = MetricWindow.read(
+        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 2);
+
+    for (TimeSpan timeSpan : MetricWindow.TIME_SPANS) {
+      assertArrayEquals(window.get(timeSpan), read.get(timeSpan));
+    }
+
+    read.advance(TODAY + 25);
+    assertArrayEquals(new long[]{10, 0}, read.get(TimeSpan.MONTH));
+  }
+}
@@ -0,0 +1,32 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics.composite;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class CompositeKeyTest {
+
+  @Test
+  public void testPack_KeepsBothParts() {
+    long key = CompositeKey.pack(Integer.MAX_VALUE, -1);
+    assertEquals(Integer.MAX_VALUE, CompositeKey.first(key));
+    assertEquals(-1, CompositeKey.second(key));
+
+    key = CompositeKey.pack(7, 23);
+    assertEquals(7, CompositeKey.first(key));
+    assertEquals(23, CompositeKey.second(key));
+  }
+
+  @Test
+  public void testIntern_IdsWithSeparators() {
+    // "a-b" + "c" and "a" + "b-c" were the same key when the ids were joined with "-"
+    long first = CompositeKey.pack(CompositeKey.intern("a-b"), CompositeKey.intern("c"));
+    long second = CompositeKey.pack(CompositeKey.intern("a"), CompositeKey.intern("b-c"));
+    assertNotEquals(first, second);
+
+    assertEquals("a-b", CompositeKey.lookup(CompositeKey.first(first)));
+    assertEquals("b-c", CompositeKey.lookup(CompositeKey.second(second)));
+    assertEquals(CompositeKey.intern("a-b"), CompositeKey.first(first));
+  }
+}
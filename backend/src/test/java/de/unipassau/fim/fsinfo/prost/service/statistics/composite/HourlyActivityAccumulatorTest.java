@@ -0,0 +1,107 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics.composite;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRanking.RankedValue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+
+public class HourlyActivityAccumulatorTest {
+
+  private static final ZoneId BERLIN = ZoneId.of("Europe/Berlin");
+  private static final long NOW = Instant.parse("2024-07-20T12:00:00Z").toEpochMilli();
+  // 12:00 UTC is 13:00 in Berlin during winter and 14:00 during summer
+  private static final long WINTER = hour("2024-01-15T12:00:00Z");
+  private static final long SUMMER = hour("2024-07-15T12:00:00Z");
+
+  private static long hour(String instant) {
+    return HourlyActivityAccumulator.toHour(Instant.parse(instant).toEpochMilli());
+  }
+
+  private static Optional<Long> get(HourlyActivityAccumulator accumulator, TimeSpan timeSpan,
+      ZoneId zone, String userId, int hourOfDay) {
+    MetricRanking<Long> ranking = accumulator.getRanking(timeSpan, zone, NOW).orElseThrow();
+    return ranking.get(HourlyActivityAccumulator.key(CompositeKey.intern(userId), hourOfDay));
+  }
+
+  @Test
+  public void testGetRanking_UsesOffsetOfPurchase() {
+    HourlyActivityAccumulator accumulator = new HourlyActivityAccumulator(NOW);
+    accumulator.add("user", WINTER, 1);
+    accumulator.add("user", SUMMER, 2);
+
+    assertEquals(Optional.of(1L), get(accumulator, TimeSpan.ALL_TIME, BERLIN, "user", 13));
+    assertEquals(Optional.of(2L), get(accumulator, TimeSpan.ALL_TIME, BERLIN, "user", 14));
+    assertEquals(Optional.of(2L), get(accumulator, TimeSpan.WEEK, BERLIN, "user", 14));
+    assertTrue(get(accumulator, TimeSpan.WEEK, BERLIN, "user", 13).isEmpty());
+  }
+
+  @Test
+  public void testGetRanking_AnyZoneWithoutRebuild() {
+    HourlyActivityAccumulator accumulator = new HourlyActivityAccumulator(NOW);
+    accumulator.add("user", WINTER, 1);
+    accumulator.add("user", SUMMER, 2);
+
+    assertEquals(Optional.of(3L), get(accumulator, TimeSpan.ALL_TIME, ZoneOffset.UTC, "user", 12));
+    assertEquals(Optional.of(2L),
+        get(accumulator, TimeSpan.ALL_TIME, ZoneId.of("America/New_York"), "user", 8));
+  }
+
+  @Test
+  public void testAdd_UpdatesExistingRankings() {
+    HourlyActivityAccumulator accumulator = new HourlyActivityAccumulator(NOW);
+    accumulator.add("user", SUMMER, 1);
+    assertEquals(Optional.of(1L), get(accumulator, TimeSpan.MONTH, BERLIN, "user", 14));
+
+    accumulator.add("user", SUMMER, 1);
+    accumulator.add("other", WINTER, 1);
+    assertEquals(Optional.of(2L), get(accumulator, TimeSpan.MONTH, BERLIN, "user", 14));
+    assertTrue(get(accumulator, TimeSpan.MONTH, BERLIN, "other", 13).isEmpty());
+    assertEquals(Optional.of(1L), get(accumulator, TimeSpan.ALL_TIME, BERLIN, "other", 13));
+
+    accumulator.removeUser("user");
+    assertTrue(get(accumulator, TimeSpan.MONTH, BERLIN, "user", 14).isEmpty());
+  }
+
+  @Test
+  public void testRank_OnlyHoursInRange() {
+    HourlyActivityAccumulator accumulator = new HourlyActivityAccumulator(NOW);
+    accumulator.add("user", WINTER, 1);
+    accumulator.add("user", SUMMER, 2);
+    accumulator.add("other", SUMMER + 1, 3);
+
+    List<RankedValue<Long>> ranked = accumulator.rank(SUMMER, SUMMER + 24, BERLIN);
+    assertEquals(List.of(
+            new RankedValue<>(3, HourlyActivityAccumulator.key(CompositeKey.intern("other"), 15)),
+            new RankedValue<>(2, HourlyActivityAccumulator.key(CompositeKey.intern("user"), 14))),
+        ranked);
+    assertTrue(accumulator.rank(SUMMER + 2, SUMMER + 24, BERLIN).isEmpty());
+  }
+
+  @Test
+  public void testWriteRead_KeepsCounters() throws IOException {
+    HourlyActivityAccumulator accumulator = new HourlyActivityAccumulator(NOW);
+    accumulator.add("user", SUMMER, 2);
+    accumulator.add("user", WINTER, 1);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    accumulator.writeExtra(new DataOutputStream(bytes));
+    HourlyActivityAccumulator restored = new HourlyActivityAccumulator(NOW);
+    restored.readExtra(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+    assertEquals(Optional.of(1L), get(restored, TimeSpan.ALL_TIME, BERLIN, "user", 13));
+    assertEquals(Optional.of(2L), get(restored, TimeSpan.ALL_TIME, BERLIN, "user", 14));
+  }
+}
@@ -0,0 +1,91 @@
+package de.unipassau.fim.fsinfo.prost.service.statistics.user;
+
+import static de.unipassau.fim.fsinfo.prost.service.statistics.MetricTestShop.DAY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import de.unipassau.fim.fsinfo.prost.data.dao.ProstUser;
+import de.unipassau.fim.fsinfo.prost.data.dao.ShopItem;
+import de.unipassau.fim.fsinfo.prost.data.dto.MetricPositionDTO;
+import de.unipassau.fim.fsinfo.prost.data.metrics.TimeSpan;
+import de.unipassau.fim.fsinfo.prost.data.metrics.UserMetricType;
+import de.unipassau.fim.fsinfo.prost.service.statistics.AbstractMetricCollector;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricRebuildEngine;
+import de.unipassau.fim.fsinfo.prost.service.statistics.MetricTestShop;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class AbstractUserMetricCollectorTest {
+
+  private MetricTestShop shop;
+  private MetricRebuildEngine engine;
+  private long now;
+
+  private ProstUser alice;
+  private ProstUser bob;
+  private ProstUser kiosk;
+  private ShopItem mate;
+  private ShopItem pizza;
+
+  @BeforeEach
+  public void setUp() {
+    shop = new MetricTestShop();
+    now = Instant.now().toEpochMilli();
+
+    alice = shop.addUser("alice", false);
+    bob = shop.addUser("bob", false);
+    kiosk = shop.addUser("kiosk", false);
+    mate = shop.addItem("mate", "1.50");
+    pizza = shop.addItem("pizza", "3.00");
+
+    shop.purchase(alice, alice, mate, 2, now - DAY);
+    shop.purchase(alice, kiosk, pizza, 1, now - 20 * DAY);
+    shop.purchase(bob, bob, mate, 3, now - 100 * DAY);
+
+    engine = shop.createCollectors();
+    shop.rebuild(engine);
+  }
+
+  @Test
+  public void testAdd_MatchesRecalculation() {
+    Map<String, BigDecimal> before = values();
+
+    AbstractMetricCollector.addToAllCollectors(shop.purchase(alice, kiosk, pizza, 2, now));
+    AbstractMetricCollector.addToAllCollectors(shop.purchase(bob, bob, mate, 1, now - 3 * DAY));
+    Map<String, BigDecimal> added = values();
+    assertNotEquals(before, added);
+
+    shop.rebuild(engine);
+    assertEquals(values(), added);
+  }
+
+  @Test
+  public void testUpdateEntry_RemovedUser_MatchesRecalculation() {
+    Map<String, BigDecimal> rebuilt = values();
+
+    AbstractMetricCollector.removeAllEntriesFor(ProstUser.class, alice);
+    assertNotEquals(rebuilt, values());
+    AbstractMetricCollector.updateAllEntriesFor(ProstUser.class, alice);
+
+    assertEquals(rebuilt, values());
+  }
+
+  // the value of every user metric, time span and user
+  private Map<String, BigDecimal> values() {
+    Map<String, BigDecimal> values = new HashMap<>();
+    for (UserMetricType type : UserMetricType.values()) {
+      for (TimeSpan timeSpan : TimeSpan.values()) {
+        for (ProstUser user : new ProstUser[]{alice, bob, kiosk}) {
+          AbstractUserMetricCollector.getPosition(type, timeSpan, user.getId())
+              .map(MetricPositionDTO::value)
+              .ifPresent(value -> values.put(type + "/" + timeSpan + "/" + user.getId(), value));
+        }
+      }
+    }
+    return values;
+  }
+}
@@ -1,6 +1,7 @@
 import { useEffect, useState } from "react";
 import { UserMetricEntry, TimeSpan, UserMetricType } from "../../Types/Statistics";
-import { getUserMetric } from "../../Queries";
+import { getOwnUserMetricPosition, getUserMetric } from "../../Queries";
+import { getAuthorizedUser } from "../../SessionInfo";
 import { User } from "../../Types/User";
 import { formatMoney } from "../../Format";
 
@@ -17,6 +18,14 @@ export function UserMetricPlacement(props: {
   const [position, setPosition] = useState<number>();
 
   useEffect(() => {
+    // the own place is looked up directly, without loading the whole leaderboard
+    if (user.id == getAuthorizedUser()?.id) {
+      getOwnUserMetricPosition(type, timeSpan).then((p) => {
+        setStats(p ? { key: p.key, entity: user, value: p.value } : undefined);
+        setPosition(p ? p.position - 1 : undefined);
+      });
+      return;
+    }
     getUserMetric(type, timeSpan).then((l) => {
       if (l) {
         l.map((a, index) => {
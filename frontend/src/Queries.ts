@@ -10,6 +10,7 @@ import {
   CompositeMetricType as CompositeMetricType,
   ItemMetricEntry as ItemMetricEntry,
   ItemMetricType as ItemMetricType,
+  MetricPosition,
   TimeSpan,
   UserMetricEntry as UserMetricEntry,
   UserMetricType as UserMetricType
@@ -539,9 +540,13 @@ export async function mailInvoices(ids: number[]): Promise<number[] | undefined>
   }
 }
 
-export async function getUserMetric(type: UserMetricType, timeSpan: TimeSpan): Promise<UserMetricEntry[] | undefined> {
+function pageParams(limit?: number, offset?: number): string {
+  return (limit !== undefined ? `&limit=${limit}` : "") + (offset !== undefined ? `&offset=${offset}` : "");
+}
+
+export async function getUserMetric(type: UserMetricType, timeSpan: TimeSpan, limit?: number, offset?: number): Promise<UserMetricEntry[] | undefined> {
   try {
-    const response = await fetch(`${apiUrl}/api/statistics/metric/user?type=${type.toString()}&timespan=${timeSpan.toString()}`, {
+    const response = await fetch(`${apiUrl}/api/statistics/metric/user?type=${type.toString()}&timespan=${timeSpan.toString()}${pageParams(limit, offset)}`, {
       method: "GET",
       headers: {
         Authorization: `Basic ${getEncodedCredentials()}`,
@@ -559,9 +564,29 @@ export async function getUserMetric(type: UserMetricType, timeSpan: TimeSpan): P
   }
 }
 
-export async function getItemMetric(type: ItemMetricType, timeSpan: TimeSpan): Promise<ItemMetricEntry[] | undefined> {
+export async function getOwnUserMetricPosition(type: UserMetricType, timeSpan: TimeSpan): Promise<MetricPosition | undefined> {
+  try {
+    const response = await fetch(`${apiUrl}/api/statistics/metric/user/me?type=${type.toString()}&timespan=${timeSpan.toString()}`, {
+      method: "GET",
+      headers: {
+        Authorization: `Basic ${getEncodedCredentials()}`,
+        "Content-Type": "application/json",
+      },
+    });
+
+    if (!response.ok) {
+      return undefined;
+    }
+
+    return (await response.json()) as MetricPosition;
+  } catch (error) {
+    return undefined;
+  }
+}
+
+export async function getItemMetric(type: ItemMetricType, timeSpan: TimeSpan, limit?: number, offset?: number): Promise<ItemMetricEntry[] | undefined> {
   try {
-    const response = await fetch(`${apiUrl}/api/statistics/metric/item?type=${type.toString()}&timespan=${timeSpan.toString()}`, {
+    const response = await fetch(`${apiUrl}/api/statistics/metric/item?type=${type.toString()}&timespan=${timeSpan.toString()}${pageParams(limit, offset)}`, {
       method: "GET",
       headers: {
         Authorization: `Basic ${getEncodedCredentials()}`,
@@ -579,9 +604,9 @@ export async function getItemMetric(type: ItemMetricType, timeSpan: TimeSpan): P
   }
 }
 
-export async function getCompositeMetric(type: CompositeMetricType, timeSpan: TimeSpan): Promise<CompositeMetricEntry[] | undefined> {
+export async function getCompositeMetric(type: CompositeMetricType, timeSpan: TimeSpan, limit?: number, offset?: number): Promise<CompositeMetricEntry[] | undefined> {
   try {
-    const response = await fetch(`${apiUrl}/api/statistics/metric/composite?type=${type.toString()}&timespan=${timeSpan.toString()}`, {
+    const response = await fetch(`${apiUrl}/api/statistics/metric/composite?type=${type.toString()}&timespan=${timeSpan.toString()}${pageParams(limit, offset)}`, {
       method: "GET",
       headers: {
         Authorization: `Basic ${getEncodedCredentials()}`,
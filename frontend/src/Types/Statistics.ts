@@ -38,6 +38,13 @@ export interface ItemMetricEntry {
     value: number;
 }
 
+export interface MetricPosition {
+    key: string;
+    position: number;
+    total: number;
+    value: number;
+}
+
 export interface CompositeMetricEntry {
     key1: string;
     key1DisplayName: string;